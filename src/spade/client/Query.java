@@ -57,6 +57,8 @@ public class Query {
     private static HashMap<String, Graph> graphObjects;
     private static HashMap<String, String> graphExpressions;
     private static String QUERY_STORAGE = "Neo4j";
+    private static final String FRESH_READ_PREFIX = "fresh ";
+    private static boolean FRESH_READS = false;
     // Members for creating secure sockets
     private static KeyStore clientKeyStorePrivate;
     private static KeyStore serverKeyStorePublic;
@@ -151,6 +153,10 @@ public class Query {
                     } else if (line.trim().startsWith("storage")) {
                         String[] tokens = line.trim().split("\\s+");
                         QUERY_STORAGE = tokens[1];
+                    } else if (line.trim().startsWith("fresh")) {
+                        String[] tokens = line.trim().split("\\s+");
+                        FRESH_READS = (tokens.length > 1) && tokens[1].equalsIgnoreCase("on");
+                        outputStream.println("Fresh reads " + (FRESH_READS ? "on" : "off"));
                     } else if (line.startsWith("export")) {
                         String[] tokens = line.split("\\s+");
                         graphObjects.get(tokens[1]).exportGraph(tokens[2]);
@@ -235,7 +241,7 @@ public class Query {
                     for (AbstractVertex vertex : graphObjects.get(vertexId).vertexSet()) {
                         String storageId = vertex.getAnnotation(Settings.getProperty("storage_identifier"));
                         queryString = "query " + QUERY_STORAGE + " lineage " + storageId + " " + depth + " " + direction + " " + terminatingExpression;
-                        SPADEQueryIn.println(queryString);
+                        SPADEQueryIn.println(FRESH_READS ? FRESH_READ_PREFIX + queryString : queryString);
                         String resultString = (String) SPADEQueryOut.readObject();
                         if (resultString.equals("graph")) {
                             Graph resultGraph = (Graph) SPADEQueryOut.readObject();
@@ -315,7 +321,7 @@ public class Query {
             if ((queryTarget == null) && (queryString != null)) {
                 long begintime, endtime;
                 begintime = System.currentTimeMillis();
-                SPADEQueryIn.println(queryString);
+                SPADEQueryIn.println(FRESH_READS ? FRESH_READ_PREFIX + queryString : queryString);
                 String resultString = (String) SPADEQueryOut.readObject();
                 if (resultString.equals("graph")) {
                     Graph resultGraph = (Graph) SPADEQueryOut.readObject();
@@ -137,4 +137,14 @@ public class QueryParameters{
 	public String getDstVertexId(){
 		return dstVertexId;
 	}
+	
+	@Override
+	public String toString(){
+		return "storage=" + storage + ", operation=" + operation + ", expression=" + expression
+				+ ", vertexId=" + vertexId + ", vertex=" + vertex
+				+ ", srcVertexId=" + srcVertexId + ", srcVertex=" + srcVertex
+				+ ", dstVertexId=" + dstVertexId + ", dstVertex=" + dstVertex
+				+ ", maxLength=" + maxLength + ", depth=" + depth + ", direction=" + direction
+				+ ", terminatingExpression=" + terminatingExpression;
+	}
 }
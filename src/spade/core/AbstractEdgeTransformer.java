@@ -0,0 +1,104 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import spade.client.QueryParameters;
+
+/**
+ * Base class for transformers that transform every edge of a graph on its own,
+ * without looking at the rest of the graph. Consecutive edge transformers are
+ * fused by TransformerChain into a single pass over the edges.
+ */
+public abstract class AbstractEdgeTransformer extends AbstractTransformer{
+	
+	/**
+	 * Transforms a single edge. The given edge must not be modified.
+	 * 
+	 * @param edge The edge to transform.
+	 * @param digQueryParams The parameters of the query whose result is being transformed.
+	 * @return The transformed edge or null if the edge is to be dropped.
+	 */
+	public abstract AbstractEdge transformEdge(AbstractEdge edge, QueryParameters digQueryParams);
+	
+	@Override
+	public Graph putGraph(Graph graph, QueryParameters digQueryParams){
+		return transformEdges(graph, Collections.singletonList(this), digQueryParams);
+	}
+	
+	/**
+	 * Passes every edge of the graph through the given transformers in order and adds
+	 * the edges that are not dropped to a new graph along with their endpoints. The
+	 * edges are transformed in parallel partitions if enabled and all the transformers
+	 * are partitionable.
+	 * 
+	 * @param graph The graph to transform.
+	 * @param transformers The transformers to apply.
+	 * @param digQueryParams The parameters of the query whose result is being transformed.
+	 * @return The transformed graph.
+	 */
+	public static Graph transformEdges(Graph graph, final List<? extends AbstractEdgeTransformer> transformers, final QueryParameters digQueryParams){
+		boolean partitionable = Partitions.isEnabled();
+		for(AbstractEdgeTransformer transformer : transformers){
+			partitionable = partitionable && transformer.isPartitionable();
+		}
+		Collection<AbstractEdge> newEdges;
+		if(partitionable){
+			QueryContext.checkpoint();
+			newEdges = Partitions.map(graph.edgeSet(), new Partitions.Mapper<AbstractEdge, AbstractEdge>(){
+				@Override
+				public AbstractEdge map(AbstractEdge edge){
+					return transformEdge(edge, transformers, digQueryParams);
+				}
+			});
+		}else{
+			newEdges = new ArrayList<AbstractEdge>();
+			for(AbstractEdge edge : graph.edgeSet()){
+				AbstractEdge newEdge = transformEdge(edge, transformers, digQueryParams);
+				if(newEdge != null){
+					newEdges.add(newEdge);
+				}
+			}
+		}
+		Graph resultGraph = new Graph();
+		for(AbstractEdge newEdge : newEdges){
+			resultGraph.putVertex(newEdge.getSourceVertex());
+			resultGraph.putVertex(newEdge.getDestinationVertex());
+			resultGraph.putEdge(newEdge);
+		}
+		return resultGraph;
+	}
+	
+	private static AbstractEdge transformEdge(AbstractEdge edge, List<? extends AbstractEdgeTransformer> transformers, QueryParameters digQueryParams){
+		AbstractEdge newEdge = edge;
+		for(AbstractEdgeTransformer transformer : transformers){
+			newEdge = transformer.transformEdge(newEdge, digQueryParams);
+			if(newEdge == null || newEdge.getSourceVertex() == null || newEdge.getDestinationVertex() == null){
+				return null;
+			}
+		}
+		return newEdge;
+	}
+	
+}
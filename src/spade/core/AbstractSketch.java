@@ -51,4 +51,23 @@ public abstract class AbstractSketch implements Serializable {
      * @param incomingEdge The edge received by this sketch.
      */
     public abstract void putEdge(AbstractEdge incomingEdge);
+
+    /**
+     * Discards the sketches of remote hosts that this sketch has cached, so
+     * that the next edges get the current sketches of those hosts.
+     */
+    public void invalidateRemoteSketches() {
+    }
+
+    /**
+     * Waits until the edges received by this sketch so far are reflected in
+     * its matrix filter, or until the timeout elapses.
+     *
+     * @param timeout The maximum time to wait in milliseconds.
+     * @return The number of updates that are still pending.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public int awaitUpdates(long timeout) throws InterruptedException {
+        return 0;
+    }
 }
@@ -101,6 +101,19 @@ public abstract class AbstractStorage {
         return true;
     }
 
+    /**
+     * This method is triggered by the Kernel's main thread on every iteration.
+     * Storages that batch writes may commit on their own schedule when force
+     * is false, but must commit everything received so far when force is true
+     * so that a query asking for a fresh read sees all of it.
+     *
+     * @param force True if all pending transactions must be committed now.
+     * @return True if the transactions were flushed successfully.
+     */
+    public boolean flushTransactions(boolean force) {
+        return flushTransactions();
+    }
+
     /**
      * Query method that returns a set of vertices based on a given expression.
      *
@@ -43,6 +43,18 @@ public abstract class AbstractTransformer {
 	
 	public abstract Graph putGraph(Graph graph, QueryParameters digQueryParams);
 	
+	/**
+	 * Partitionable transformers can split their work over partitions of the graph
+	 * and run them concurrently, i.e., they keep no state between elements that is
+	 * not merged deterministically. Edge transformers must also be safe to call
+	 * concurrently from different threads.
+	 * 
+	 * @return True if this transformer is partitionable.
+	 */
+	public boolean isPartitionable(){
+		return false;
+	}
+	
 	public static String getAnnotationSafe(AbstractVertex vertex, String annotation){
 		if(vertex != null){
 			return getAnnotationSafe(vertex.getAnnotations(), annotation);
@@ -84,6 +96,14 @@ public abstract class AbstractTransformer {
 	public static AbstractEdge createNewWithoutAnnotations(AbstractEdge edge, String... annotations){
 		AbstractVertex newSource = createNewWithoutAnnotations(edge.getSourceVertex(), annotations);
 		AbstractVertex newDestination = createNewWithoutAnnotations(edge.getDestinationVertex(), annotations);
+		return createNewWithoutAnnotations(edge, newSource, newDestination, annotations);
+	}
+	
+	/**
+	 * Same as createNewWithoutAnnotations(edge, annotations) but with endpoints that have already
+	 * been stripped, so that the edges of a vertex can share one copy of it.
+	 */
+	public static AbstractEdge createNewWithoutAnnotations(AbstractEdge edge, AbstractVertex newSource, AbstractVertex newDestination, String... annotations){
 		AbstractEdge newEdge = new Edge(newSource, newDestination);
 		newEdge.addAnnotations(edge.getAnnotations());
 		if(annotations != null){
@@ -97,6 +117,27 @@ public abstract class AbstractTransformer {
 		return newEdge;
 	}
 	
+	/**
+	 * Returns a graph with the edges of removeFrom that are not in toRemove, along with their
+	 * endpoints. Edges are kept as they are instead of being copied.
+	 * 
+	 * @param removeFrom The graph to remove edges from.
+	 * @param toRemove The edges to remove, usually a set compared by identity.
+	 * @return The resulting graph.
+	 */
+	public static Graph removeEdges(Graph removeFrom, Set<AbstractEdge> toRemove){
+		Graph result = new Graph();
+		for(AbstractEdge edge : removeFrom.edgeSet()){
+			if(toRemove.contains(edge)){
+				continue;
+			}
+			result.putVertex(edge.getSourceVertex());
+			result.putVertex(edge.getDestinationVertex());
+			result.putEdge(edge);
+		}
+		return result;
+	}
+	
 	public static void removeEdges(Graph result, Graph removeFrom, Graph toRemove){
 		Set<AbstractEdge> toRemoveEdges = new HashSet<AbstractEdge>();
 		for(AbstractEdge edge : toRemove.edgeSet()){
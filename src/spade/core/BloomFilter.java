@@ -40,30 +40,43 @@ import java.util.Collection;
  * were proposed in comments in his blog:
  * http://blog.locut.us/2008/01/12/a-decent-stand-alone-java-bloom-filter-implementation/
  *
+ * Bit positions are derived from a single 128-bit MurmurHash3 of an element by double
+ * hashing, as described in "Less Hashing, Same Performance: Building a Better Bloom
+ * Filter" by Kirsch and Mitzenmacher. Filters serialized by earlier versions keep
+ * using the salted MD5 digests that their bits were set with.
+ *
  * @param <E> Object type that is to be inserted into the Bloom filter, e.g. String or Integer.
  * @author Magnus Skjegstad <magnus@skjegstad.com>
  */
 public class BloomFilter<E> implements Serializable {
+    // the value computed for the class before the hashing field was added
+    private static final long serialVersionUID = -4451498270929112812L;
+
+    static final int LEGACY_HASHING = 0; // salted MD5 digests, one per 4 hash functions
+    static final int DOUBLE_HASHING = 1; // MurmurHash3 halves combined as h1 + i * h2
+
     private BitSet bitset;
     private int bitSetSize;
     private double bitsPerElement;
     private int expectedNumberOfFilterElements; // expected (maximum) number of elements to be added
     private int numberOfAddedElements; // number of elements actually added to the Bloom filter
     private int k; // number of hash functions
+    private int hashing; // LEGACY_HASHING when deserialized from a stream written before the field existed
 
     static final Charset charset = Charset.forName("UTF-8"); // encoding used for storing hash values as strings
 
     static final String hashName = "MD5"; // MD5 gives good enough accuracy in most circumstances. Change to SHA1 if it's needed
-    static final MessageDigest digestFunction;
-    static { // The digest method is reused between instances
-        MessageDigest tmp;
-        try {
-            tmp = java.security.MessageDigest.getInstance(hashName);
-        } catch (NoSuchAlgorithmException e) {
-            tmp = null;
+    // MessageDigest is not thread-safe, so every thread gets its own instead of sharing one under a lock
+    private static final ThreadLocal<MessageDigest> digestFunction = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(hashName);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
         }
-        digestFunction = tmp;
-    }
+    };
 
     /**
       * Constructs an empty Bloom filter. The total length of the Bloom filter will be
@@ -80,6 +93,32 @@ public class BloomFilter<E> implements Serializable {
       this.bitSetSize = (int)Math.ceil(c * n);
       numberOfAddedElements = 0;
       this.bitset = new BitSet(bitSetSize);
+      this.hashing = DOUBLE_HASHING;
+    }
+
+    /**
+     * Constructs a Bloom filter from bits that were set by filters of the same size.
+     *
+     * @param c is the number of bits used per element.
+     * @param n is the expected number of elements the filter will contain.
+     * @param k is the number of hash functions used.
+     * @param filterData the bits of the filter.
+     */
+    BloomFilter(double c, int n, int k, BitSet filterData) {
+        this(c, n, k);
+        this.bitset = filterData;
+    }
+
+    /**
+     * Constructs an empty Bloom filter with the same size and hash functions as this one,
+     * so that bit sets of the two can be combined.
+     *
+     * @return an empty Bloom filter.
+     */
+    public BloomFilter<E> emptyCopy() {
+        BloomFilter<E> copy = new BloomFilter<E>(bitsPerElement, expectedNumberOfFilterElements, k);
+        copy.hashing = hashing;
+        return copy;
     }
 
     /**
@@ -168,14 +207,12 @@ public class BloomFilter<E> implements Serializable {
 
         int k = 0;
         byte salt = 0;
+        MessageDigest digestFunction = BloomFilter.digestFunction.get();
         while (k < hashes) {
-            byte[] digest;
-            synchronized (digestFunction) {
-                digestFunction.update(salt);
-                salt++;
-                digest = digestFunction.digest(data);                
-            }
-        
+            digestFunction.update(salt);
+            salt++;
+            byte[] digest = digestFunction.digest(data);
+
             for (int i = 0; i < digest.length/4 && k < hashes; i++) {
                 int h = 0;
                 for (int j = (i*4); j < (i*4)+4; j++) {
@@ -189,6 +226,91 @@ public class BloomFilter<E> implements Serializable {
         return result;
     }
 
+    /**
+     * Computes the 128-bit MurmurHash3 (x64 variant, seed 0) of an array of bytes.
+     *
+     * @param data specifies input data.
+     * @param result receives the lower and the upper 64 bits of the hash.
+     */
+    // the tail cases fall through on purpose, as in the reference implementation
+    @SuppressWarnings("fallthrough")
+    static void murmurHash3(byte[] data, long[] result) {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        int length = data.length;
+        long h1 = 0;
+        long h2 = 0;
+        int blocks = length >>> 4;
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLittleEndianLong(data, i << 4);
+            long k2 = getLittleEndianLong(data, (i << 4) + 8);
+            k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+            k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+        }
+        int tail = blocks << 4;
+        long k1 = 0;
+        long k2 = 0;
+        switch (length & 15) {
+            case 15: k2 ^= (long) (data[tail + 14] & 0xff) << 48;
+            case 14: k2 ^= (long) (data[tail + 13] & 0xff) << 40;
+            case 13: k2 ^= (long) (data[tail + 12] & 0xff) << 32;
+            case 12: k2 ^= (long) (data[tail + 11] & 0xff) << 24;
+            case 11: k2 ^= (long) (data[tail + 10] & 0xff) << 16;
+            case 10: k2 ^= (long) (data[tail + 9] & 0xff) << 8;
+            case 9: k2 ^= (long) (data[tail + 8] & 0xff);
+                k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+            case 8: k1 ^= (long) (data[tail + 7] & 0xff) << 56;
+            case 7: k1 ^= (long) (data[tail + 6] & 0xff) << 48;
+            case 6: k1 ^= (long) (data[tail + 5] & 0xff) << 40;
+            case 5: k1 ^= (long) (data[tail + 4] & 0xff) << 32;
+            case 4: k1 ^= (long) (data[tail + 3] & 0xff) << 24;
+            case 3: k1 ^= (long) (data[tail + 2] & 0xff) << 16;
+            case 2: k1 ^= (long) (data[tail + 1] & 0xff) << 8;
+            case 1: k1 ^= (long) (data[tail] & 0xff);
+                k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+        }
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = finalizationMix(h1);
+        h2 = finalizationMix(h2);
+        h1 += h2;
+        h2 += h1;
+        result[0] = h1;
+        result[1] = h2;
+    }
+
+    private static long getLittleEndianLong(byte[] data, int offset) {
+        return (data[offset] & 0xffL)
+                | (data[offset + 1] & 0xffL) << 8
+                | (data[offset + 2] & 0xffL) << 16
+                | (data[offset + 3] & 0xffL) << 24
+                | (data[offset + 4] & 0xffL) << 32
+                | (data[offset + 5] & 0xffL) << 40
+                | (data[offset + 6] & 0xffL) << 48
+                | (data[offset + 7] & 0xffL) << 56;
+    }
+
+    private static long finalizationMix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    // reused by each thread so that hashing an element allocates nothing
+    private static final ThreadLocal<long[]> hashBuffer = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
     /**
      * Compares the contents of two instances to see if they are equal.
      *
@@ -210,6 +332,9 @@ public class BloomFilter<E> implements Serializable {
         if (this.k != other.k) {
             return false;
         }
+        if (this.hashing != other.hashing) {
+            return false;
+        }
         if (this.bitSetSize != other.bitSetSize) {
             return false;
         }
@@ -310,12 +435,23 @@ public class BloomFilter<E> implements Serializable {
      * @param bytes array of bytes to add to the Bloom filter.
      */
     public void add(byte[] bytes) {
-       int[] hashes = createHashes(bytes, k);
-       for (int hash : hashes)
-           bitset.set(Math.abs(hash % bitSetSize), true);
+       if (hashing == LEGACY_HASHING) {
+           int[] hashes = createHashes(bytes, k);
+           for (int hash : hashes)
+               bitset.set(Math.abs(hash % bitSetSize), true);
+       } else {
+           long[] hash = hashBuffer.get();
+           murmurHash3(bytes, hash);
+           for (int i = 0; i < k; i++)
+               bitset.set(getIndex(hash[0], hash[1], i, bitSetSize), true);
+       }
        numberOfAddedElements ++;
     }
 
+    static int getIndex(long h1, long h2, int i, int bitSetSize) {
+        return (int) (((h1 + i * h2) & Long.MAX_VALUE) % bitSetSize);
+    }
+
     /**
      * Adds all elements from a Collection to the Bloom filter.
      * @param c Collection of elements.
@@ -346,9 +482,19 @@ public class BloomFilter<E> implements Serializable {
      * @return true if the array could have been inserted into the Bloom filter.
      */
     public boolean contains(byte[] bytes) {
-        int[] hashes = createHashes(bytes, k);
-        for (int hash : hashes) {
-            if (!bitset.get(Math.abs(hash % bitSetSize))) {
+        if (hashing == LEGACY_HASHING) {
+            int[] hashes = createHashes(bytes, k);
+            for (int hash : hashes) {
+                if (!bitset.get(Math.abs(hash % bitSetSize))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        long[] hash = hashBuffer.get();
+        murmurHash3(bytes, hash);
+        for (int i = 0; i < k; i++) {
+            if (!bitset.get(getIndex(hash[0], hash[1], i, bitSetSize))) {
                 return false;
             }
         }
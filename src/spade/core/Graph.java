@@ -24,8 +24,10 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
@@ -102,6 +104,18 @@ public class Graph extends AbstractStorage implements Serializable {
     private Directory edgeIndex;
     private transient IndexWriter vertexIndexWriter;
     private transient IndexWriter edgeIndexWriter;
+    // Elements are added to the Lucene indexes only when the graph is
+    // committed or queried, so that graphs which are only iterated over, such
+    // as the intermediate results of transformers, are never indexed.
+    private transient boolean indexWritable;
+    private transient List<AbstractVertex> unindexedVertices = new ArrayList<>();
+    private transient List<AbstractEdge> unindexedEdges = new ArrayList<>();
+    // Adjacency and type indexes are built on first use and then maintained
+    // as elements are added.
+    private transient Map<AbstractVertex, List<AbstractEdge>> outgoingEdges;
+    private transient Map<AbstractVertex, List<AbstractEdge>> incomingEdges;
+    private transient Map<String, List<AbstractVertex>> verticesByType;
+    private transient Map<String, List<AbstractEdge>> edgesByType;
     
     public void mergeThreads() {
 
@@ -111,16 +125,12 @@ public class Graph extends AbstractStorage implements Serializable {
      * An empty constructor.
      */
     public Graph() {
-        // Lucene initialization
-        try {
-            vertexIndex = new RAMDirectory();
-            edgeIndex = new RAMDirectory();
-            vertexIndexWriter = new IndexWriter(vertexIndex, new IndexWriterConfig(Version.LUCENE_35, analyzer));
-            edgeIndexWriter = new IndexWriter(edgeIndex, new IndexWriterConfig(Version.LUCENE_35, analyzer));
-            queryParser.setAllowLeadingWildcard(true);
-        } catch (Exception exception) {
-            logger.log(Level.SEVERE, null, exception);
-        }
+        // Lucene initialization. The index writers are opened when the graph
+        // is first committed.
+        vertexIndex = new RAMDirectory();
+        edgeIndex = new RAMDirectory();
+        queryParser.setAllowLeadingWildcard(true);
+        indexWritable = true;
     }
     
     public AbstractVertex getVertex(int id) {
@@ -162,27 +172,13 @@ public class Graph extends AbstractStorage implements Serializable {
         if (reverseVertexIdentifiers.containsKey(inputVertex)) {
             return false;
         }
-        // Add vertex to Lucene index
-        try {
-            Document doc = new Document();
-            for (Map.Entry<String, String> currentEntry : inputVertex.getAnnotations().entrySet()) {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                if (key.equals(ID_STRING)) {
-                    continue;
-                }
-                doc.add(new Field(key, value, Field.Store.YES, Field.Index.ANALYZED));
-            }
-            doc.add(new Field(ID_STRING, Integer.toString(serial_number), Field.Store.YES, Field.Index.ANALYZED));
-            vertexIndexWriter.addDocument(doc);
-            // vertexIndexWriter.commit();
-
-            vertexIdentifiers.put(serial_number, inputVertex);
-            reverseVertexIdentifiers.put(inputVertex, serial_number);
-            vertexSet.add(inputVertex);
-            serial_number++;
-        } catch (Exception exception) {
-            logger.log(Level.SEVERE, null, exception);
+        vertexIdentifiers.put(serial_number, inputVertex);
+        reverseVertexIdentifiers.put(inputVertex, serial_number);
+        vertexSet.add(inputVertex);
+        serial_number++;
+        getUnindexedVertices().add(inputVertex);
+        if (verticesByType != null) {
+            addToIndex(verticesByType, inputVertex.getAnnotation("type"), inputVertex);
         }
         return true;
     }
@@ -199,35 +195,70 @@ public class Graph extends AbstractStorage implements Serializable {
         if (reverseEdgeIdentifiers.containsKey(inputEdge)) {
             return false;
         }
-        // Add edge to Lucene index
-        try {
-            Document doc = new Document();
-            for (Map.Entry<String, String> currentEntry : inputEdge.getAnnotations().entrySet()) {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                if (key.equals(ID_STRING)) {
-                    continue;
-                }
-                doc.add(new Field(key, value, Field.Store.YES, Field.Index.ANALYZED));
-            }
-            doc.add(new Field(ID_STRING, Integer.toString(serial_number), Field.Store.YES, Field.Index.ANALYZED));
-            doc.add(new Field(SRC_VERTEX_ID, Integer.toString(reverseVertexIdentifiers.get(inputEdge.getSourceVertex())), Field.Store.YES, Field.Index.ANALYZED));
-            doc.add(new Field(DST_VERTEX_ID, Integer.toString(reverseVertexIdentifiers.get(inputEdge.getDestinationVertex())), Field.Store.YES, Field.Index.ANALYZED));
-            edgeIndexWriter.addDocument(doc);
-            // edgeIndexWriter.commit();
-
-            edgeIdentifiers.put(serial_number, inputEdge);
-            reverseEdgeIdentifiers.put(inputEdge, serial_number);
-            edgeSet.add(inputEdge);
-            serial_number++;
-        } catch (Exception exception) {
-            logger.log(Level.SEVERE, null, exception);
+        if (!reverseVertexIdentifiers.containsKey(inputEdge.getSourceVertex())
+                || !reverseVertexIdentifiers.containsKey(inputEdge.getDestinationVertex())) {
+            logger.log(Level.SEVERE, "Edge endpoints must be added to the graph before the edge: {0}", inputEdge);
+            return false;
+        }
+        edgeIdentifiers.put(serial_number, inputEdge);
+        reverseEdgeIdentifiers.put(inputEdge, serial_number);
+        edgeSet.add(inputEdge);
+        serial_number++;
+        getUnindexedEdges().add(inputEdge);
+        if (outgoingEdges != null) {
+            addToIndex(outgoingEdges, inputEdge.getSourceVertex(), inputEdge);
+            addToIndex(incomingEdges, inputEdge.getDestinationVertex(), inputEdge);
+        }
+        if (edgesByType != null) {
+            addToIndex(edgesByType, inputEdge.getAnnotation("type"), inputEdge);
         }
         return true;
     }
 
+    /**
+     * Adds the elements put since the last commit to the Lucene indexes and
+     * commits them so that they can be queried.
+     */
     public void commitIndex() {
+        if (!indexWritable) {
+            // Deserialized graphs are indexed before they are written out.
+            return;
+        }
         try {
+            if (vertexIndexWriter == null) {
+                vertexIndexWriter = new IndexWriter(vertexIndex, new IndexWriterConfig(Version.LUCENE_35, analyzer));
+                edgeIndexWriter = new IndexWriter(edgeIndex, new IndexWriterConfig(Version.LUCENE_35, analyzer));
+            }
+            for (AbstractVertex vertex : getUnindexedVertices()) {
+                Document doc = new Document();
+                for (Map.Entry<String, String> currentEntry : vertex.getAnnotations().entrySet()) {
+                    String key = currentEntry.getKey();
+                    String value = currentEntry.getValue();
+                    if (key.equals(ID_STRING)) {
+                        continue;
+                    }
+                    doc.add(new Field(key, value, Field.Store.YES, Field.Index.ANALYZED));
+                }
+                doc.add(new Field(ID_STRING, Integer.toString(reverseVertexIdentifiers.get(vertex)), Field.Store.YES, Field.Index.ANALYZED));
+                vertexIndexWriter.addDocument(doc);
+            }
+            unindexedVertices.clear();
+            for (AbstractEdge edge : getUnindexedEdges()) {
+                Document doc = new Document();
+                for (Map.Entry<String, String> currentEntry : edge.getAnnotations().entrySet()) {
+                    String key = currentEntry.getKey();
+                    String value = currentEntry.getValue();
+                    if (key.equals(ID_STRING)) {
+                        continue;
+                    }
+                    doc.add(new Field(key, value, Field.Store.YES, Field.Index.ANALYZED));
+                }
+                doc.add(new Field(ID_STRING, Integer.toString(reverseEdgeIdentifiers.get(edge)), Field.Store.YES, Field.Index.ANALYZED));
+                doc.add(new Field(SRC_VERTEX_ID, Integer.toString(reverseVertexIdentifiers.get(edge.getSourceVertex())), Field.Store.YES, Field.Index.ANALYZED));
+                doc.add(new Field(DST_VERTEX_ID, Integer.toString(reverseVertexIdentifiers.get(edge.getDestinationVertex())), Field.Store.YES, Field.Index.ANALYZED));
+                edgeIndexWriter.addDocument(doc);
+            }
+            unindexedEdges.clear();
             vertexIndexWriter.commit();
             edgeIndexWriter.commit();
         } catch (Exception exception) {
@@ -235,6 +266,111 @@ public class Graph extends AbstractStorage implements Serializable {
         }
     }
 
+    private void commitPendingIndex() {
+        if (vertexIndexWriter == null || !getUnindexedVertices().isEmpty() || !getUnindexedEdges().isEmpty()) {
+            commitIndex();
+        }
+    }
+
+    private List<AbstractVertex> getUnindexedVertices() {
+        if (unindexedVertices == null) {
+            unindexedVertices = new ArrayList<>();
+        }
+        return unindexedVertices;
+    }
+
+    private List<AbstractEdge> getUnindexedEdges() {
+        if (unindexedEdges == null) {
+            unindexedEdges = new ArrayList<>();
+        }
+        return unindexedEdges;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        commitPendingIndex();
+        out.defaultWriteObject();
+    }
+
+    private static <K, V> void addToIndex(Map<K, List<V>> index, K key, V value) {
+        List<V> values = index.get(key);
+        if (values == null) {
+            values = new ArrayList<>(2);
+            index.put(key, values);
+        }
+        values.add(value);
+    }
+
+    private void buildAdjacencyIndex() {
+        if (outgoingEdges == null) {
+            outgoingEdges = new HashMap<>();
+            incomingEdges = new HashMap<>();
+            for (AbstractEdge edge : edgeSet) {
+                addToIndex(outgoingEdges, edge.getSourceVertex(), edge);
+                addToIndex(incomingEdges, edge.getDestinationVertex(), edge);
+            }
+        }
+    }
+
+    /**
+     * Returns the edges whose source is the given vertex, i.e., the edges to
+     * the parents of the vertex.
+     *
+     * @param vertex The vertex.
+     * @return An unmodifiable list of edges.
+     */
+    public List<AbstractEdge> getOutgoingEdges(AbstractVertex vertex) {
+        buildAdjacencyIndex();
+        List<AbstractEdge> edges = outgoingEdges.get(vertex);
+        return (edges == null) ? Collections.<AbstractEdge>emptyList() : Collections.unmodifiableList(edges);
+    }
+
+    /**
+     * Returns the edges whose destination is the given vertex, i.e., the edges
+     * from the children of the vertex.
+     *
+     * @param vertex The vertex.
+     * @return An unmodifiable list of edges.
+     */
+    public List<AbstractEdge> getIncomingEdges(AbstractVertex vertex) {
+        buildAdjacencyIndex();
+        List<AbstractEdge> edges = incomingEdges.get(vertex);
+        return (edges == null) ? Collections.<AbstractEdge>emptyList() : Collections.unmodifiableList(edges);
+    }
+
+    /**
+     * Returns the vertices with the given value of the type annotation.
+     *
+     * @param type The vertex type.
+     * @return An unmodifiable list of vertices.
+     */
+    public List<AbstractVertex> getVerticesOfType(String type) {
+        if (verticesByType == null) {
+            verticesByType = new HashMap<>();
+            for (AbstractVertex vertex : vertexSet) {
+                addToIndex(verticesByType, vertex.getAnnotation("type"), vertex);
+            }
+        }
+        List<AbstractVertex> vertices = verticesByType.get(type);
+        return (vertices == null) ? Collections.<AbstractVertex>emptyList() : Collections.unmodifiableList(vertices);
+    }
+
+    /**
+     * Returns the edges with the given value of the type annotation.
+     *
+     * @param type The edge type.
+     * @return An unmodifiable list of edges.
+     */
+    public List<AbstractEdge> getEdgesOfType(String type) {
+        if (edgesByType == null) {
+            edgesByType = new HashMap<>();
+            for (AbstractEdge edge : edgeSet) {
+                addToIndex(edgesByType, edge.getAnnotation("type"), edge);
+            }
+        }
+        List<AbstractEdge> edges = edgesByType.get(type);
+        return (edges == null) ? Collections.<AbstractEdge>emptyList() : Collections.unmodifiableList(edges);
+    }
+
     /**
      * Returns the set containing the vertices.
      *
@@ -289,7 +425,6 @@ public class Graph extends AbstractStorage implements Serializable {
             resultGraph.putEdge(edge);
         }
 
-        resultGraph.commitIndex();
         return resultGraph;
     }
 
@@ -319,7 +454,6 @@ public class Graph extends AbstractStorage implements Serializable {
             resultGraph.putEdge(edge);
         }
 
-        resultGraph.commitIndex();
         return resultGraph;
     }
 
@@ -348,7 +482,6 @@ public class Graph extends AbstractStorage implements Serializable {
             resultGraph.putEdge(edge);
         }
 
-        resultGraph.commitIndex();
         return resultGraph;
     }
 
@@ -376,7 +509,6 @@ public class Graph extends AbstractStorage implements Serializable {
         } catch (Exception exception) {
             exception.printStackTrace();
         }
-        result.commitIndex();
         return result;
     }
 
@@ -563,6 +695,7 @@ public class Graph extends AbstractStorage implements Serializable {
     }
 
     public List<Integer> listVertices(String expression) {
+        commitPendingIndex();
         try {
             List<Integer> results = new ArrayList<>();
             IndexReader reader = IndexReader.open(vertexIndex);
@@ -586,6 +719,7 @@ public class Graph extends AbstractStorage implements Serializable {
 
     @Override
     public Graph getVertices(String expression) {
+        commitPendingIndex();
         try {
             IndexReader reader = IndexReader.open(vertexIndex);
             IndexSearcher searcher = new IndexSearcher(reader);
@@ -601,7 +735,6 @@ public class Graph extends AbstractStorage implements Serializable {
 
             searcher.close();
             reader.close();
-            resultGraph.commitIndex();
             return resultGraph;
         } catch (Exception exception) {
             logger.log(Level.SEVERE, null, exception);
@@ -633,6 +766,7 @@ public class Graph extends AbstractStorage implements Serializable {
                 return null;
             }
 
+            commitPendingIndex();
             Graph resultGraph = new Graph();
 
             IndexReader vertexReader = IndexReader.open(vertexIndex);
@@ -667,6 +801,7 @@ public class Graph extends AbstractStorage implements Serializable {
             for (int i = 0; i <= depth; i++) {
                 Set<Integer> tempProcessedVertices = new HashSet<>();
                 for (int currentVertexId : processedVertices) {
+                    QueryContext.checkpoint(resultGraph);
                     String queryString = null;
                     if (DIRECTION_ANCESTORS.startsWith(direction.toLowerCase())) {
                         queryString = SRC_VERTEX_ID + ":\"" + currentVertexId + "\"";
@@ -703,7 +838,6 @@ public class Graph extends AbstractStorage implements Serializable {
 
             edgeSearcher.close();
             edgeReader.close();
-            resultGraph.commitIndex();
             return resultGraph;
         } catch (IOException | ParseException | NumberFormatException exception) {
             logger.log(Level.SEVERE, null, exception);
@@ -735,6 +869,7 @@ public class Graph extends AbstractStorage implements Serializable {
                 return null;
             }
 
+            commitPendingIndex();
             Graph resultGraph = new Graph();
 
             IndexReader vertexReader = IndexReader.open(vertexIndex);
@@ -766,6 +901,7 @@ public class Graph extends AbstractStorage implements Serializable {
             for (int i = 0; i <= depth; i++) {
                 Set<Integer> tempProcessedVertices = new HashSet<>();
                 for (int currentVertexId : processedVertices) {
+                    QueryContext.checkpoint(resultGraph);
                     String queryString = null;
                     if (DIRECTION_ANCESTORS.startsWith(direction.toLowerCase())) {
                         queryString = SRC_VERTEX_ID + ":\"" + currentVertexId + "\"";
@@ -802,7 +938,6 @@ public class Graph extends AbstractStorage implements Serializable {
 
             edgeSearcher.close();
             edgeReader.close();
-            resultGraph.commitIndex();
             return resultGraph;
         } catch (IOException | ParseException | NumberFormatException exception) {
             logger.log(Level.SEVERE, null, exception);
@@ -45,6 +45,11 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -60,6 +65,7 @@ import javax.net.ssl.TrustManagerFactory;
 
 import spade.client.QueryParameters;
 import spade.filter.FinalCommitFilter;
+import spade.utility.CommonFunctions;
 
 /**
  * The SPADE core.
@@ -121,12 +127,30 @@ public class Kernel {
      */
     public static volatile boolean shutdown;
     /**
-     * Boolean used to indicate whether the transactions need to be flushed by
-     * the storages.
+     * Monitor guarding the flush request and completion counters. Threads that
+     * need a fresh view of the storages take a ticket by incrementing the
+     * request counter and wait on this monitor until the main thread has
+     * completed a flush covering that ticket. Concurrent requests that arrive
+     * before the main thread picks them up are satisfied by the same flush.
      */
-    public static volatile boolean flushTransactions;
+    private static final Object flushMonitor = new Object();
+    private static long flushRequestCount = 0;
+    private static long flushCompletedCount = 0;
     private static Thread mainThread;
     private static List<ServerSocket> serverSockets;
+    /**
+     * Bounded pool of worker threads serving query, remote query and sketch
+     * connections. Connections that arrive when all workers are busy and the
+     * queue is full are closed instead of being given a new thread.
+     */
+    private static ThreadPoolExecutor queryExecutor;
+    private static final int QUERY_WORKER_THREADS = CommonFunctions.parseInt(Settings.getProperty("query_worker_threads"), 16);
+    private static final int QUERY_QUEUE_SIZE = CommonFunctions.parseInt(Settings.getProperty("query_queue_size"), 64);
+    private static final int QUERY_CONNECTION_IDLE_TIMEOUT = CommonFunctions.parseInt(Settings.getProperty("query_connection_idle_timeout"), 300000);
+    // A connection holds a query worker for as long as it is open, so there is
+    // one permit per worker or queue slot and a connection is refused when the
+    // workers and the queue are all taken
+    private static final Semaphore connectionPermits = new Semaphore(QUERY_WORKER_THREADS + QUERY_QUEUE_SIZE);
     private static Set<AbstractReporter> removereporters;
     private static Set<AbstractStorage> removestorages;
     private static final int BATCH_BUFFER_ELEMENTS = 1000000;
@@ -153,6 +177,7 @@ public class Kernel {
     private static final String QUERY_PRINT_STRING = "<result>.print(annotations)";
     private static final String QUERY_EXPORT_STRING = "export <result> <path>";
     private static final String QUERY_LIST_STRING = "list";
+    private static final String QUERY_FRESH_STRING = "fresh on|off (default: off)";
     private static final String QUERY_SELECT_STORAGE = "storage Neo4j|SQL (default: Neo4j)";    
     private static final String QUERY_EXIT_STRING = "exit";
     private static final Logger logger = Logger.getLogger(Kernel.class.getName());
@@ -164,6 +189,16 @@ public class Kernel {
     private static KeyStore serverKeyStorePrivate;
     public static SSLSocketFactory sslSocketFactory;
     public static SSLServerSocketFactory sslServerSocketFactory;
+    private static SSLContext serverSSLContext;
+    /**
+     * Non-blocking server used instead of the blocking server sockets when the
+     * selector_server setting is enabled.
+     */
+    private static SelectorServer selectorServer;
+    private static final boolean USE_SELECTOR_SERVER = Boolean.parseBoolean(Settings.getProperty("selector_server"));
+    private static final int SELECTOR_THREADS = CommonFunctions.parseInt(Settings.getProperty("selector_threads"), 2);
+    private static final int CONTROL_WORKER_THREADS = CommonFunctions.parseInt(Settings.getProperty("control_worker_threads"), 4);
+    private static final int CONTROL_QUEUE_SIZE = CommonFunctions.parseInt(Settings.getProperty("control_queue_size"), 16);
     
     private final static int CONTROL_CLIENT_READ_TIMEOUT = 1000; //time to timeout after when reading from the control client socket
     
@@ -209,6 +244,7 @@ public class Kernel {
         SSLContext sslContext = SSLContext.getInstance("TLS");
         sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), secureRandom);
         sslServerSocketFactory = sslContext.getServerSocketFactory();
+        serverSSLContext = sslContext;
     }
 
     /**
@@ -304,9 +340,11 @@ public class Kernel {
         sketches = Collections.synchronizedSet(new HashSet<AbstractSketch>());
         remoteSketches = Collections.synchronizedMap(new HashMap<String, AbstractSketch>());
         serverSockets = Collections.synchronizedList(new LinkedList<ServerSocket>());
+        queryExecutor = new ThreadPoolExecutor(QUERY_WORKER_THREADS, QUERY_WORKER_THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUERY_QUEUE_SIZE));
+        queryExecutor.allowCoreThreadTimeOut(true);
 
         shutdown = false;
-        flushTransactions = true;
 
         // Initialize the SketchManager and the final commit filter.
         // The FinalCommitFilter acts as a terminator for the filter list
@@ -364,18 +402,27 @@ public class Kernel {
                                 break;
                             }
                         }
-                        if (flushTransactions) {
-                            // Flushing of transactions is also handled by this
-                            // thread to ensure that
-                            // there are no errors/problems when using storages
-                            // that are sensitive to
-                            // thread-context for their transactions. For
-                            // example, this is true for
-                            // the embedded neo4j graph database.
-                            for (AbstractStorage currentStorage : storages) {
-                                currentStorage.flushTransactions();
+                        // Flushing of transactions is also handled by this
+                        // thread to ensure that there are no errors/problems
+                        // when using storages that are sensitive to
+                        // thread-context for their transactions. For example,
+                        // this is true for the embedded neo4j graph database.
+                        // Storages are given the chance to commit on their own
+                        // schedule on every iteration and are forced to commit
+                        // when a query has asked for a fresh read.
+                        long pendingFlushRequest;
+                        synchronized (flushMonitor) {
+                            pendingFlushRequest = flushRequestCount;
+                        }
+                        boolean forceFlush = (pendingFlushRequest > flushCompletedCount);
+                        for (AbstractStorage currentStorage : storages) {
+                            currentStorage.flushTransactions(forceFlush);
+                        }
+                        if (forceFlush) {
+                            synchronized (flushMonitor) {
+                                flushCompletedCount = pendingFlushRequest;
+                                flushMonitor.notifyAll();
                             }
-                            flushTransactions = false;
                         }
                         if (!removestorages.isEmpty()) {
                             // Check if a storage is marked for removal. If it
@@ -422,6 +469,20 @@ public class Kernel {
         mainThread = new Thread(mainRunnable, "mainSPADE-Thread");
         mainThread.start();
 
+        if (!USE_SELECTOR_SERVER || !startSelectorServer()) {
+            startBlockingServers();
+        }
+
+        // Load the SPADE configuration from the default config file.
+        configCommand("config load " + configFile, NullStream.out);
+    }
+
+    /**
+     * Starts one thread per server socket. Each accepted control connection
+     * gets its own thread and the other connections are handed to the query
+     * worker pool.
+     */
+    private static void startBlockingServers() {
         // This thread creates the input and output pipes used for control (and
         // also used
         // by the control client). The exit value is used to determine if the
@@ -473,9 +534,7 @@ public class Kernel {
                     serverSockets.add(serverSocket);
                     while (!shutdown) {
                         Socket querySocket = serverSocket.accept();
-                        LocalQueryConnection thisConnection = new LocalQueryConnection(querySocket);
-                        Thread connectionThread = new Thread(thisConnection);
-                        connectionThread.start();
+                        submitConnection(new LocalQueryConnection(querySocket), querySocket);
                     }
                 } catch (SocketException exception) {
                     // Do nothing... this is triggered on shutdown.
@@ -507,9 +566,7 @@ public class Kernel {
                     serverSockets.add(serverSocket);
                     while (!shutdown) {
                         Socket clientSocket = serverSocket.accept();
-                        QueryConnection thisConnection = new QueryConnection(clientSocket);
-                        Thread connectionThread = new Thread(thisConnection);
-                        connectionThread.start();
+                        submitConnection(new QueryConnection(clientSocket), clientSocket);
                     }
                 } catch (SocketException exception) {
                     // Do nothing... this is triggered on shutdown.
@@ -541,9 +598,7 @@ public class Kernel {
                     serverSockets.add(serverSocket);
                     while (!shutdown) {
                         Socket clientSocket = serverSocket.accept();
-                        SketchConnection thisConnection = new SketchConnection(clientSocket);
-                        Thread connectionThread = new Thread(thisConnection);
-                        connectionThread.start();
+                        submitConnection(new SketchConnection(clientSocket), clientSocket);
                     }
                 } catch (SocketException exception) {
                     // Do nothing... this is triggered on shutdown.
@@ -554,9 +609,52 @@ public class Kernel {
         };
         Thread sketchThread = new Thread(sketchRunnable, "remoteSketch-Thread");
         sketchThread.start();
+    }
 
-        // Load the SPADE configuration from the default config file.
-        configCommand("config load " + configFile, NullStream.out);
+    /**
+     * Serves the control, query, remote query and sketch ports from a single
+     * non-blocking selector server. Control commands run on a small bounded
+     * pool of their own, and everything else runs on the query worker pool.
+     * A connection whose input arrives when a pool and its queue are full is
+     * closed.
+     *
+     * @return True if the selector server was started.
+     */
+    private static boolean startSelectorServer() {
+        try {
+            selectorServer = new SelectorServer(ANDROID_PLATFORM ? null : serverSSLContext, SELECTOR_THREADS);
+            ThreadPoolExecutor controlExecutor = new ThreadPoolExecutor(CONTROL_WORKER_THREADS, CONTROL_WORKER_THREADS, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(CONTROL_QUEUE_SIZE));
+            controlExecutor.allowCoreThreadTimeOut(true);
+            selectorServer.listen(Integer.parseInt(Settings.getProperty("local_control_port")), new SelectorServer.LineProtocol() {
+                @Override
+                public SelectorServer.LineSession open(OutputStream output) {
+                    return new LocalControlConnection(output);
+                }
+            }, controlExecutor);
+            selectorServer.listen(Integer.parseInt(Settings.getProperty("local_query_port")), new SelectorServer.LineProtocol() {
+                @Override
+                public SelectorServer.LineSession open(OutputStream output) throws IOException {
+                    return new LocalQueryConnection(output);
+                }
+            }, queryExecutor);
+            selectorServer.listen(Integer.parseInt(Settings.getProperty("remote_query_port")), new SelectorServer.LineProtocol() {
+                @Override
+                public SelectorServer.LineSession open(OutputStream output) throws IOException {
+                    return new QueryConnection(output);
+                }
+            }, queryExecutor);
+            selectorServer.listen(Integer.parseInt(Settings.getProperty("remote_sketch_port")), new SketchConnection(), queryExecutor);
+            selectorServer.start();
+            return true;
+        } catch (NumberFormatException | IOException exception) {
+            logger.log(Level.SEVERE, "Unable to start selector server, using blocking server sockets", exception);
+            if (selectorServer != null) {
+                selectorServer.shutdown();
+                selectorServer = null;
+            }
+            return false;
+        }
     }
 
     // The following two methods are called by the Graph object when adding
@@ -714,6 +812,88 @@ public class Kernel {
         return resultGraph;
     }
 
+    /**
+     * Hands a connection to the bounded query worker pool. The connection
+     * holds its worker until it is closed, so up to query_queue_size
+     * connections wait for a worker and any further connection is refused by
+     * closing its socket rather than left waiting without a reply.
+     * A connection that sends nothing for query_connection_idle_timeout
+     * milliseconds is closed to free its worker.
+     *
+     * @param connection The connection handler.
+     * @param socket The socket of the connection.
+     */
+    private static void submitConnection(final Runnable connection, final Socket socket) {
+        if (!connectionPermits.tryAcquire()) {
+            refuseConnection(socket);
+            return;
+        }
+        try {
+            socket.setSoTimeout(QUERY_CONNECTION_IDLE_TIMEOUT);
+            queryExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        connection.run();
+                    } finally {
+                        connectionPermits.release();
+                        try {
+                            socket.close();
+                        } catch (IOException closeException) {
+                            logger.log(Level.FINE, null, closeException);
+                        }
+                    }
+                }
+            });
+        } catch (SocketException | RejectedExecutionException exception) {
+            connectionPermits.release();
+            refuseConnection(socket);
+        }
+    }
+
+    private static void refuseConnection(Socket socket) {
+        logger.log(Level.WARNING, "Refusing connection from {0}: all query workers and queue slots are busy", socket.getRemoteSocketAddress());
+        try {
+            socket.close();
+        } catch (IOException closeException) {
+            logger.log(Level.SEVERE, null, closeException);
+        }
+    }
+
+    /**
+     * Asks the main thread to force all storages to commit their pending
+     * transactions and blocks until a flush covering this request has
+     * completed. Requests made concurrently are coalesced into a single flush.
+     * If called from the main thread itself, the storages are flushed
+     * directly.
+     *
+     * @return True if the flush completed, false if SPADE is shutting down or
+     * the calling thread was interrupted.
+     */
+    public static boolean requestFlush() {
+        if (Thread.currentThread() == mainThread) {
+            for (AbstractStorage currentStorage : storages) {
+                currentStorage.flushTransactions(true);
+            }
+            return true;
+        }
+        synchronized (flushMonitor) {
+            long ticket = ++flushRequestCount;
+            while (flushCompletedCount < ticket) {
+                if (shutdown || mainThread == null || !mainThread.isAlive()) {
+                    return false;
+                }
+                try {
+                    flushMonitor.wait(REMOVE_WAIT_DELAY);
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     /**
      * Method to display control commands to the output stream. The control and
      * query commands are displayed using separate methods since these commands
@@ -753,6 +933,7 @@ public class Kernel {
         string.append("\t" + QUERY_PRINT_STRING + "\n");
         string.append("\t" + QUERY_EXPORT_STRING + "\n");
         string.append("\t" + QUERY_LIST_STRING + "\n");
+        string.append("\t" + QUERY_FRESH_STRING + "\n");
         // string.append("\t" + QUERY_SELECT_STORAGE + "\n");
         string.append("\t" + QUERY_EXIT_STRING);
         return string.toString();
@@ -967,6 +1148,7 @@ public class Kernel {
 	           
 	            synchronized (transformers) {
 					transformers.add(index, transformer);
+					TransformerCache.clear();
 				}
 	            
 	            logger.log(Level.INFO, "Transformer added: {0}", classname);
@@ -1097,6 +1279,9 @@ public class Kernel {
                 }
 			}
             outputStream.print(transformersListString);
+            if (TransformerCache.isEnabled()) {
+                outputStream.println(TransformerCache.getStatistics());
+            }
         } else if (tokens[1].equalsIgnoreCase("sketches")) {
             if (sketches.isEmpty()) {
                 // Nothing to list if the set of sketches is empty.
@@ -1244,6 +1429,7 @@ public class Kernel {
                 AbstractTransformer removed = null;
                 synchronized (transformers) {
                 	removed = transformers.remove(index);
+                	TransformerCache.clear();
 				}
                 if(removed != null){
                 	removed.shutdown();
@@ -1304,6 +1490,11 @@ public class Kernel {
                 logger.log(Level.SEVERE, null, ex);
             }
         }
+        if (selectorServer != null) {
+            selectorServer.shutdown();
+        }
+        queryExecutor.shutdownNow();
+        RemoteConnectionPool.shutdown();
         logger.log(Level.INFO, "SPADE turned off.");
         System.exit(0);
     }
@@ -1349,15 +1540,20 @@ final class NullStream {
     });
 }
 
-class LocalControlConnection implements Runnable {
+class LocalControlConnection implements Runnable, SelectorServer.LineSession {
 
 	private final Logger logger = Logger.getLogger(LocalControlConnection.class.getName());
     Socket controlSocket;
+    private PrintStream controlOutputStream;
 
     LocalControlConnection(Socket socket) {
         controlSocket = socket;
     }
 
+    LocalControlConnection(OutputStream outStream) {
+        controlOutputStream = new PrintStream(outStream);
+    }
+
     @Override
     public void run() {
         try {
@@ -1365,21 +1561,15 @@ class LocalControlConnection implements Runnable {
             InputStream inStream = controlSocket.getInputStream();
 
             BufferedReader controlInputStream = new BufferedReader(new InputStreamReader(inStream));
-            PrintStream controlOutputStream = new PrintStream(outStream);
+            controlOutputStream = new PrintStream(outStream);
             try {
                 while (!Kernel.shutdown) {
                     // Commands read from the input stream and executed.
                 	try{
 	                    String line = controlInputStream.readLine();
-	                    if (line == null || line.equalsIgnoreCase("exit")) {
+	                    if (line == null || !processLine(line)) {
 	                        break;
 	                    }
-	                    
-	                    Kernel.executeCommand(line, controlOutputStream);
-	                    
-                    	// An empty line is printed to let the client know that the command output is complete.
-                    	controlOutputStream.println("");
-
                 	}catch(SocketTimeoutException exception){
                 		logger.log(Level.SEVERE, null, exception);
                 	}
@@ -1401,38 +1591,54 @@ class LocalControlConnection implements Runnable {
             logger.log(Level.SEVERE, null, ex);
         }
     }
+
+    @Override
+    public boolean processLine(String line) {
+        if (line.equalsIgnoreCase("exit")) {
+            return false;
+        }
+
+        Kernel.executeCommand(line, controlOutputStream);
+
+        // An empty line is printed to let the client know that the command output is complete.
+        controlOutputStream.println("");
+        controlOutputStream.flush();
+        return true;
+    }
+
+    @Override
+    public void close() {
+        controlOutputStream.close();
+    }
 }
 
-class LocalQueryConnection implements Runnable {
+class LocalQueryConnection implements Runnable, SelectorServer.LineSession {
 
+    // An object of this class is instantiated when a query connection is made.
     Socket querySocket;
+    private ObjectOutputStream queryOutputStream;
 
     LocalQueryConnection(Socket socket) {
         querySocket = socket;
     }
 
+    LocalQueryConnection(OutputStream outStream) throws IOException {
+        queryOutputStream = new ObjectOutputStream(outStream);
+    }
+
     @Override
     public void run() {
         try {
             OutputStream outStream = querySocket.getOutputStream();
             InputStream inStream = querySocket.getInputStream();
-            ObjectOutputStream queryOutputStream = new ObjectOutputStream(outStream);
+            queryOutputStream = new ObjectOutputStream(outStream);
             BufferedReader queryInputStream = new BufferedReader(new InputStreamReader(inStream));
 
             while (!Kernel.shutdown) {
                 // Commands read from the input stream and executed.
                 String line = queryInputStream.readLine();
-                if (line.equalsIgnoreCase("exit")) {
+                if (line == null || !processLine(line)) {
                     break;
-                } else {
-                    Graph resultGraph = Query.executeQuery(line, false);
-                    if(resultGraph != null){
-                    	resultGraph = iterateTransformers(resultGraph, line);
-                        queryOutputStream.writeObject("graph");
-                        queryOutputStream.writeObject(resultGraph);
-                	}else {
-                        queryOutputStream.writeObject(Kernel.getQueryCommands());
-                    }
                 }
             }
             queryInputStream.close();
@@ -1441,29 +1647,85 @@ class LocalQueryConnection implements Runnable {
             inStream.close();
             outStream.close();
             querySocket.close();
+        } catch (SocketTimeoutException idle) {
+            Logger.getLogger(LocalQueryConnection.class.getName()).log(Level.INFO, "Closing idle query connection");
         } catch (Exception ex) {
             Logger.getLogger(LocalQueryConnection.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
+
+    @Override
+    public boolean processLine(String line) throws IOException {
+        if (line.equalsIgnoreCase("exit")) {
+            return false;
+        }
+        boolean freshRead = line.startsWith(Query.FRESH_READ_PREFIX);
+        if (freshRead) {
+            line = line.substring(Query.FRESH_READ_PREFIX.length());
+        }
+        QueryContext queryContext = QueryContext.admit();
+        if (queryContext == null) {
+            queryOutputStream.writeObject("Query rejected: too many queries are executing, try again later");
+            queryOutputStream.flush();
+            return true;
+        }
+        try {
+            Graph resultGraph = Query.executeQuery(line, false, freshRead);
+            if (resultGraph != null) {
+                resultGraph = iterateTransformers(resultGraph, line);
+            }
+            if (queryContext.isCancelled()) {
+                queryOutputStream.writeObject(queryContext.getCancellationReason());
+            } else if (resultGraph != null) {
+                queryOutputStream.writeObject("graph");
+                queryOutputStream.writeObject(resultGraph);
+            } else {
+                queryOutputStream.writeObject(Kernel.getQueryCommands());
+            }
+            // Results are not referenced again, so keep the stream from
+            // holding on to them.
+            queryOutputStream.reset();
+            queryOutputStream.flush();
+        } finally {
+            queryContext.release();
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        try {
+            queryOutputStream.close();
+        } catch (IOException exception) {
+            Logger.getLogger(LocalQueryConnection.class.getName()).log(Level.FINE, null, exception);
+        }
+    }
     
     public Graph iterateTransformers(Graph graph, String query){
 		synchronized (Kernel.transformers) {
+			if(Kernel.transformers.isEmpty()){
+				return graph;
+			}
 			QueryParameters digQueryParams = QueryParameters.parseQuery(query);
-			for(int i = 0; i< Kernel.transformers.size(); i++){
-				AbstractTransformer transformer = Kernel.transformers.get(i);
-				if(graph != null){
-					try{
-						graph = transformer.putGraph(graph, digQueryParams);
-						if(graph != null){
-							graph.commitIndex(); //commit after every transformer to enable reading without error
-						}
-					}catch(Exception e){
-						Logger.getLogger(getClass().getName()).log(Level.SEVERE, null, e);
-					}
-				}else{
-					break;
+			// Popular results are often transformed by the same chain again
+			String cacheKey = null;
+			if(TransformerCache.isEnabled()){
+				cacheKey = TransformerCache.getKey(graph, digQueryParams, Kernel.transformers);
+				Graph cachedGraph = TransformerCache.get(cacheKey);
+				if(cachedGraph != null){
+					return cachedGraph;
 				}
 			}
+			try{
+				// Consecutive edge transformers are fused into a single pass and
+				// intermediate graphs are only indexed if a transformer queries them
+				graph = TransformerChain.execute(graph, Kernel.transformers, digQueryParams);
+			}catch(QueryContext.CancelledException e){
+				return null;
+			}
+			if(cacheKey != null && graph != null){
+				TransformerCache.put(cacheKey, graph);
+			}
 		} 
 		
 		return graph;
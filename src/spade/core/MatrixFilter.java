@@ -27,38 +27,51 @@
  */
 package spade.core;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
 import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.LinkedList;
-import java.util.List;
-
-/*
- * @param <E> Object type that is to be inserted into the Bloom filter, e.g.
- * String or Integer. @author Magnus Skjegstad <magnus@skjegstad.com>
+import java.util.BitSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A matrix of Bloom filters. Each element selects k rows of the matrix, and
+ * each row is a Bloom filter of the elements added for the elements that
+ * select it.
+ *
+ * The rows are packed one after the other into a single block of 64-bit
+ * words outside the Java heap. Rows are combined a word at a time, and the k
+ * rows of an element are derived from a single hash of the element by double
+ * hashing. Only the words that have bits set are written when the matrix is
+ * serialized, so a sparse matrix is cheap to send to other hosts.
+ *
+ * Every change stamps the rows that it modified with a new version, so the
+ * rows changed after a version can be sent to another host as a Delta
+ * instead of the whole matrix.
+ *
+ * @author Magnus Skjegstad <magnus@skjegstad.com>
  */
 public class MatrixFilter implements Serializable {
 
-    private List<BloomFilter> filterSet;
+    // rows were separate BloomFilters, and were selected with other hashes, before this version
+    private static final long serialVersionUID = 2L;
+    private static final byte DENSE = 0;
+    private static final byte SPARSE = 1;
+
+    private transient LongBuffer matrix; // filterSetSize rows of wordsPerRow words
+    private transient int wordsPerRow;
+    private transient long epoch; // identifies this instance in versions, changes when bits are cleared
+    private transient long version; // version of the last change
+    private transient long[] rowVersions; // version of the last change to each row
     private int filterSetSize;
     private double filtersPerElement;
     private int expectedNumberOfElements; // expected (maximum) number of elements to be added
     private int numberOfAddedElements; // number of elements actually added to the Bloom filter
     private int k; // number of hash functions
     static final Charset charset = Charset.forName("UTF-8"); // encoding used for storing hash values as strings
-    static final String hashName = "MD5"; // MD5 gives good enough accuracy in most circumstances. Change to SHA1 if it's needed
-    static final MessageDigest digestFunction;
-
-    static { // The digest method is reused between instances
-        MessageDigest tmp;
-        try {
-            tmp = java.security.MessageDigest.getInstance(hashName);
-        } catch (NoSuchAlgorithmException e) {
-            tmp = null;
-        }
-        digestFunction = tmp;
-    }
 
     /**
      * Constructs an empty Bloom filter. The total length of the Bloom filter
@@ -74,10 +87,7 @@ public class MatrixFilter implements Serializable {
         this.filtersPerElement = c;
         this.filterSetSize = (int) Math.ceil(c * n);
         numberOfAddedElements = 0;
-        this.filterSet = new LinkedList<>();
-        for (int i = 0; i < this.filterSetSize; i++) {
-            this.filterSet.add(new BloomFilter(c, n, k));
-        }
+        allocate();
     }
 
     /**
@@ -112,57 +122,47 @@ public class MatrixFilter implements Serializable {
                 (int) Math.ceil(-(Math.log(falsePositiveProbability) / Math.log(2)))); // k = ceil(-log_2(false prob.))
     }
 
-    public BloomFilter getAllBloomFilters() {
-        BloomFilter result = new BloomFilter(filtersPerElement, expectedNumberOfElements, k);
-        result.getBitSet().set(0, result.getBitSet().size() - 1, false);
-        for (int i = 0; i < filterSet.size(); i++) {
-            BloomFilter currentFilter = filterSet.get(i);
-            result.getBitSet().or(currentFilter.getBitSet());
+    private void allocate() {
+        // every row is a Bloom filter of filterSetSize bits
+        wordsPerRow = (filterSetSize + 63) >>> 6;
+        long bytes = (long) filterSetSize * wordsPerRow * 8;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Matrix filter of " + filterSetSize + " rows is too large");
         }
-        return result;
+        matrix = ByteBuffer.allocateDirect((int) bytes).asLongBuffer();
+        rowVersions = new long[filterSetSize];
+        epoch = ThreadLocalRandom.current().nextLong();
     }
 
-    /**
-     * Generates a digest based on the contents of a String.
-     *
-     * @param val specifies the input data.
-     * @param charset specifies the encoding of the input data.
-     * @return digest as long.
-     */
-    public static long createHash(String val, Charset charset) {
-        return createHash(val.getBytes(charset));
+    public BloomFilter getAllBloomFilters() {
+        long[] words = new long[wordsPerRow];
+        for (int row = 0; row < filterSetSize; row++) {
+            int offset = row * wordsPerRow;
+            for (int i = 0; i < wordsPerRow; i++) {
+                words[i] |= matrix.get(offset + i);
+            }
+        }
+        return toBloomFilter(words);
     }
 
-    /**
-     * Generates a digest based on the contents of a String.
-     *
-     * @param val specifies the input data. The encoding is expected to be
-     * UTF-8.
-     * @return digest as long.
-     */
-    public static long createHash(String val) {
-        return createHash(val, charset);
+    private BloomFilter toBloomFilter(long[] words) {
+        return new BloomFilter(filtersPerElement, expectedNumberOfElements, k, BitSet.valueOf(words));
     }
 
     /**
-     * Generates a digest based on the contents of an array of bytes.
+     * Computes the k rows of an element.
      *
-     * @param data specifies input data.
-     * @return digest as long.
+     * @param vertex the element.
+     * @return the offsets of the first words of the rows.
      */
-    public static long createHash(byte[] data) {
-        long h = 0;
-        byte[] res;
-
-        synchronized (digestFunction) {
-            res = digestFunction.digest(data);
-        }
-
-        for (int i = 0; i < 4; i++) {
-            h <<= 8;
-            h |= ((int) res[i]) & 0xFF;
+    private int[] getRows(AbstractVertex vertex) {
+        long[] hash = new long[2];
+        BloomFilter.murmurHash3(sketchString(vertex).getBytes(charset), hash);
+        int[] rows = new int[k];
+        for (int x = 0; x < k; x++) {
+            rows[x] = BloomFilter.getIndex(hash[0], hash[1], x, filterSetSize) * wordsPerRow;
         }
-        return h;
+        return rows;
     }
 
     /**
@@ -189,10 +189,7 @@ public class MatrixFilter implements Serializable {
         if (this.filterSetSize != other.filterSetSize) {
             return false;
         }
-        if (this.filterSet != other.filterSet && (this.filterSet == null || !this.filterSet.equals(other.filterSet))) {
-            return false;
-        }
-        return true;
+        return this.matrix.duplicate().rewind().equals(other.matrix.duplicate().rewind());
     }
 
     /**
@@ -203,7 +200,7 @@ public class MatrixFilter implements Serializable {
     @Override
     public int hashCode() {
         int hash = 7;
-        hash = 61 * hash + (this.filterSet != null ? this.filterSet.hashCode() : 0);
+        hash = 61 * hash + this.matrix.duplicate().rewind().hashCode();
         hash = 61 * hash + this.expectedNumberOfElements;
         hash = 61 * hash + this.filterSetSize;
         hash = 61 * hash + this.k;
@@ -264,9 +261,14 @@ public class MatrixFilter implements Serializable {
     /**
      * Sets all bits to false in the Bloom filter.
      */
-    public void clear() {
-        filterSet.clear();
+    public synchronized void clear() {
+        for (int i = 0; i < matrix.capacity(); i++) {
+            matrix.put(i, 0);
+        }
         numberOfAddedElements = 0;
+        // cleared bits cannot be sent as a delta, so the whole matrix is sent next
+        epoch = ThreadLocalRandom.current().nextLong();
+        version++;
     }
 
     /**
@@ -276,40 +278,138 @@ public class MatrixFilter implements Serializable {
      * @param destinationVertex is an element to register in the Bloom filter.
      * @param sourceVertex
      */
-    public void add(AbstractVertex destinationVertex, AbstractVertex sourceVertex) {
-        long hash;
-        String valString = sketchString(destinationVertex);
-        for (int x = 0; x < k; x++) {
-            hash = createHash(valString + Integer.toString(x));
-            hash = hash % (long) filterSetSize;
-            filterSet.get(Math.abs((int) hash)).add(sourceVertex);
+    public synchronized void add(AbstractVertex destinationVertex, AbstractVertex sourceVertex) {
+        long[] hash = new long[2];
+        BloomFilter.murmurHash3(sourceVertex.toString().getBytes(charset), hash);
+        long next = version + 1;
+        for (int offset : getRows(destinationVertex)) {
+            for (int i = 0; i < k; i++) {
+                int bit = BloomFilter.getIndex(hash[0], hash[1], i, filterSetSize);
+                setWord(offset + (bit >>> 6), 1L << bit, next);
+            }
         }
         numberOfAddedElements++;
     }
 
-    public void updateAncestors(AbstractVertex vertex, BloomFilter ancestorsToAdd) {
-        long hash;
-        String valString = sketchString(vertex);
-        for (int x = 0; x < k; x++) {
-            hash = createHash(valString + Integer.toString(x));
-            hash = hash % (long) filterSetSize;
-            filterSet.get(Math.abs((int) hash)).getBitSet().or(ancestorsToAdd.getBitSet());
+    public synchronized void updateAncestors(AbstractVertex vertex, BloomFilter ancestorsToAdd) {
+        long[] ancestors = ancestorsToAdd.getBitSet().toLongArray();
+        int words = Math.min(ancestors.length, wordsPerRow);
+        long next = version + 1;
+        for (int offset : getRows(vertex)) {
+            for (int i = 0; i < words; i++) {
+                setWord(offset + i, ancestors[i], next);
+            }
         }
         numberOfAddedElements++;
     }
 
+    /**
+     * Sets bits of a word and stamps its row with the version if any of them
+     * were not set.
+     */
+    private void setWord(int word, long bits, long next) {
+        long current = matrix.get(word);
+        if ((current | bits) != current) {
+            matrix.put(word, current | bits);
+            rowVersions[word / wordsPerRow] = next;
+            version = next;
+        }
+    }
+
+    /**
+     * @return The version of the current contents of this matrix filter.
+     */
+    public synchronized Version getVersion() {
+        return new Version(epoch, version);
+    }
+
+    /**
+     * Returns the changes to this matrix filter after a version. The delta
+     * holds the whole matrix if the version is null or is not a version of
+     * this instance, or if bits were cleared after it.
+     *
+     * @param since A version returned by getVersion() or Delta.getVersion()
+     * for this matrix filter, or null.
+     * @return The changes after the version.
+     */
+    public synchronized Delta getDelta(Version since) {
+        if (since == null || since.epoch != epoch || since.number > version) {
+            return new Delta(epoch, version, this, numberOfAddedElements, 0, null, null);
+        }
+        int changedWords = 0;
+        for (int row = 0; row < filterSetSize; row++) {
+            if (rowVersions[row] > since.number) {
+                int offset = row * wordsPerRow;
+                for (int i = 0; i < wordsPerRow; i++) {
+                    if (matrix.get(offset + i) != 0) {
+                        changedWords++;
+                    }
+                }
+            }
+        }
+        int[] positions = new int[changedWords];
+        long[] words = new long[changedWords];
+        int j = 0;
+        for (int row = 0; row < filterSetSize && j < changedWords; row++) {
+            if (rowVersions[row] > since.number) {
+                int offset = row * wordsPerRow;
+                for (int i = 0; i < wordsPerRow; i++) {
+                    long word = matrix.get(offset + i);
+                    if (word != 0) {
+                        positions[j] = offset + i;
+                        words[j++] = word;
+                    }
+                }
+            }
+        }
+        return new Delta(epoch, version, null, numberOfAddedElements, matrix.capacity(), positions, words);
+    }
+
+    /**
+     * Sets the bits of a delta in this matrix filter. The bits of a delta that
+     * holds the whole matrix are added to the bits already set, so bits that
+     * were merged from other matrix filters are kept.
+     *
+     * @param delta The changes to another matrix filter.
+     * @return False if the delta is for a matrix filter of a different size.
+     */
+    public synchronized boolean merge(Delta delta) {
+        long next = version + 1;
+        if (delta.isFull()) {
+            // the matrix of a full delta was deserialized and is not shared
+            LongBuffer other = delta.matrixFilter.matrix;
+            if (other.capacity() != matrix.capacity()) {
+                return false;
+            }
+            for (int i = 0; i < other.capacity(); i++) {
+                long word = other.get(i);
+                if (word != 0) {
+                    setWord(i, word, next);
+                }
+            }
+        } else {
+            if (delta.size != matrix.capacity()) {
+                return false;
+            }
+            for (int j = 0; j < delta.positions.length; j++) {
+                setWord(delta.positions[j], delta.words[j], next);
+            }
+        }
+        numberOfAddedElements = Math.max(numberOfAddedElements, delta.count);
+        return true;
+    }
+
     public BloomFilter get(AbstractVertex vertex) {
-        BloomFilter result = new BloomFilter(filtersPerElement, expectedNumberOfElements, k);
-        result.getBitSet().set(0, result.getBitSet().size() - 1, true);
-        long hash;
-        String valString = sketchString(vertex);
-        for (int x = 0; x < k; x++) {
-            hash = createHash(valString + Integer.toString(x));
-            hash = hash % (long) filterSetSize;
-            BloomFilter tempBloomFilter = filterSet.get(Math.abs((int) hash));
-            result.getBitSet().and(tempBloomFilter.getBitSet());
+        int[] rows = getRows(vertex);
+        long[] words = new long[wordsPerRow];
+        for (int i = 0; i < wordsPerRow; i++) {
+            long word = matrix.get(rows[0] + i);
+            for (int x = 1; x < rows.length && word != 0; x++) {
+                word &= matrix.get(rows[x] + i);
+            }
+            words[i] = word;
         }
-        return result;
+        return toBloomFilter(words);
     }
 
     /**
@@ -322,13 +422,14 @@ public class MatrixFilter implements Serializable {
      * filter.
      */
     public boolean contains(AbstractVertex vertex) {
-        long hash;
-        String valString = sketchString(vertex);
-        for (int x = 0; x < k; x++) {
-            hash = createHash(valString + Integer.toString(x));
-            hash = hash % (long) filterSetSize;
-            if (!filterSet.get(Math.abs((int) hash)).contains(vertex)) {
-                return false;
+        long[] hash = new long[2];
+        BloomFilter.murmurHash3(vertex.toString().getBytes(charset), hash);
+        for (int offset : getRows(vertex)) {
+            for (int i = 0; i < k; i++) {
+                int bit = BloomFilter.getIndex(hash[0], hash[1], i, filterSetSize);
+                if ((matrix.get(offset + (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
             }
         }
         return true;
@@ -397,4 +498,123 @@ public class MatrixFilter implements Serializable {
         }
         return result;
     }
+
+    /**
+     * Writes the words of the matrix after the fields. Only the words that have
+     * bits set, with their positions, are written if that is shorter.
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        int words = matrix.capacity();
+        int nonZeroWords = 0;
+        for (int i = 0; i < words; i++) {
+            if (matrix.get(i) != 0) {
+                nonZeroWords++;
+            }
+        }
+        // 4 bytes of position and 8 of bits per word when sparse
+        if ((long) nonZeroWords * 12 < (long) words * 8) {
+            out.writeByte(SPARSE);
+            out.writeInt(nonZeroWords);
+            for (int i = 0; i < words; i++) {
+                long word = matrix.get(i);
+                if (word != 0) {
+                    out.writeInt(i);
+                    out.writeLong(word);
+                }
+            }
+        } else {
+            out.writeByte(DENSE);
+            for (int i = 0; i < words; i++) {
+                out.writeLong(matrix.get(i));
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        // the copy gets an epoch of its own, so versions of the original never match it
+        allocate();
+        byte encoding = in.readByte();
+        if (encoding == SPARSE) {
+            int nonZeroWords = in.readInt();
+            for (int j = 0; j < nonZeroWords; j++) {
+                int i = in.readInt();
+                matrix.put(i, in.readLong());
+            }
+        } else {
+            for (int i = 0; i < matrix.capacity(); i++) {
+                matrix.put(i, in.readLong());
+            }
+        }
+    }
+
+    /**
+     * Identifies the contents of a matrix filter at some point in time.
+     */
+    public static class Version implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        final long epoch;
+        final long number;
+
+        Version(long epoch, long number) {
+            this.epoch = epoch;
+            this.number = number;
+        }
+    }
+
+    /**
+     * The rows of a matrix filter that changed after a version, or the whole
+     * matrix filter if the changes cannot be described by the bits that were
+     * set.
+     */
+    public static final class Delta extends Version {
+
+        private static final long serialVersionUID = 1L;
+        private final MatrixFilter matrixFilter;
+        private final int count;
+        private final int size;
+        private final int[] positions;
+        private final long[] words;
+
+        private Delta(long epoch, long number, MatrixFilter matrixFilter, int count, int size, int[] positions, long[] words) {
+            super(epoch, number);
+            this.matrixFilter = matrixFilter;
+            this.count = count;
+            this.size = size;
+            this.positions = positions;
+            this.words = words;
+        }
+
+        /**
+         * @return True if this delta holds the whole matrix filter.
+         */
+        public boolean isFull() {
+            return matrixFilter != null;
+        }
+
+        /**
+         * @return True if there are no changes in this delta.
+         */
+        public boolean isEmpty() {
+            return matrixFilter == null && positions.length == 0;
+        }
+
+        /**
+         * @return The whole matrix filter, or null if this delta only holds
+         * the changed rows.
+         */
+        public MatrixFilter getMatrixFilter() {
+            return matrixFilter;
+        }
+
+        /**
+         * @return The version of the matrix filter that this delta brings a
+         * copy up to, without the changes.
+         */
+        public Version getVersion() {
+            return new Version(epoch, number);
+        }
+    }
 }
@@ -0,0 +1,132 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import spade.utility.CommonFunctions;
+
+/**
+ * Maps the elements of a graph in parallel for partitionable transformers. The
+ * elements are split into partitions that are mapped on a fork/join pool, and
+ * the results are concatenated in the order of the input so that the output
+ * does not depend on the scheduling of the partitions.
+ * 
+ * Parallel mapping is off unless transformer_parallelism is set to more than 1.
+ */
+public class Partitions {
+	
+	private static final int PARALLELISM = CommonFunctions.parseInt(Settings.getProperty("transformer_parallelism"), 1);
+	private static final int PARTITION_SIZE = Math.max(1, CommonFunctions.parseInt(Settings.getProperty("transformer_partition_size"), 4096));
+	private static ForkJoinPool pool;
+	
+	/**
+	 * Maps a single element.
+	 * 
+	 * @param <T> The type of the input elements.
+	 * @param <R> The type of the results.
+	 */
+	public interface Mapper<T, R>{
+		
+		/**
+		 * Must be safe to call concurrently for different elements.
+		 * 
+		 * @param element The element to map.
+		 * @return The result or null if the element is to be skipped.
+		 */
+		R map(T element);
+	}
+	
+	/**
+	 * @return True if transformers should partition their work.
+	 */
+	public static boolean isEnabled(){
+		return PARALLELISM > 1;
+	}
+	
+	/**
+	 * Maps all elements, in parallel if enabled and there is more than one partition.
+	 * 
+	 * @param elements The elements to map.
+	 * @param mapper The mapper to apply to every element.
+	 * @return The non-null results in the iteration order of the elements.
+	 */
+	public static <T, R> List<R> map(Collection<T> elements, Mapper<T, R> mapper){
+		List<T> input = new ArrayList<T>(elements);
+		if(!isEnabled() || input.size() <= PARTITION_SIZE){
+			return mapRange(input, 0, input.size(), mapper);
+		}
+		return getPool().invoke(new MapTask<T, R>(input, 0, input.size(), mapper));
+	}
+	
+	private static synchronized ForkJoinPool getPool(){
+		if(pool == null){
+			pool = new ForkJoinPool(PARALLELISM);
+		}
+		return pool;
+	}
+	
+	private static <T, R> List<R> mapRange(List<T> input, int from, int to, Mapper<T, R> mapper){
+		List<R> results = new ArrayList<R>(to - from);
+		for(int i = from; i < to; i++){
+			R result = mapper.map(input.get(i));
+			if(result != null){
+				results.add(result);
+			}
+		}
+		return results;
+	}
+	
+	private static class MapTask<T, R> extends RecursiveTask<List<R>>{
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final List<T> input;
+		private final int from, to;
+		private final Mapper<T, R> mapper;
+		
+		private MapTask(List<T> input, int from, int to, Mapper<T, R> mapper){
+			this.input = input;
+			this.from = from;
+			this.to = to;
+			this.mapper = mapper;
+		}
+		
+		@Override
+		protected List<R> compute(){
+			if(to - from <= PARTITION_SIZE){
+				return mapRange(input, from, to, mapper);
+			}
+			int middle = (from + to) >>> 1;
+			MapTask<T, R> left = new MapTask<T, R>(input, from, middle, mapper);
+			MapTask<T, R> right = new MapTask<T, R>(input, middle, to, mapper);
+			left.fork();
+			List<R> results = right.compute();
+			List<R> leftResults = left.join();
+			leftResults.addAll(results);
+			return leftResults;
+		}
+	}
+	
+}
@@ -26,16 +26,29 @@ import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.net.ssl.SSLSocket;
+
+import spade.utility.CommonFunctions;
 
 /**
  *
@@ -43,17 +56,42 @@ import javax.net.ssl.SSLSocket;
  */
 public class Query {
 
-    private static final int WAIT_FOR_FLUSH = 10;
     private static final Logger logger = Logger.getLogger(Query.class.getName());
     protected static final boolean DEBUG_OUTPUT = false;
     private static final String ID_STRING = Settings.getProperty("storage_identifier");
     private static final String QUERY_STORAGE = Settings.getProperty("default_query_storage");
+    private static final int REMOTE_QUERY_THREADS = CommonFunctions.parseInt(Settings.getProperty("remote_query_threads"), 16);
+    private static final int REMOTE_QUERY_HOST_CONCURRENCY = CommonFunctions.parseInt(Settings.getProperty("remote_query_host_concurrency"), 4);
+    private static final long SKETCH_UPDATE_TIMEOUT = CommonFunctions.parseLong(Settings.getProperty("sketch_update_timeout"), 60000L);
+    private static final ExecutorService remoteQueryExecutor = createRemoteQueryExecutor();
+
+    /**
+     * Prefix that a client can put in front of a query line to ask for a fresh
+     * read, i.e., one that sees all provenance received by SPADE up to this
+     * point instead of the last data committed by the storages.
+     */
+    public static final String FRESH_READ_PREFIX = "fresh ";
+    private static final boolean FRESH_READS_BY_DEFAULT = Boolean.parseBoolean(Settings.getProperty("fresh_query_reads"));
+
+    private static ExecutorService createRemoteQueryExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(REMOTE_QUERY_THREADS, REMOTE_QUERY_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "remoteLineage-Thread");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
     /**
      * This method is used to call query methods on the desired storage. The
-     * transactions are also flushed to ensure that the data in the storages is
-     * consistent and updated with all the data received by SPADE up to this
-     * point.
+     * query is answered from the data that the storages have already
+     * committed, so it never waits for the main thread. Use
+     * executeQuery(String, boolean, boolean) to ask for a fresh read instead.
      *
      * @param line The query string.
      * @param resolveRemote A boolean used to indicate whether or not remote
@@ -61,18 +99,33 @@ public class Query {
      * @return The result represented by a Graph object.
      */
     public static Graph executeQuery(String line, boolean resolveRemote) {
+        if (line != null && line.startsWith(FRESH_READ_PREFIX)) {
+            return executeQuery(line.substring(FRESH_READ_PREFIX.length()), resolveRemote, true);
+        }
+        return executeQuery(line, resolveRemote, FRESH_READS_BY_DEFAULT);
+    }
+
+    /**
+     * This method is used to call query methods on the desired storage. If a
+     * fresh read is requested, the storages are first forced to commit their
+     * pending transactions so that the data in the storages is consistent and
+     * updated with all the data received by SPADE up to this point. Concurrent
+     * fresh reads share a single flush.
+     *
+     * @param line The query string.
+     * @param resolveRemote A boolean used to indicate whether or not remote
+     * edges need to be resolved.
+     * @param freshRead True if pending transactions must be committed before
+     * the query is run.
+     * @return The result represented by a Graph object.
+     */
+    public static Graph executeQuery(String line, boolean resolveRemote, boolean freshRead) {
         Graph resultGraph = null;
-        Kernel.flushTransactions = true;
 
         long begintime = 0, endtime = 0;
 
-        while (Kernel.flushTransactions) {
-            try {
-                // wait for other thread to flush transactions
-                Thread.sleep(WAIT_FOR_FLUSH);
-            } catch (Exception exception) {
-                logger.log(Level.SEVERE, null, exception);
-            }
+        if (freshRead && !Kernel.requestFlush()) {
+            logger.log(Level.WARNING, "Unable to flush transactions for fresh read");
         }
         if ((line == null) || (Kernel.storages.isEmpty())) {
             return null;
@@ -115,6 +168,10 @@ public class Query {
                     }
                 }
             }
+            QueryContext.checkpoint(resultGraph);
+        } catch (QueryContext.CancelledException cancelled) {
+            logger.log(Level.WARNING, "{0}: {1}", new Object[]{cancelled.getMessage(), line});
+            return null;
         } catch (Exception badQuery) {
             logger.log(Level.SEVERE, null, badQuery);
             return null;
@@ -161,27 +218,14 @@ public class Query {
         try {
             String[] tokens = queryLine.split("\\s+", 2);
             String host = tokens[0];
-            String queryExpression = tokens[1];
-            // Connect to the specified host and query for vertices.
-            int port = Integer.parseInt(Settings.getProperty("remote_query_port"));
-            SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(host, port);
-
-            OutputStream outStream = remoteSocket.getOutputStream();
-            InputStream inStream = remoteSocket.getInputStream();
-            ObjectInputStream graphInputStream = new ObjectInputStream(inStream);
-            PrintWriter remoteSocketOut = new PrintWriter(outStream, true);
-
-            String srcExpression = "query Neo4j vertices " + queryExpression;
-            remoteSocketOut.println(srcExpression);
-            Graph resultGraph = (Graph) graphInputStream.readObject();
-
-            remoteSocketOut.println("close");
-            graphInputStream.close();
-            remoteSocketOut.close();
-            inStream.close();
-            outStream.close();
-            remoteSocket.close();
-            return resultGraph;
+            final String queryExpression = tokens[1];
+            // Query the specified host for vertices.
+            return RemoteConnectionPool.executeQuery(host, new RemoteConnectionPool.Request<Graph>() {
+                @Override
+                public Graph execute(RemoteConnectionPool.RemoteConnection connection) throws IOException, ClassNotFoundException {
+                    return connection.query("query Neo4j vertices " + queryExpression);
+                }
+            });
         } catch (NumberFormatException | IOException | ClassNotFoundException badQuery) {
             logger.log(Level.SEVERE, null, badQuery);
             return null;
@@ -198,39 +242,10 @@ public class Query {
             String terminatingExpression = tokens[3];
             resultGraph = storage.getLineage(Integer.parseInt(vertexId), depth, direction, terminatingExpression);
             if (resolveRemote) {
-                // Perform the remote queries here. A temporary remoteGraph is
-                // created to store the results of the remote queries and then
+                // Perform the remote queries here. The lineage of the network
+                // vertexes is fetched from the remote hosts concurrently and
                 // added to the final resultGraph
-                Graph remoteGraph = new Graph();
-                // Get the map of network vertexes of our current graph
-                Map<AbstractVertex, Integer> currentNetworkMap = resultGraph.networkMap();
-                // Perform remote queries until the network map is exhausted
-                while (!currentNetworkMap.isEmpty()) {
-                    // Perform remote query on current network vertex and union
-                    // the result with the remoteGraph. This also adds the network
-                    // vertexes to the remoteGraph as well, so that deeper level
-                    // network queries are resolved iteratively
-                    for (Map.Entry<AbstractVertex, Integer> currentEntry : currentNetworkMap.entrySet()) {
-                        AbstractVertex networkVertex = currentEntry.getKey();
-                        int currentDepth = currentEntry.getValue();
-                        // Execute remote query
-                        Graph tempRemoteGraph = queryNetworkVertex(networkVertex, depth - currentDepth, direction, terminatingExpression);
-                        // Update the depth values of all network artifacts in the
-                        // remote network map to reflect current level of iteration
-                        for (Map.Entry<AbstractVertex, Integer> currentNetworkEntry : tempRemoteGraph.networkMap().entrySet()) {
-                            AbstractVertex tempNetworkVertex = currentNetworkEntry.getKey();
-                            int updatedDepth = currentDepth + currentNetworkEntry.getValue();
-                            tempRemoteGraph.putNetworkVertex(tempNetworkVertex, updatedDepth);
-                        }
-                        // Add the lineage of the current network node to the
-                        // overall result
-                        remoteGraph = Graph.union(remoteGraph, tempRemoteGraph);
-                    }
-                    currentNetworkMap.clear();
-                    // Set the networkMap to network vertexes of the newly
-                    // create remoteGraph
-                    currentNetworkMap = remoteGraph.networkMap();
-                }
+                Graph remoteGraph = resolveRemoteLineage(resultGraph.networkMap(), depth, direction, terminatingExpression);
                 resultGraph = Graph.union(resultGraph, remoteGraph);
             }
         } catch (Exception exception) {
@@ -240,6 +255,133 @@ public class Query {
         return resultGraph;
     }
 
+    /**
+     * Resolves the lineage of network vertexes on the remote hosts they
+     * connect to. All network vertexes at the same level are queried
+     * concurrently, with at most REMOTE_QUERY_HOST_CONCURRENCY outstanding
+     * queries per host. The next query for a host is only submitted once one
+     * of its queries has completed, so the workers are never blocked waiting
+     * for a busy host. Network vertexes that describe the same connection are
+     * queried only once, and results are merged as they arrive. Network
+     * vertexes returned by the remote hosts form the next level.
+     *
+     * @param networkMap The network vertexes of the local lineage with their
+     * depth.
+     * @param depth The depth of the lineage query.
+     * @param direction The direction of the lineage query.
+     * @param terminatingExpression The terminating expression of the lineage
+     * query.
+     * @return The union of the remote lineages.
+     */
+    private static Graph resolveRemoteLineage(Map<AbstractVertex, Integer> networkMap, final int depth, final String direction,
+            final String terminatingExpression) throws InterruptedException {
+        Graph remoteGraph = new Graph();
+        Set<String> queriedConnections = new HashSet<>();
+        Map<AbstractVertex, Integer> currentNetworkMap = new HashMap<>(networkMap);
+        while (!currentNetworkMap.isEmpty()) {
+            // Coalesce network vertexes of the same connection, keeping the
+            // shallowest occurrence since it leaves the most depth remaining.
+            Map<String, Map.Entry<AbstractVertex, Integer>> uniqueConnections = new LinkedHashMap<>();
+            for (Map.Entry<AbstractVertex, Integer> currentEntry : currentNetworkMap.entrySet()) {
+                String connection = connectionKey(currentEntry.getKey());
+                if (queriedConnections.contains(connection) || depth - currentEntry.getValue() <= 0) {
+                    continue;
+                }
+                Map.Entry<AbstractVertex, Integer> existingEntry = uniqueConnections.get(connection);
+                if (existingEntry == null || existingEntry.getValue() > currentEntry.getValue()) {
+                    uniqueConnections.put(connection, currentEntry);
+                }
+            }
+            queriedConnections.addAll(uniqueConnections.keySet());
+
+            // Group the queries by host. Each host starts with up to
+            // REMOTE_QUERY_HOST_CONCURRENCY queries, submitted round-robin, and
+            // gets its next query when one of its queries completes.
+            Map<String, LinkedList<Map.Entry<AbstractVertex, Integer>>> hostQueues = new LinkedHashMap<>();
+            for (Map.Entry<AbstractVertex, Integer> currentEntry : uniqueConnections.values()) {
+                String host = currentEntry.getKey().getAnnotation("destination host");
+                LinkedList<Map.Entry<AbstractVertex, Integer>> hostQueue = hostQueues.get(host);
+                if (hostQueue == null) {
+                    hostQueue = new LinkedList<>();
+                    hostQueues.put(host, hostQueue);
+                }
+                hostQueue.add(currentEntry);
+            }
+            CompletionService<Graph> completionService = new ExecutorCompletionService<>(remoteQueryExecutor);
+            Map<Future<Graph>, Map.Entry<AbstractVertex, Integer>> pendingQueries = new HashMap<>();
+            for (int round = 0; round < REMOTE_QUERY_HOST_CONCURRENCY; round++) {
+                for (LinkedList<Map.Entry<AbstractVertex, Integer>> hostQueue : hostQueues.values()) {
+                    if (!hostQueue.isEmpty()) {
+                        Map.Entry<AbstractVertex, Integer> currentEntry = hostQueue.removeFirst();
+                        pendingQueries.put(submitRemoteQuery(completionService, currentEntry, depth, direction, terminatingExpression), currentEntry);
+                    }
+                }
+            }
+
+            // Merge the remote lineages as they arrive and collect the network
+            // vertexes for the next level, with depths relative to this host.
+            Map<AbstractVertex, Integer> nextNetworkMap = new HashMap<>();
+            try {
+                while (!pendingQueries.isEmpty()) {
+                    Future<Graph> future = completionService.take();
+                    Map.Entry<AbstractVertex, Integer> completedEntry = pendingQueries.remove(future);
+                    LinkedList<Map.Entry<AbstractVertex, Integer>> hostQueue = hostQueues.get(completedEntry.getKey().getAnnotation("destination host"));
+                    if (!hostQueue.isEmpty()) {
+                        Map.Entry<AbstractVertex, Integer> nextEntry = hostQueue.removeFirst();
+                        pendingQueries.put(submitRemoteQuery(completionService, nextEntry, depth, direction, terminatingExpression), nextEntry);
+                    }
+                    int currentDepth = completedEntry.getValue();
+                    Graph tempRemoteGraph;
+                    try {
+                        tempRemoteGraph = future.get();
+                    } catch (ExecutionException exception) {
+                        logger.log(Level.SEVERE, null, exception.getCause());
+                        continue;
+                    }
+                    if (tempRemoteGraph == null) {
+                        continue;
+                    }
+                    for (AbstractVertex vertex : tempRemoteGraph.vertexSet()) {
+                        remoteGraph.putVertex(vertex);
+                    }
+                    for (AbstractEdge edge : tempRemoteGraph.edgeSet()) {
+                        remoteGraph.putEdge(edge);
+                    }
+                    for (Map.Entry<AbstractVertex, Integer> currentNetworkEntry : tempRemoteGraph.networkMap().entrySet()) {
+                        int updatedDepth = currentDepth + currentNetworkEntry.getValue();
+                        Integer existingDepth = nextNetworkMap.get(currentNetworkEntry.getKey());
+                        if (existingDepth == null || existingDepth > updatedDepth) {
+                            nextNetworkMap.put(currentNetworkEntry.getKey(), updatedDepth);
+                        }
+                    }
+                    QueryContext.checkpoint(remoteGraph);
+                }
+            } finally {
+                for (Future<Graph> future : pendingQueries.keySet()) {
+                    future.cancel(true);
+                }
+            }
+            currentNetworkMap = nextNetworkMap;
+        }
+        remoteGraph.commitIndex();
+        return remoteGraph;
+    }
+
+    private static String connectionKey(AbstractVertex networkVertex) {
+        return networkVertex.getAnnotation("source host") + ":" + networkVertex.getAnnotation("source port") + "->"
+                + networkVertex.getAnnotation("destination host") + ":" + networkVertex.getAnnotation("destination port");
+    }
+
+    private static Future<Graph> submitRemoteQuery(CompletionService<Graph> completionService, final Map.Entry<AbstractVertex, Integer> networkEntry,
+            final int depth, final String direction, final String terminatingExpression) {
+        return completionService.submit(new Callable<Graph>() {
+            @Override
+            public Graph call() throws Exception {
+                return queryNetworkVertex(networkEntry.getKey(), depth - networkEntry.getValue(), direction, terminatingExpression);
+            }
+        });
+    }
+
     private static Graph queryPaths(String queryLine, AbstractStorage storage) {
         try {
             String[] tokens = queryLine.split("\\s+");
@@ -270,45 +412,23 @@ public class Query {
             } else {
                 Graph srcGraph, dstGraph;
 
-                // Connect to source host and get upward lineage
-                int port = Integer.parseInt(Settings.getProperty("remote_query_port"));
-                SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(srcHost, port);
-
-                OutputStream outStream = remoteSocket.getOutputStream();
-                InputStream inStream = remoteSocket.getInputStream();
-                ObjectInputStream graphInputStream = new ObjectInputStream(inStream);
-                PrintWriter remoteSocketOut = new PrintWriter(outStream, true);
-
-                String srcExpression = "query Neo4j lineage " + srcVertexId + " " + maxLength + " ancestors null";
-                remoteSocketOut.println(srcExpression);
-                srcGraph = (Graph) graphInputStream.readObject();
-
-                remoteSocketOut.println("close");
-                graphInputStream.close();
-                remoteSocketOut.close();
-                inStream.close();
-                outStream.close();
-                remoteSocket.close();
-
-                // Connect to destination host and get downward lineage
-                port = Integer.parseInt(Settings.getProperty("remote_query_port"));
-                remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(dstHost, port);
-
-                outStream = remoteSocket.getOutputStream();
-                inStream = remoteSocket.getInputStream();
-                graphInputStream = new ObjectInputStream(inStream);
-                remoteSocketOut = new PrintWriter(outStream, true);
-
-                String dstExpression = "query Neo4j lineage " + dstVertexId + " " + maxLength + " descendants null";
-                remoteSocketOut.println(dstExpression);
-                dstGraph = (Graph) graphInputStream.readObject();
-
-                remoteSocketOut.println("close");
-                graphInputStream.close();
-                remoteSocketOut.close();
-                inStream.close();
-                outStream.close();
-                remoteSocket.close();
+                // Get upward lineage from the source host
+                final String srcExpression = "query Neo4j lineage " + srcVertexId + " " + maxLength + " ancestors null";
+                srcGraph = RemoteConnectionPool.executeQuery(srcHost, new RemoteConnectionPool.Request<Graph>() {
+                    @Override
+                    public Graph execute(RemoteConnectionPool.RemoteConnection connection) throws IOException, ClassNotFoundException {
+                        return connection.query(srcExpression);
+                    }
+                });
+
+                // Get downward lineage from the destination host
+                final String dstExpression = "query Neo4j lineage " + dstVertexId + " " + maxLength + " descendants null";
+                dstGraph = RemoteConnectionPool.executeQuery(dstHost, new RemoteConnectionPool.Request<Graph>() {
+                    @Override
+                    public Graph execute(RemoteConnectionPool.RemoteConnection connection) throws IOException, ClassNotFoundException {
+                        return connection.query(dstExpression);
+                    }
+                });
 
                 // The result path is the intersection of the two lineages
                 Graph resultGraph = Graph.intersection(srcGraph, dstGraph);
@@ -589,33 +709,45 @@ public class Query {
         // are added to the sketch before the 'wasgeneratedby' edges. This is
         // because of the pull-based architecture of the sketch which requests
         // remote sketches on a 'used' edge. The updated bloom filters are then
-        // reflected in subsequent 'wasgeneratedby' edges. The delay (Thread.sleep)
-        // is used to ensure that the remote sketches have been updated on the
-        // incoming 'used' edges.
+        // reflected in subsequent 'wasgeneratedby' edges, so the updates for the
+        // 'used' edges must have finished before those edges are added.
 
         if (DEBUG_OUTPUT) {
             logger.log(Level.INFO, "rebuildLocalSketch - rebuilding local sketch");
         }
 
-        executeQuery(null, false); // To flush transactions
+        Kernel.requestFlush();
         try {
             AbstractSketch mySketch = Kernel.sketches.iterator().next();
+            // The remote hosts are rebuilding their sketches as well
+            mySketch.invalidateRemoteSketches();
             Set<AbstractEdge> usedEdges = Kernel.storages.iterator().next().getEdges(null, "network:true", "type:Used").edgeSet();
             for (AbstractEdge currentEdge : usedEdges) {
                 mySketch.putEdge(currentEdge);
-                Thread.sleep(200);
             }
-            Thread.sleep(2000);
+            awaitSketchUpdates(mySketch, "Used");
             Set<AbstractEdge> wgbEdges = Kernel.storages.iterator().next().getEdges("network:true", null, "type:WasGeneratedBy").edgeSet();
             for (AbstractEdge currentEdge : wgbEdges) {
                 mySketch.putEdge(currentEdge);
-                Thread.sleep(200);
             }
+            awaitSketchUpdates(mySketch, "WasGeneratedBy");
         } catch (Exception exception) {
             logger.log(Level.SEVERE, null, exception);
         }
     }
 
+    /**
+     * Waits at most sketch_update_timeout milliseconds for the updates of a
+     * sketch, so that an unreachable remote host does not stall the rebuild.
+     */
+    private static void awaitSketchUpdates(AbstractSketch sketch, String edgeType) throws InterruptedException {
+        int pending = sketch.awaitUpdates(SKETCH_UPDATE_TIMEOUT);
+        if (pending > 0) {
+            logger.log(Level.WARNING, "rebuildLocalSketch - {0} sketch updates still pending after {1} ms, continuing past {2} edges",
+                    new Object[]{pending, SKETCH_UPDATE_TIMEOUT, edgeType});
+        }
+    }
+
     /**
      * Method used to propagate sketches across the network.
      *
@@ -640,7 +772,7 @@ public class Query {
         }
 
         currentLevel++;
-        executeQuery(null, false); // To flush transactions
+        Kernel.requestFlush();
         Set<AbstractVertex> upVertices = Kernel.storages.iterator().next().getEdges("network:true", null, "type:WasGeneratedBy").vertexSet();
         // Get all outgoing network vertices.
         for (AbstractVertex currentVertex : upVertices) {
@@ -687,7 +819,7 @@ public class Query {
             logger.log(Level.INFO, "notifyRebuildSketch - sending rebuild notifications");
         }
 
-        executeQuery(null, false); // To flush transactions
+        Kernel.requestFlush();
         Set<AbstractVertex> upVertices = Kernel.storages.iterator().next().getEdges(null, "network:true", "type:Used").vertexSet();
         // If there are no incoming network vertices to send notifications to,
         // stop notifying and begin propagation.
@@ -736,89 +868,64 @@ public class Query {
 
         String source = line.split("\\s")[0];
         String srcHost = source.split(":")[0];
-        String srcVertexId = source.split(":")[1];
+        final String srcVertexId = source.split(":")[1];
 
         String destination = line.split("\\s")[1];
         String dstHost = destination.split(":")[0];
-        String dstVertexId = destination.split(":")[1];
-
-        Set<AbstractVertex> sourceNetworkVertices = new HashSet<>();
-        Set<AbstractVertex> destinationNetworkVertices = new HashSet<>();
+        final String dstVertexId = destination.split(":")[1];
 
         try {
-            // Connect to destination host and get all the destination network vertices
-            int port = Integer.parseInt(Settings.getProperty("remote_query_port"));
-            SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(dstHost, port);
-
-            OutputStream outStream = remoteSocket.getOutputStream();
-            InputStream inStream = remoteSocket.getInputStream();
-            ObjectInputStream graphInputStream = new ObjectInputStream(inStream);
-            PrintWriter remoteSocketOut = new PrintWriter(outStream, true);
-
-            String expression = "query Neo4j vertices network:true";
-            remoteSocketOut.println(expression);
-            // Check whether the remote query server returned a graph in response
-            Graph tempResultGraph = (Graph) graphInputStream.readObject();
-            // Add those network vertices to the destination set that have a path
-            // to the specified vertex
-            for (AbstractVertex currentVertex : tempResultGraph.vertexSet()) {
-                expression = "query Neo4j paths " + currentVertex.getAnnotation(ID_STRING) + " " + dstVertexId + " 20";
-                remoteSocketOut.println(expression);
-                Graph currentGraph = (Graph) graphInputStream.readObject();
-                if (!currentGraph.edgeSet().isEmpty()) {
-                    destinationNetworkVertices.add(currentVertex);
+            // Get all the destination network vertices from the destination host
+            final Set<AbstractVertex> destinationNetworkVertices = RemoteConnectionPool.executeQuery(dstHost, new RemoteConnectionPool.Request<Set<AbstractVertex>>() {
+                @Override
+                public Set<AbstractVertex> execute(RemoteConnectionPool.RemoteConnection connection) throws IOException, ClassNotFoundException {
+                    Set<AbstractVertex> networkVertices = new HashSet<>();
+                    // Check whether the remote query server returned a graph in response
+                    Graph tempResultGraph = connection.query("query Neo4j vertices network:true");
+                    // Add those network vertices to the destination set that have a path
+                    // to the specified vertex
+                    for (AbstractVertex currentVertex : tempResultGraph.vertexSet()) {
+                        String expression = "query Neo4j paths " + currentVertex.getAnnotation(ID_STRING) + " " + dstVertexId + " 20";
+                        Graph currentGraph = connection.query(expression);
+                        if (!currentGraph.edgeSet().isEmpty()) {
+                            networkVertices.add(currentVertex);
+
+                            if (DEBUG_OUTPUT) {
+                                logger.log(Level.INFO, "sketchPaths.1 - added vertex {0} to dstSet", currentVertex.getAnnotation(ID_STRING));
+                            }
 
-                    if (DEBUG_OUTPUT) {
-                        logger.log(Level.INFO, "sketchPaths.1 - added vertex {0} to dstSet", currentVertex.getAnnotation(ID_STRING));
+                        }
                     }
-
+                    return networkVertices;
                 }
-            }
-
-            remoteSocketOut.println("close");
-            remoteSocketOut.close();
-            graphInputStream.close();
-            inStream.close();
-            outStream.close();
-            remoteSocket.close();
+            });
 
             if (DEBUG_OUTPUT) {
                 logger.log(Level.INFO, "sketchPaths.1 - received data from {0}", dstHost);
             }
 
-            // Connect to the source host and get all source network vertices.
-            port = Integer.parseInt(Settings.getProperty("remote_query_port"));
-            remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(srcHost, port);
-
-            inStream = remoteSocket.getInputStream();
-            outStream = remoteSocket.getOutputStream();
-            graphInputStream = new ObjectInputStream(inStream);
-            remoteSocketOut = new PrintWriter(outStream, true);
-
-            expression = "query Neo4j vertices network:true";
-            remoteSocketOut.println(expression);
-            // Check whether the remote query server returned a graph in response
-            tempResultGraph = (Graph) graphInputStream.readObject();
-            for (AbstractVertex currentVertex : tempResultGraph.vertexSet()) {
-                expression = "query Neo4j paths " + srcVertexId + " " + currentVertex.getAnnotation(ID_STRING) + " 20";
-                remoteSocketOut.println(expression);
-                Graph currentGraph = (Graph) graphInputStream.readObject();
-                if (!currentGraph.edgeSet().isEmpty()) {
-                    sourceNetworkVertices.add(currentVertex);
+            // Get all source network vertices from the source host.
+            Set<AbstractVertex> sourceNetworkVertices = RemoteConnectionPool.executeQuery(srcHost, new RemoteConnectionPool.Request<Set<AbstractVertex>>() {
+                @Override
+                public Set<AbstractVertex> execute(RemoteConnectionPool.RemoteConnection connection) throws IOException, ClassNotFoundException {
+                    Set<AbstractVertex> networkVertices = new HashSet<>();
+                    // Check whether the remote query server returned a graph in response
+                    Graph tempResultGraph = connection.query("query Neo4j vertices network:true");
+                    for (AbstractVertex currentVertex : tempResultGraph.vertexSet()) {
+                        String expression = "query Neo4j paths " + srcVertexId + " " + currentVertex.getAnnotation(ID_STRING) + " 20";
+                        Graph currentGraph = connection.query(expression);
+                        if (!currentGraph.edgeSet().isEmpty()) {
+                            networkVertices.add(currentVertex);
+
+                            if (DEBUG_OUTPUT) {
+                                logger.log(Level.INFO, "sketchPaths.1 - added vertex {0} to srcSet", currentVertex.getAnnotation(ID_STRING));
+                            }
 
-                    if (DEBUG_OUTPUT) {
-                        logger.log(Level.INFO, "sketchPaths.1 - added vertex {0} to srcSet", currentVertex.getAnnotation(ID_STRING));
+                        }
                     }
-
+                    return networkVertices;
                 }
-            }
-
-            remoteSocketOut.println("close");
-            remoteSocketOut.close();
-            graphInputStream.close();
-            inStream.close();
-            outStream.close();
-            remoteSocket.close();
+            });
 
             if (DEBUG_OUTPUT) {
                 logger.log(Level.INFO, "sketchPaths.2 - received data from {0}", srcHost);
@@ -960,19 +1067,11 @@ public class Query {
      * @param terminatingExpression The terminating expression.
      * @return The result represented by a Graph object.
      */
-    private static Graph queryNetworkVertex(AbstractVertex networkVertex, int depth, String direction, String terminatingExpression) {
+    private static Graph queryNetworkVertex(AbstractVertex networkVertex, final int depth, final String direction, final String terminatingExpression) {
         Graph resultGraph = null;
 
         try {
-            // Establish a connection to the remote host
             String host = networkVertex.getAnnotation("destination host");
-            int port = Integer.parseInt(Settings.getProperty("remote_query_port"));
-            SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(host, port);
-
-            OutputStream outStream = remoteSocket.getOutputStream();
-            InputStream inStream = remoteSocket.getInputStream();
-            ObjectInputStream graphInputStream = new ObjectInputStream(inStream);
-            PrintWriter remoteSocketOut = new PrintWriter(outStream, true);
 
             // The first query is used to determine the vertex id of the network
             // vertex on the remote host. This is needed to execute the lineage
@@ -982,34 +1081,30 @@ public class Query {
             vertexQueryExpression += " AND source\\ port:" + networkVertex.getAnnotation("destination port");
             vertexQueryExpression += " AND destination\\ host:" + networkVertex.getAnnotation("source host");
             vertexQueryExpression += " AND destination\\ port:" + networkVertex.getAnnotation("source port");
+            final String vertexExpression = vertexQueryExpression;
 
-            // Execute remote query for vertices
-            if (DEBUG_OUTPUT) {
-                logger.log(Level.INFO, "Sending query expression: {0}", vertexQueryExpression);
-            }
-            remoteSocketOut.println(vertexQueryExpression);
-            // Check whether the remote query server returned a graph in response
-            Graph vertexGraph = (Graph) graphInputStream.readObject();
-            // The graph should only have one vertex which is the network vertex.
-            // We use this to get the vertex id
-            AbstractVertex targetVertex = vertexGraph.vertexSet().iterator().next();
-            String targetVertexId = targetVertex.getAnnotation(ID_STRING);
-            int vertexId = Integer.parseInt(targetVertexId);
-
-            // Build the expression for the remote lineage query
-            String lineageQueryExpression = "query Neo4j lineage " + vertexId + " " + depth + " " + direction + " " + terminatingExpression;
-            remoteSocketOut.println(lineageQueryExpression);
-
-            // The graph object we get as a response is returned as the
-            // result of this method
-            resultGraph = (Graph) graphInputStream.readObject();
-
-            remoteSocketOut.println("close");
-            remoteSocketOut.close();
-            graphInputStream.close();
-            inStream.close();
-            outStream.close();
-            remoteSocket.close();
+            resultGraph = RemoteConnectionPool.executeQuery(host, new RemoteConnectionPool.Request<Graph>() {
+                @Override
+                public Graph execute(RemoteConnectionPool.RemoteConnection connection) throws IOException, ClassNotFoundException {
+                    // Execute remote query for vertices
+                    if (DEBUG_OUTPUT) {
+                        logger.log(Level.INFO, "Sending query expression: {0}", vertexExpression);
+                    }
+                    // Check whether the remote query server returned a graph in response
+                    Graph vertexGraph = connection.query(vertexExpression);
+                    // The graph should only have one vertex which is the network vertex.
+                    // We use this to get the vertex id
+                    AbstractVertex targetVertex = vertexGraph.vertexSet().iterator().next();
+                    String targetVertexId = targetVertex.getAnnotation(ID_STRING);
+                    int vertexId = Integer.parseInt(targetVertexId);
+
+                    // Build the expression for the remote lineage query. The
+                    // graph object we get as a response is returned as the
+                    // result of this method
+                    String lineageQueryExpression = "query Neo4j lineage " + vertexId + " " + depth + " " + direction + " " + terminatingExpression;
+                    return connection.query(lineageQueryExpression);
+                }
+            });
         } catch (NumberFormatException | IOException | ClassNotFoundException exception) {
             logger.log(Level.SEVERE, null, exception);
         }
@@ -1018,15 +1113,20 @@ public class Query {
     }
 }
 
-class QueryConnection implements Runnable {
+class QueryConnection implements Runnable, SelectorServer.LineSession {
 
     // An object of this class is instantiated when a query connection is made.
     Socket clientSocket;
+    private ObjectOutputStream clientObjectOutputStream;
 
     QueryConnection(Socket socket) {
         clientSocket = socket;
     }
 
+    QueryConnection(OutputStream outStream) throws IOException {
+        clientObjectOutputStream = new ObjectOutputStream(outStream);
+    }
+
     @Override
     public void run() {
         try {
@@ -1037,23 +1137,12 @@ class QueryConnection implements Runnable {
 
             OutputStream outStream = clientSocket.getOutputStream();
             InputStream inStream = clientSocket.getInputStream();
-            ObjectOutputStream clientObjectOutputStream = new ObjectOutputStream(outStream);
+            clientObjectOutputStream = new ObjectOutputStream(outStream);
             BufferedReader clientInputReader = new BufferedReader(new InputStreamReader(inStream));
 
             String queryLine = clientInputReader.readLine();
-            while (!queryLine.equalsIgnoreCase("close")) {
+            while (queryLine != null && processLine(queryLine)) {
                 // Read lines from the querying client until 'close' is called
-
-                if (Query.DEBUG_OUTPUT) {
-                    Logger.getLogger(QueryConnection.class.getName()).log(Level.INFO, "Received query line: {0}", queryLine);
-                }
-
-                Graph resultGraph = Query.executeQuery(queryLine, true);
-                if (resultGraph == null) {
-                    resultGraph = new Graph();
-                }
-                clientObjectOutputStream.writeObject(resultGraph);
-                clientObjectOutputStream.flush();
                 queryLine = clientInputReader.readLine();
             }
 
@@ -1067,13 +1156,56 @@ class QueryConnection implements Runnable {
                 Logger.getLogger(QueryConnection.class.getName()).log(Level.INFO, "Query socket closed");
             }
 
+        } catch (SocketTimeoutException idle) {
+            Logger.getLogger(QueryConnection.class.getName()).log(Level.INFO, "Closing idle query connection");
         } catch (Exception ex) {
             Logger.getLogger(QueryConnection.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
+
+    @Override
+    public boolean processLine(String queryLine) throws IOException {
+        if (queryLine.equalsIgnoreCase("close")) {
+            return false;
+        }
+
+        if (Query.DEBUG_OUTPUT) {
+            Logger.getLogger(QueryConnection.class.getName()).log(Level.INFO, "Received query line: {0}", queryLine);
+        }
+
+        Graph resultGraph = null;
+        QueryContext queryContext = QueryContext.admit();
+        if (queryContext == null) {
+            Logger.getLogger(QueryConnection.class.getName()).log(Level.WARNING, "Rejected remote query: too many queries are executing");
+        } else {
+            try {
+                resultGraph = Query.executeQuery(queryLine, true);
+            } finally {
+                queryContext.release();
+            }
+        }
+        if (resultGraph == null) {
+            resultGraph = new Graph();
+        }
+        clientObjectOutputStream.writeObject(resultGraph);
+        // Results are not referenced again, so keep the stream from holding
+        // on to them.
+        clientObjectOutputStream.reset();
+        clientObjectOutputStream.flush();
+        return true;
+    }
+
+    @Override
+    public void close() {
+        try {
+            clientObjectOutputStream.close();
+        } catch (IOException exception) {
+            Logger.getLogger(QueryConnection.class.getName()).log(Level.FINE, null, exception);
+        }
+    }
 }
 
-class SketchConnection implements Runnable {
+class SketchConnection implements Runnable, SelectorServer.StreamProtocol {
 
     // An object of this class is instantiated when a sketch connection is made.
     Socket clientSocket;
@@ -1082,18 +1214,34 @@ class SketchConnection implements Runnable {
         clientSocket = socket;
     }
 
+    SketchConnection() {
+    }
+
     @Override
     public void run() {
+        try {
+            InputStream inStream = clientSocket.getInputStream();
+            OutputStream outStream = clientSocket.getOutputStream();
+            serve(inStream, outStream);
+            clientSocket.close();
+        } catch (SocketTimeoutException idle) {
+            Logger.getLogger(SketchConnection.class.getName()).log(Level.INFO, "Closing idle sketch connection");
+        } catch (IOException ex) {
+            Logger.getLogger(SketchConnection.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    @Override
+    public void serve(InputStream inStream, OutputStream outStream) throws IOException {
         try {
 
             if (Query.DEBUG_OUTPUT) {
                 Logger.getLogger(SketchConnection.class.getName()).log(Level.INFO, "Sketch socket opened");
             }
 
-            InputStream inStream = clientSocket.getInputStream();
-            OutputStream outStream = clientSocket.getOutputStream();
             ObjectInputStream clientObjectInputStream = new ObjectInputStream(inStream);
             ObjectOutputStream clientObjectOutputStream = new ObjectOutputStream(outStream);
+            clientObjectOutputStream.flush();
 
             String sketchLine = (String) clientObjectInputStream.readObject();
             while (!sketchLine.equalsIgnoreCase("close")) {
@@ -1111,6 +1259,28 @@ class SketchConnection implements Runnable {
 
                     Logger.getLogger(SketchConnection.class.getName()).log(Level.INFO, "Sent sketches");
 
+                } else if (sketchLine.equals("giveSketchDelta")) {
+                    // Send the changes to the sketches after the versions that
+                    // the client received before, and nothing for the sketches
+                    // that did not change.
+                    MatrixFilter.Version localVersion = (MatrixFilter.Version) clientObjectInputStream.readObject();
+                    Map<String, MatrixFilter.Version> remoteVersions = (Map<String, MatrixFilter.Version>) clientObjectInputStream.readObject();
+                    MatrixFilter.Delta localDelta = Kernel.sketches.iterator().next().matrixFilter.getDelta(localVersion);
+                    HashMap<String, MatrixFilter.Delta> remoteDeltas = new HashMap<>();
+                    synchronized (Kernel.remoteSketches) {
+                        for (Map.Entry<String, AbstractSketch> currentEntry : Kernel.remoteSketches.entrySet()) {
+                            MatrixFilter.Delta delta = currentEntry.getValue().matrixFilter.getDelta(remoteVersions.get(currentEntry.getKey()));
+                            if (!delta.isEmpty()) {
+                                remoteDeltas.put(currentEntry.getKey(), delta);
+                            }
+                        }
+                    }
+                    clientObjectOutputStream.writeObject(localDelta.isEmpty() ? null : localDelta);
+                    clientObjectOutputStream.writeObject(remoteDeltas);
+                    clientObjectOutputStream.flush();
+
+                    Logger.getLogger(SketchConnection.class.getName()).log(Level.INFO, "Sent changes to {0} sketches", remoteDeltas.size() + (localDelta.isEmpty() ? 0 : 1));
+
                 } else if (sketchLine.equals("pathFragment_mid")) {
                     // Get a non-terminal path fragment
                     AbstractSketch remoteSketch = (AbstractSketch) clientObjectInputStream.readObject();
@@ -1137,6 +1307,10 @@ class SketchConnection implements Runnable {
                     int maxLevel = Integer.parseInt(tokens[2]);
                     Query.propagateSketches(currentLevel, maxLevel);
                 }
+                // The connection may be kept open by a connection pool on the
+                // client, so sketches that are sent again must not be sent as
+                // references to the copies that were sent before.
+                clientObjectOutputStream.reset();
                 sketchLine = (String) clientObjectInputStream.readObject();
             }
 
@@ -1144,14 +1318,13 @@ class SketchConnection implements Runnable {
             clientObjectOutputStream.close();
             inStream.close();
             outStream.close();
-            clientSocket.close();
 
             if (Query.DEBUG_OUTPUT) {
                 Logger.getLogger(SketchConnection.class.getName()).log(Level.INFO, "Sketch socket closed");
             }
 
-        } catch (IOException | ClassNotFoundException | NumberFormatException ex) {
-            Logger.getLogger(QueryConnection.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (ClassNotFoundException | NumberFormatException ex) {
+            Logger.getLogger(SketchConnection.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
 }
@@ -1176,30 +1349,19 @@ class RebuildSketch implements Runnable {
     @Override
     public void run() {
         try {
-            int port = Integer.parseInt(Settings.getProperty("remote_sketch_port"));
-            SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(remoteHost, port);
-
-            OutputStream outStream = remoteSocket.getOutputStream();
-            InputStream inStream = remoteSocket.getInputStream();
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(outStream);
-            ObjectInputStream objectInputStream = new ObjectInputStream(inStream);
-
             if (Query.DEBUG_OUTPUT) {
                 Logger.getLogger(RebuildSketch.class.getName()).log(Level.INFO, "notifyRebuildSketch - notifying {0}", remoteHost);
             }
 
-            String expression = "notifyRebuildSketches " + currentLevel + " " + maxLevel;
-            objectOutputStream.writeObject(expression);
-            objectOutputStream.flush();
-            objectOutputStream.writeObject("close");
-            objectOutputStream.flush();
-
-            objectOutputStream.close();
-            objectInputStream.close();
-            outStream.close();
-            inStream.close();
-            remoteSocket.close();
-        } catch (NumberFormatException | IOException exception) {
+            final String expression = "notifyRebuildSketches " + currentLevel + " " + maxLevel;
+            RemoteConnectionPool.executeSketch(remoteHost, new RemoteConnectionPool.Request<Void>() {
+                @Override
+                public Void execute(RemoteConnectionPool.RemoteConnection connection) throws IOException {
+                    connection.writeObject(expression);
+                    return null;
+                }
+            });
+        } catch (NumberFormatException | IOException | ClassNotFoundException exception) {
             Logger.getLogger(RebuildSketch.class.getName()).log(Level.SEVERE, null, exception);
         }
     }
@@ -1225,30 +1387,19 @@ class PropagateSketch implements Runnable {
     @Override
     public void run() {
         try {
-            int port = Integer.parseInt(Settings.getProperty("remote_sketch_port"));
-            SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(remoteHost, port);
-
-            OutputStream outStream = remoteSocket.getOutputStream();
-            InputStream inStream = remoteSocket.getInputStream();
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(outStream);
-            ObjectInputStream objectInputStream = new ObjectInputStream(inStream);
-
             if (Query.DEBUG_OUTPUT) {
                 Logger.getLogger(PropagateSketch.class.getName()).log(Level.INFO, "propagateSketches - propagating to {0}", remoteHost);
             }
 
-            String expression = "propagateSketches " + currentLevel + " " + maxLevel;
-            objectOutputStream.writeObject(expression);
-            objectOutputStream.flush();
-            objectOutputStream.writeObject("close");
-            objectOutputStream.flush();
-
-            objectOutputStream.close();
-            objectInputStream.close();
-            inStream.close();
-            outStream.close();
-            remoteSocket.close();
-        } catch (NumberFormatException | IOException exception) {
+            final String expression = "propagateSketches " + currentLevel + " " + maxLevel;
+            RemoteConnectionPool.executeSketch(remoteHost, new RemoteConnectionPool.Request<Void>() {
+                @Override
+                public Void execute(RemoteConnectionPool.RemoteConnection connection) throws IOException {
+                    connection.writeObject(expression);
+                    return null;
+                }
+            });
+        } catch (NumberFormatException | IOException | ClassNotFoundException exception) {
             Logger.getLogger(PropagateSketch.class.getName()).log(Level.SEVERE, null, exception);
         }
     }
@@ -1272,27 +1423,16 @@ class PathFragment implements Runnable {
     @Override
     public void run() {
         try {
-            int port = Integer.parseInt(Settings.getProperty("remote_sketch_port"));
-            SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(remoteHost, port);
-
-            OutputStream outStream = remoteSocket.getOutputStream();
-            InputStream inStream = remoteSocket.getInputStream();
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(outStream);
-            ObjectInputStream objectInputStream = new ObjectInputStream(inStream);
-            // Send the sketch
-            objectOutputStream.writeObject(pathFragment);
-            objectOutputStream.flush();
-            objectOutputStream.writeObject(Kernel.sketches.iterator().next());
-            objectOutputStream.flush();
-            // Receive the graph fragment
-            Graph tempResultGraph = (Graph) objectInputStream.readObject();
-            objectOutputStream.writeObject("close");
-            objectOutputStream.flush();
-            objectOutputStream.close();
-            objectInputStream.close();
-            inStream.close();
-            outStream.close();
-            remoteSocket.close();
+            Graph tempResultGraph = RemoteConnectionPool.executeSketch(remoteHost, new RemoteConnectionPool.Request<Graph>() {
+                @Override
+                public Graph execute(RemoteConnectionPool.RemoteConnection connection) throws IOException, ClassNotFoundException {
+                    // Send the sketch
+                    connection.writeObject(pathFragment);
+                    connection.writeObject(Kernel.sketches.iterator().next());
+                    // Receive the graph fragment
+                    return (Graph) connection.readObject();
+                }
+            });
 
             if (Query.DEBUG_OUTPUT) {
                 Logger.getLogger(PathFragment.class.getName()).log(Level.INFO, "PathFragment - received path fragment from {0}", remoteHost);
@@ -0,0 +1,176 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.util.concurrent.Semaphore;
+
+import spade.utility.CommonFunctions;
+
+/**
+ * Tracks the deadline and result-size budget of a query that is being
+ * executed. A context is admitted by the connection that received the query
+ * and bound to the executing thread. Storages call checkpoint() from inside
+ * their traversal loops so that a query which has run out of time or has
+ * grown too large is cancelled cooperatively.
+ *
+ * Admission is limited by the number of concurrently executing queries. Once
+ * all permits are in use, new queries are rejected instead of queued so that
+ * a burst of queries cannot exhaust the memory of the ingesting JVM.
+ */
+public class QueryContext {
+
+    private static final long QUERY_TIMEOUT = CommonFunctions.parseLong(Settings.getProperty("query_timeout"), 300000L);
+    private static final long QUERY_MAX_RESULT_ELEMENTS = CommonFunctions.parseLong(Settings.getProperty("query_max_result_elements"), 1000000L);
+    private static final int QUERY_MAX_CONCURRENT = CommonFunctions.parseInt(Settings.getProperty("query_max_concurrent"), 8);
+    private static final Semaphore queryPermits = new Semaphore(QUERY_MAX_CONCURRENT);
+    private static final ThreadLocal<QueryContext> currentContext = new ThreadLocal<>();
+
+    private final long deadline;
+    private final long maxResultElements;
+    private volatile String cancellationReason;
+    private boolean released;
+
+    /**
+     * Thrown from a checkpoint when the current query has been cancelled.
+     */
+    public static class CancelledException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public CancelledException(String reason) {
+            super(reason);
+        }
+    }
+
+    private QueryContext(long timeout, long maxResultElements) {
+        this.deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        this.maxResultElements = (maxResultElements > 0) ? maxResultElements : Long.MAX_VALUE;
+    }
+
+    /**
+     * Admits a new query with the configured deadline and result budget and
+     * binds it to the calling thread.
+     *
+     * @return The context of the admitted query, or null if the maximum number
+     * of concurrent queries is already executing.
+     */
+    public static QueryContext admit() {
+        if (!queryPermits.tryAcquire()) {
+            return null;
+        }
+        QueryContext context = new QueryContext(QUERY_TIMEOUT, QUERY_MAX_RESULT_ELEMENTS);
+        currentContext.set(context);
+        return context;
+    }
+
+    /**
+     * Unbinds this context from the calling thread and returns its admission
+     * permit.
+     */
+    public synchronized void release() {
+        if (currentContext.get() == this) {
+            currentContext.remove();
+        }
+        if (!released) {
+            released = true;
+            queryPermits.release();
+        }
+    }
+
+    /**
+     * Binds this context to the calling thread. Used when part of a query is
+     * executed on a helper thread.
+     */
+    public void attach() {
+        currentContext.set(this);
+    }
+
+    /**
+     * Unbinds this context from the calling thread without releasing its
+     * permit.
+     */
+    public void detach() {
+        if (currentContext.get() == this) {
+            currentContext.remove();
+        }
+    }
+
+    /**
+     * @return The context bound to the calling thread, or null if the thread
+     * is not executing an admitted query.
+     */
+    public static QueryContext current() {
+        return currentContext.get();
+    }
+
+    /**
+     * Marks this query as cancelled. The executing thread notices it at its
+     * next checkpoint.
+     *
+     * @param reason The reason reported back to the client.
+     */
+    public void cancel(String reason) {
+        if (cancellationReason == null) {
+            cancellationReason = reason;
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancellationReason != null;
+    }
+
+    public String getCancellationReason() {
+        return cancellationReason;
+    }
+
+    /**
+     * Checks the deadline of the query executing on the calling thread. Does
+     * nothing if the thread is not executing an admitted query.
+     *
+     * @throws CancelledException If the query has been cancelled.
+     */
+    public static void checkpoint() {
+        checkpoint(null);
+    }
+
+    /**
+     * Checks the deadline of the query executing on the calling thread and
+     * the size of the partial result it has built so far. Does nothing if the
+     * thread is not executing an admitted query.
+     *
+     * @param partialResult The result being built, or null.
+     * @throws CancelledException If the query has been cancelled.
+     */
+    public static void checkpoint(Graph partialResult) {
+        QueryContext context = currentContext.get();
+        if (context == null) {
+            return;
+        }
+        if (System.currentTimeMillis() > context.deadline) {
+            context.cancel("Query cancelled: exceeded time limit of " + QUERY_TIMEOUT + " ms");
+        } else if (partialResult != null
+                && (long) partialResult.vertexSet().size() + partialResult.edgeSet().size() > context.maxResultElements) {
+            context.cancel("Query cancelled: result exceeded " + context.maxResultElements + " elements");
+        }
+        if (context.cancellationReason != null) {
+            throw new CancelledException(context.cancellationReason);
+        }
+    }
+}
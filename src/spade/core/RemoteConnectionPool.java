@@ -0,0 +1,336 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLSocket;
+
+import spade.utility.CommonFunctions;
+
+/**
+ * Keeps persistent authenticated connections to the query ports of remote
+ * SPADE instances so that remote operations do not pay for a TCP and SSL
+ * handshake every time. All connections are created from the Kernel's client
+ * SSL context, whose session cache lets a new connection to a known peer
+ * resume the previous SSL session instead of performing a full handshake.
+ *
+ * A connection serves one request at a time since the query and sketch
+ * protocols do not tag responses. Concurrent requests to the same peer are
+ * multiplexed over several pooled connections. Idle connections are kept
+ * alive for a limited time and reused most recently used first.
+ *
+ * Connections to the sketch port are closed after every request instead of
+ * being pooled, since the remote host serves the sketch protocol on a worker
+ * thread for as long as the connection is open. A response that does not
+ * arrive within remote_connection_read_timeout milliseconds fails the request.
+ * Unless set, the read timeout is a minute longer than query_timeout, so that
+ * a remote query is ended by the remote host's own limit rather than by the
+ * pool, and there is none if queries have no time limit.
+ */
+public class RemoteConnectionPool {
+
+    private static final Logger logger = Logger.getLogger(RemoteConnectionPool.class.getName());
+    private static final int MAX_IDLE_CONNECTIONS = CommonFunctions.parseInt(Settings.getProperty("remote_connection_max_idle"), 4);
+    private static final long IDLE_TIMEOUT = CommonFunctions.parseLong(Settings.getProperty("remote_connection_idle_timeout"), 30000L);
+    private static final int READ_TIMEOUT = CommonFunctions.parseInt(Settings.getProperty("remote_connection_read_timeout"), getDefaultReadTimeout());
+    private static final ConcurrentMap<String, ConcurrentLinkedDeque<RemoteConnection>> idleConnections = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService evictionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "remoteConnectionEviction-Thread");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // A minute past the query time limit of the remote host, no limit if queries have none
+    private static int getDefaultReadTimeout() {
+        int queryTimeout = CommonFunctions.parseInt(Settings.getProperty("query_timeout"), 300000);
+        return (queryTimeout > 0) ? queryTimeout + 60000 : 0;
+    }
+
+    static {
+        long evictionPeriod = Math.max(IDLE_TIMEOUT / 2, 1000);
+        evictionExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdleConnections(System.currentTimeMillis() - IDLE_TIMEOUT);
+            }
+        }, evictionPeriod, evictionPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A request that is executed on a pooled connection.
+     *
+     * @param <T> The type of the response.
+     */
+    public interface Request<T> {
+
+        /**
+         * Executes the request. The connection must be left ready for the next
+         * request, i.e., every response that was asked for must be read.
+         *
+         * @param connection The connection to the remote host.
+         * @return The response of the request.
+         */
+        T execute(RemoteConnection connection) throws IOException, ClassNotFoundException;
+    }
+
+    /**
+     * A persistent connection to the query or sketch port of a remote host.
+     */
+    public static class RemoteConnection {
+
+        private final String key;
+        private final boolean sketchPort;
+        private final SSLSocket socket;
+        private final OutputStream outStream;
+        private Writer lineWriter;
+        private ObjectOutputStream objectOutputStream;
+        private ObjectInputStream objectInputStream;
+        private volatile long lastUsed;
+
+        private RemoteConnection(String key, String host, int port, boolean sketchPort) throws IOException {
+            this.key = key;
+            this.sketchPort = sketchPort;
+            socket = (SSLSocket) Kernel.sslSocketFactory.createSocket(host, port);
+            try {
+                socket.setKeepAlive(true);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(READ_TIMEOUT);
+                outStream = new BufferedOutputStream(socket.getOutputStream());
+                if (sketchPort) {
+                    objectOutputStream = new ObjectOutputStream(outStream);
+                    objectOutputStream.flush();
+                } else {
+                    lineWriter = new OutputStreamWriter(outStream, "UTF-8");
+                }
+            } catch (IOException exception) {
+                socket.close();
+                throw exception;
+            }
+        }
+
+        /**
+         * Sends a query line to the remote query server and reads the graph
+         * that it returns.
+         *
+         * @param queryLine The query line.
+         * @return The result of the query.
+         */
+        public Graph query(String queryLine) throws IOException, ClassNotFoundException {
+            writeLine(queryLine);
+            return (Graph) readObject();
+        }
+
+        /**
+         * Sends a line to the remote query server.
+         *
+         * @param line The line to send.
+         */
+        public void writeLine(String line) throws IOException {
+            if (sketchPort) {
+                throw new IllegalStateException("Lines can only be sent to the query port");
+            }
+            lineWriter.write(line);
+            lineWriter.write('\n');
+            lineWriter.flush();
+        }
+
+        /**
+         * Sends an object to the remote sketch server. The stream is reset
+         * first so that an object that has changed since it was last sent is
+         * not received as a reference to the old copy.
+         *
+         * @param object The object to send.
+         */
+        public void writeObject(Object object) throws IOException {
+            if (!sketchPort) {
+                throw new IllegalStateException("Objects can only be sent to the sketch port");
+            }
+            objectOutputStream.reset();
+            objectOutputStream.writeObject(object);
+            objectOutputStream.flush();
+        }
+
+        /**
+         * Reads the next object sent by the remote server.
+         *
+         * @return The object read.
+         */
+        public Object readObject() throws IOException, ClassNotFoundException {
+            if (objectInputStream == null) {
+                objectInputStream = new ObjectInputStream(socket.getInputStream());
+            }
+            return objectInputStream.readObject();
+        }
+
+        private void close() {
+            try {
+                if (sketchPort) {
+                    writeObject("close");
+                } else {
+                    writeLine("close");
+                }
+            } catch (IOException exception) {
+                logger.log(Level.FINE, null, exception);
+            }
+            try {
+                socket.close();
+            } catch (IOException exception) {
+                logger.log(Level.FINE, null, exception);
+            }
+        }
+    }
+
+    /**
+     * Executes a request on a pooled connection to the query port of a remote
+     * host.
+     *
+     * @param host The remote host.
+     * @param request The request to execute.
+     * @return The response of the request.
+     */
+    public static <T> T executeQuery(String host, Request<T> request) throws IOException, ClassNotFoundException {
+        return execute(host, Integer.parseInt(Settings.getProperty("remote_query_port")), false, request);
+    }
+
+    /**
+     * Executes a request on a new connection to the sketch port of a remote
+     * host, which is closed once the request is done.
+     *
+     * @param host The remote host.
+     * @param request The request to execute.
+     * @return The response of the request.
+     */
+    public static <T> T executeSketch(String host, Request<T> request) throws IOException, ClassNotFoundException {
+        return execute(host, Integer.parseInt(Settings.getProperty("remote_sketch_port")), true, request);
+    }
+
+    private static <T> T execute(String host, int port, boolean sketchPort, Request<T> request) throws IOException, ClassNotFoundException {
+        String key = host + ":" + port;
+        RemoteConnection connection = pollIdleConnection(key);
+        if (connection != null) {
+            // The remote host may have dropped an idle connection, so a failed
+            // request on a reused connection is retried once on a new one.
+            try {
+                T response = request.execute(connection);
+                releaseConnection(connection);
+                return response;
+            } catch (SocketTimeoutException exception) {
+                // The host is alive but slow, the request would time out again
+                connection.close();
+                throw exception;
+            } catch (IOException exception) {
+                logger.log(Level.FINE, "Retrying request to " + key + " on a new connection", exception);
+                connection.close();
+            } catch (ClassNotFoundException | RuntimeException exception) {
+                connection.close();
+                throw exception;
+            }
+        }
+        connection = new RemoteConnection(key, host, port, sketchPort);
+        try {
+            T response = request.execute(connection);
+            releaseConnection(connection);
+            return response;
+        } catch (IOException | ClassNotFoundException | RuntimeException exception) {
+            connection.close();
+            throw exception;
+        }
+    }
+
+    private static RemoteConnection pollIdleConnection(String key) {
+        ConcurrentLinkedDeque<RemoteConnection> connections = idleConnections.get(key);
+        if (connections == null) {
+            return null;
+        }
+        long expiry = System.currentTimeMillis() - IDLE_TIMEOUT;
+        RemoteConnection connection;
+        while ((connection = connections.pollFirst()) != null) {
+            if (connection.lastUsed >= expiry && !connection.socket.isClosed()) {
+                return connection;
+            }
+            connection.close();
+        }
+        return null;
+    }
+
+    private static void releaseConnection(RemoteConnection connection) {
+        if (connection.sketchPort) {
+            connection.close();
+            return;
+        }
+        ConcurrentLinkedDeque<RemoteConnection> connections = idleConnections.get(connection.key);
+        if (connections == null) {
+            ConcurrentLinkedDeque<RemoteConnection> newConnections = new ConcurrentLinkedDeque<>();
+            connections = idleConnections.putIfAbsent(connection.key, newConnections);
+            if (connections == null) {
+                connections = newConnections;
+            }
+        }
+        connection.lastUsed = System.currentTimeMillis();
+        connections.offerFirst(connection);
+        // Close the least recently used connections beyond the idle limit.
+        while (connections.size() > MAX_IDLE_CONNECTIONS) {
+            RemoteConnection excessConnection = connections.pollLast();
+            if (excessConnection == null) {
+                break;
+            }
+            excessConnection.close();
+        }
+    }
+
+    private static void evictIdleConnections(long expiry) {
+        for (ConcurrentLinkedDeque<RemoteConnection> connections : idleConnections.values()) {
+            for (Iterator<RemoteConnection> iterator = connections.descendingIterator(); iterator.hasNext();) {
+                RemoteConnection connection = iterator.next();
+                if (connection.lastUsed < expiry && connections.removeFirstOccurrence(connection)) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes all idle connections. Called by the Kernel when shutting down.
+     */
+    public static void shutdown() {
+        evictionExecutor.shutdownNow();
+        evictIdleConnections(Long.MAX_VALUE);
+    }
+}
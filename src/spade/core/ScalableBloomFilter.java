@@ -0,0 +1,409 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2016 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A Bloom filter that grows with the number of elements added to it, as described in
+ * "Scalable Bloom Filters" by Almeida et al. Elements are added to the newest filter in
+ * a chain. Once it holds as many elements as it was sized for, a new filter with twice
+ * the capacity and half the false positive probability is appended. The false positive
+ * probability of the whole chain therefore stays below the one it was created with,
+ * however many elements are added.
+ *
+ * The filters can be kept in a file that is mapped into memory, so that the bits are
+ * written back by the operating system as they are set and the filter is available
+ * again, without being read in, when the file is reopened.
+ *
+ * Elements are hashed once with the 128-bit MurmurHash3 of BloomFilter and the bit
+ * positions are derived from the two halves of the hash by double hashing.
+ *
+ * @param <E> Object type that is to be inserted into the filter. The output of the
+ * toString() method of an element is what is hashed.
+ */
+public class ScalableBloomFilter<E> {
+
+    private static final Logger logger = Logger.getLogger(ScalableBloomFilter.class.getName());
+    private static final Charset charset = Charset.forName("UTF-8");
+    private static final long MAGIC = 0x5350414445534246L; // "SPADESBF"
+    private static final int VERSION = 2;
+    private static final int MAX_STAGES = 64;
+    private static final int STAGE_ENTRY_SIZE = 32;
+    private static final int STAGE_TABLE_OFFSET = 64;
+    private static final int HEADER_SIZE = 4096;
+    private static final int SEGMENT_SHIFT = 30; // bytes in a mapped segment, as a power of two
+    private static final double TIGHTENING_RATIO = 0.5;
+    private static final int GROWTH_FACTOR = 2;
+
+    // reused by each thread so that hashing an element allocates nothing
+    private static final ThreadLocal<long[]> hashBuffer = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final ByteBuffer header;
+    private final double falsePositiveProbability;
+    private final long initialCapacity;
+    // replaced, never modified, when a stage is appended so that readers need no lock
+    private volatile Stage[] stages;
+
+    /**
+     * Constructs an empty filter that is kept on the heap.
+     *
+     * @param falsePositiveProbability is the highest false positive probability of the filter.
+     * @param initialCapacity is the number of elements that the first filter in the chain is sized for.
+     */
+    public ScalableBloomFilter(double falsePositiveProbability, long initialCapacity) {
+        this.file = null;
+        this.randomAccessFile = null;
+        this.channel = null;
+        this.header = ByteBuffer.allocate(HEADER_SIZE);
+        this.falsePositiveProbability = falsePositiveProbability;
+        this.initialCapacity = Math.max(1, initialCapacity);
+        writeHeader();
+        this.stages = new Stage[0];
+        addStage();
+    }
+
+    /**
+     * Opens the filter kept in the file or creates it if the file does not exist. The
+     * probability and the capacity of an existing filter are the ones it was created with.
+     *
+     * @param file is the file that the filter is mapped from.
+     * @param falsePositiveProbability is the highest false positive probability of a new filter.
+     * @param initialCapacity is the number of elements that the first filter in a new chain is sized for.
+     * @throws IOException if the file cannot be mapped or is not a filter.
+     */
+    public ScalableBloomFilter(File file, double falsePositiveProbability, long initialCapacity) throws IOException {
+        this.file = file;
+        boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        try {
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (exists) {
+                if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION) {
+                    throw new IOException("Not a bloom filter file: " + file);
+                }
+                this.falsePositiveProbability = header.getDouble(16);
+                this.initialCapacity = header.getLong(24);
+                int stageCount = header.getInt(12);
+                if (stageCount < 1 || stageCount > MAX_STAGES) {
+                    throw new IOException("Corrupt bloom filter file: " + file);
+                }
+                long end = header.getLong(stageEntry(stageCount - 1)) + header.getLong(stageEntry(stageCount - 1) + 8) / 8;
+                if (randomAccessFile.length() < end) {
+                    // mapping the missing bits would read them as zeros and give false negatives
+                    throw new IOException("Truncated bloom filter file: " + file);
+                }
+                Stage[] existingStages = new Stage[stageCount];
+                for (int i = 0; i < stageCount; i++) {
+                    existingStages[i] = new Stage(channel, header, i, header.getLong(stageEntry(i)), header.getLong(stageEntry(i) + 8),
+                            header.getLong(stageEntry(i) + 16), getStageProbability(i));
+                }
+                this.stages = existingStages;
+            } else {
+                this.falsePositiveProbability = falsePositiveProbability;
+                this.initialCapacity = Math.max(1, initialCapacity);
+                writeHeader();
+                this.stages = new Stage[0];
+                addStage();
+            }
+        } catch (IOException | RuntimeException exception) {
+            randomAccessFile.close();
+            throw exception;
+        }
+    }
+
+    private void writeHeader() {
+        header.putLong(0, MAGIC);
+        header.putInt(8, VERSION);
+        header.putInt(12, 0);
+        header.putDouble(16, falsePositiveProbability);
+        header.putLong(24, initialCapacity);
+    }
+
+    private static int stageEntry(int stage) {
+        return STAGE_TABLE_OFFSET + stage * STAGE_ENTRY_SIZE;
+    }
+
+    // the probabilities of the filters form a geometric series that sums up to falsePositiveProbability
+    private double getStageProbability(int stage) {
+        return falsePositiveProbability * (1 - TIGHTENING_RATIO) * Math.pow(TIGHTENING_RATIO, stage);
+    }
+
+    private void addStage() {
+        Stage[] current = stages;
+        int index = current.length;
+        if (index == MAX_STAGES) {
+            // keeps filling the last filter, which only raises its false positive probability
+            return;
+        }
+        long offset = HEADER_SIZE;
+        if (index > 0) {
+            Stage last = current[index - 1];
+            offset = last.offset + last.bits / 8;
+        }
+        long capacity = initialCapacity;
+        for (int i = 0; i < index && capacity <= Long.MAX_VALUE / GROWTH_FACTOR / 64; i++) {
+            capacity *= GROWTH_FACTOR;
+        }
+        // m = -n ln(p) / ln(2)^2, in whole longs
+        long bits = (long) Math.ceil(-capacity * Math.log(getStageProbability(index)) / (Math.log(2) * Math.log(2)));
+        bits = Math.max(64, (bits + 63) & ~63L);
+        Stage stage;
+        try {
+            stage = new Stage(channel, header, index, offset, bits, capacity, getStageProbability(index));
+        } catch (IOException exception) {
+            logger.log(Level.SEVERE, "Failed to map bloom filter of " + capacity + " elements in " + file
+                    + ". Adding to the last filter", exception);
+            return;
+        }
+        header.putLong(stageEntry(index), offset);
+        header.putLong(stageEntry(index) + 8, bits);
+        header.putLong(stageEntry(index) + 16, capacity);
+        header.putLong(stageEntry(index) + 24, 0);
+        Stage[] grown = new Stage[index + 1];
+        System.arraycopy(current, 0, grown, 0, index);
+        grown[index] = stage;
+        header.putInt(12, index + 1);
+        stages = grown;
+    }
+
+    /**
+     * Adds an element to the newest filter in the chain.
+     *
+     * @param element is an element to register in the filter.
+     */
+    public void add(E element) {
+        add(element.toString().getBytes(charset));
+    }
+
+    /**
+     * Adds an array of bytes to the newest filter in the chain.
+     *
+     * @param bytes array of bytes to add to the filter.
+     */
+    public synchronized void add(byte[] bytes) {
+        Stage[] current = stages;
+        Stage stage = current[current.length - 1];
+        if (stage.getCount() >= stage.capacity && current.length < MAX_STAGES) {
+            addStage();
+            current = stages;
+            stage = current[current.length - 1];
+        }
+        long[] hash = hash(bytes);
+        stage.add(hash[0], hash[1]);
+    }
+
+    /**
+     * Returns true if the element could have been added to the filter.
+     *
+     * @param element element to check.
+     * @return true if the element could have been added to the filter.
+     */
+    public boolean contains(E element) {
+        return contains(element.toString().getBytes(charset));
+    }
+
+    /**
+     * Returns true if the array of bytes could have been added to the filter.
+     *
+     * @param bytes array of bytes to check.
+     * @return true if the array could have been added to the filter.
+     */
+    public boolean contains(byte[] bytes) {
+        long[] hash = hash(bytes);
+        Stage[] current = stages;
+        // the newest filters hold most of the elements
+        for (int i = current.length - 1; i >= 0; i--) {
+            if (current[i].contains(hash[0], hash[1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long[] hash(byte[] bytes) {
+        long[] hash = hashBuffer.get();
+        BloomFilter.murmurHash3(bytes, hash);
+        return hash;
+    }
+
+    /**
+     * @return number of elements added to the filter.
+     */
+    public long count() {
+        long count = 0;
+        for (Stage stage : stages) {
+            count += stage.getCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return number of filters in the chain.
+     */
+    public int getStageCount() {
+        return stages.length;
+    }
+
+    /**
+     * @return number of bits in all the filters of the chain.
+     */
+    public long size() {
+        long bits = 0;
+        for (Stage stage : stages) {
+            bits += stage.bits;
+        }
+        return bits;
+    }
+
+    /**
+     * Get the current probability of a false positive, which is the probability that
+     * any filter in the chain reports a false positive.
+     *
+     * @return probability of false positives.
+     */
+    public double getFalsePositiveProbability() {
+        double none = 1;
+        for (Stage stage : stages) {
+            none *= 1 - stage.getFalsePositiveProbability();
+        }
+        return 1 - none;
+    }
+
+    /**
+     * Writes the mapped bits back to the file. Does nothing for a filter on the heap.
+     */
+    public void flush() {
+        if (channel == null) {
+            return;
+        }
+        ((MappedByteBuffer) header).force();
+        for (Stage stage : stages) {
+            stage.force();
+        }
+    }
+
+    /**
+     * Writes the mapped bits back to the file and closes it. The filter must not be used afterwards.
+     */
+    public synchronized void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        flush();
+        randomAccessFile.close();
+    }
+
+    @Override
+    public String toString() {
+        return "ScalableBloomFilter[" + (file == null ? "heap" : file.getPath()) + ", elements: " + count()
+                + ", filters: " + stages.length + ", bits: " + size() + "]";
+    }
+
+    /**
+     * One filter of the chain. The bits are split into segments because a single buffer
+     * cannot hold more than 2^31 bytes.
+     */
+    private static final class Stage {
+
+        private final ByteBuffer header;
+        private final int index;
+        private final long offset;
+        private final long bits;
+        private final long capacity;
+        private final int k;
+        private final ByteBuffer[] segments;
+
+        private Stage(FileChannel channel, ByteBuffer header, int index, long offset, long bits, long capacity, double probability) throws IOException {
+            this.header = header;
+            this.index = index;
+            this.offset = offset;
+            this.bits = bits;
+            this.capacity = capacity;
+            // k = ceil(-log_2(false prob.))
+            this.k = Math.max(1, (int) Math.ceil(-(Math.log(probability) / Math.log(2))));
+            long bytes = bits / 8;
+            long segmentSize = 1L << SEGMENT_SHIFT;
+            segments = new ByteBuffer[(int) ((bytes + segmentSize - 1) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++) {
+                long size = Math.min(segmentSize, bytes - ((long) i << SEGMENT_SHIFT));
+                if (channel == null) {
+                    segments[i] = ByteBuffer.allocate((int) size);
+                } else {
+                    segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset + ((long) i << SEGMENT_SHIFT), size);
+                }
+            }
+        }
+
+        private long getCount() {
+            return header.getLong(stageEntry(index) + 24);
+        }
+
+        private void add(long h1, long h2) {
+            for (int i = 0; i < k; i++) {
+                long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+                ByteBuffer segment = segments[(int) (bit >>> (SEGMENT_SHIFT + 3))];
+                int position = (int) ((bit >>> 3) & ((1 << SEGMENT_SHIFT) - 1));
+                segment.put(position, (byte) (segment.get(position) | (1 << (bit & 7))));
+            }
+            header.putLong(stageEntry(index) + 24, getCount() + 1);
+        }
+
+        private boolean contains(long h1, long h2) {
+            for (int i = 0; i < k; i++) {
+                long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+                ByteBuffer segment = segments[(int) (bit >>> (SEGMENT_SHIFT + 3))];
+                int position = (int) ((bit >>> 3) & ((1 << SEGMENT_SHIFT) - 1));
+                if ((segment.get(position) & (1 << (bit & 7))) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private double getFalsePositiveProbability() {
+            // (1 - e^(-k * n / m)) ^ k
+            return Math.pow(1 - Math.exp(-k * (double) getCount() / bits), k);
+        }
+
+        private void force() {
+            for (ByteBuffer segment : segments) {
+                ((MappedByteBuffer) segment).force();
+            }
+        }
+    }
+}
@@ -0,0 +1,896 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * A non-blocking server that multiplexes the connections of several listening
+ * ports on a small number of selector threads. TLS is handled with an
+ * SSLEngine per connection and requires client authentication, just like the
+ * blocking server sockets created by the Kernel.
+ *
+ * Two kinds of protocols are supported. Line protocols receive the client's
+ * input one line at a time on a worker thread, so an idle connection does not
+ * occupy any thread. Stream protocols get blocking streams backed by the
+ * selector and run on a worker thread for the lifetime of the connection;
+ * they are meant for short-lived exchanges such as the sketch protocol.
+ */
+public class SelectorServer {
+
+    private static final Logger logger = Logger.getLogger(SelectorServer.class.getName());
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+    private static final int MAX_PENDING_LINES = 1024;
+    // Reading from a stream connection stops while this many chunks wait for
+    // its worker, and resumes once half of them have been read.
+    private static final int MAX_PENDING_CHUNKS = 64;
+    private static final int PLAIN_BUFFER_SIZE = 16 * 1024;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    /**
+     * A protocol whose client input is a sequence of lines.
+     */
+    public interface LineProtocol {
+
+        /**
+         * Called on a worker thread when a connection is established.
+         *
+         * @param output The stream used to reply to the client.
+         * @return The session that handles the lines of this connection.
+         * @throws IOException
+         */
+        LineSession open(OutputStream output) throws IOException;
+    }
+
+    /**
+     * The state of one connection of a line protocol. Lines of the same
+     * connection are processed one after the other, in the order received.
+     */
+    public interface LineSession {
+
+        /**
+         * Processes one line of client input. The session must flush its
+         * output before returning.
+         *
+         * @param line The line without its terminator.
+         * @return False if the connection should be closed.
+         * @throws IOException
+         */
+        boolean processLine(String line) throws IOException;
+
+        /**
+         * Called once when the connection is closed.
+         */
+        void close();
+    }
+
+    /**
+     * A protocol that reads its input as a stream.
+     */
+    public interface StreamProtocol {
+
+        /**
+         * Serves a connection on a worker thread. The connection is closed
+         * when this method returns.
+         *
+         * @param input The stream of client input.
+         * @param output The stream used to reply to the client.
+         * @throws IOException
+         */
+        void serve(InputStream input, OutputStream output) throws IOException;
+    }
+
+    private final SSLContext sslContext;
+    private final SelectorLoop[] loops;
+    private final List<ServerSocketChannel> serverChannels = Collections.synchronizedList(new LinkedList<ServerSocketChannel>());
+    private int nextLoop = 0;
+    private volatile boolean running = false;
+
+    /**
+     * Creates a server.
+     *
+     * @param sslContext The context used for TLS, or null for plain
+     * connections.
+     * @param selectorThreads The number of selector threads.
+     * @throws IOException
+     */
+    public SelectorServer(SSLContext sslContext, int selectorThreads) throws IOException {
+        this.sslContext = sslContext;
+        this.loops = new SelectorLoop[Math.max(1, selectorThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop(Selector.open());
+        }
+    }
+
+    /**
+     * Starts listening on a port for a line protocol.
+     *
+     * @param port The port.
+     * @param protocol The protocol served on this port.
+     * @param executor The executor on which lines are processed.
+     * @throws IOException
+     */
+    public void listen(int port, LineProtocol protocol, ExecutorService executor) throws IOException {
+        listen(port, new Listener(protocol, null, executor));
+    }
+
+    /**
+     * Starts listening on a port for a stream protocol.
+     *
+     * @param port The port.
+     * @param protocol The protocol served on this port.
+     * @param executor The executor on which connections are served.
+     * @throws IOException
+     */
+    public void listen(int port, StreamProtocol protocol, ExecutorService executor) throws IOException {
+        listen(port, new Listener(null, protocol, executor));
+    }
+
+    private void listen(int port, final Listener listener) throws IOException {
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        serverChannels.add(serverChannel);
+        loops[0].execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT, listener);
+                } catch (ClosedChannelException exception) {
+                    logger.log(Level.SEVERE, null, exception);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts the selector threads.
+     */
+    public void start() {
+        running = true;
+        for (int i = 0; i < loops.length; i++) {
+            Thread loopThread = new Thread(loops[i], "selectorServer-Thread-" + i);
+            loopThread.setDaemon(true);
+            loopThread.start();
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes all open connections.
+     */
+    public void shutdown() {
+        running = false;
+        synchronized (serverChannels) {
+            for (ServerSocketChannel serverChannel : serverChannels) {
+                try {
+                    serverChannel.close();
+                } catch (IOException exception) {
+                    logger.log(Level.SEVERE, null, exception);
+                }
+            }
+        }
+        for (SelectorLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    private void accept(Listener listener, ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SSLEngine engine = null;
+            if (sslContext != null) {
+                engine = sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                engine.setNeedClientAuth(true);
+                engine.beginHandshake();
+            }
+            SelectorLoop loop;
+            synchronized (this) {
+                loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+            final Connection connection = new Connection(loop, channel, engine, listener);
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        connection.register();
+                    } catch (RuntimeException exception) {
+                        logger.log(Level.SEVERE, "Closing connection after unexpected failure", exception);
+                        connection.close();
+                    }
+                }
+            });
+        }
+    }
+
+    private static class Listener {
+
+        final LineProtocol lineProtocol;
+        final StreamProtocol streamProtocol;
+        final ExecutorService executor;
+
+        Listener(LineProtocol lineProtocol, StreamProtocol streamProtocol, ExecutorService executor) {
+            this.lineProtocol = lineProtocol;
+            this.streamProtocol = streamProtocol;
+            this.executor = executor;
+        }
+    }
+
+    private class SelectorLoop implements Runnable {
+
+        final Selector selector;
+        final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+        SelectorLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void execute(Runnable task) {
+            pendingTasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = pendingTasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException exception) {
+                            logger.log(Level.SEVERE, null, exception);
+                        }
+                    }
+                    Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                    while (keyIterator.hasNext()) {
+                        SelectionKey key = keyIterator.next();
+                        keyIterator.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            try {
+                                accept((Listener) key.attachment(), (ServerSocketChannel) key.channel());
+                            } catch (IOException | RuntimeException exception) {
+                                logger.log(Level.SEVERE, null, exception);
+                            }
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.readable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.writable();
+                            }
+                        } catch (IOException exception) {
+                            logger.log(Level.FINE, null, exception);
+                            connection.close();
+                        } catch (RuntimeException exception) {
+                            // A failing connection must not take down the
+                            // other connections of this loop
+                            logger.log(Level.SEVERE, "Closing connection after unexpected failure", exception);
+                            connection.close();
+                        }
+                    }
+                } catch (IOException | RuntimeException exception) {
+                    logger.log(Level.SEVERE, null, exception);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException exception) {
+                logger.log(Level.SEVERE, null, exception);
+            }
+        }
+    }
+
+    private class Connection {
+
+        private final SelectorLoop loop;
+        private final SocketChannel channel;
+        private final SSLEngine engine;
+        private final Listener listener;
+        private SelectionKey key;
+        private ByteBuffer netIn;
+        private ByteBuffer netOut;
+        private ByteBuffer appIn;
+        // Replies queued by worker threads and encrypted by the selector thread.
+        private final Queue<ByteBuffer> appOut = new ConcurrentLinkedQueue<>();
+        private final ConnectionOutputStream output = new ConnectionOutputStream();
+        private final ConnectionInputStream input;
+        private volatile boolean closeRequested = false;
+        private volatile boolean closed = false;
+        // Stream protocol backpressure. Set by the selector when the input
+        // queue is full, cleared by the worker once it has caught up.
+        private final AtomicBoolean readPaused = new AtomicBoolean(false);
+        private boolean inputEnded = false;
+        // Line protocol state, guarded by this.
+        private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+        private final Queue<String> pendingLines = new LinkedList<>();
+        private boolean inputClosed = false;
+        private boolean drainScheduled = false;
+        private LineSession session;
+
+        Connection(SelectorLoop loop, SocketChannel channel, SSLEngine engine, Listener listener) {
+            this.loop = loop;
+            this.channel = channel;
+            this.engine = engine;
+            this.listener = listener;
+            this.input = (listener.streamProtocol != null) ? new ConnectionInputStream() : null;
+            int packetSize = (engine != null) ? engine.getSession().getPacketBufferSize() : PLAIN_BUFFER_SIZE;
+            int applicationSize = (engine != null) ? engine.getSession().getApplicationBufferSize() : PLAIN_BUFFER_SIZE;
+            netIn = ByteBuffer.allocate(packetSize);
+            netOut = ByteBuffer.allocate(packetSize);
+            netOut.flip();
+            appIn = ByteBuffer.allocate(applicationSize);
+        }
+
+        // Selector thread.
+        void register() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            } catch (ClosedChannelException exception) {
+                close();
+                return;
+            }
+            if (listener.streamProtocol != null) {
+                try {
+                    listener.executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            serveStream();
+                        }
+                    });
+                } catch (RejectedExecutionException exception) {
+                    logger.log(Level.WARNING, "Refusing connection from {0}: all workers are busy", channel.socket().getRemoteSocketAddress());
+                    close();
+                }
+            } else {
+                scheduleDrain();
+            }
+            if (engine != null) {
+                try {
+                    flushOutbound();
+                } catch (IOException exception) {
+                    close();
+                }
+            }
+        }
+
+        // Selector thread.
+        void readable() throws IOException {
+            int count = channel.read(engine != null ? netIn : appIn);
+            if (count < 0) {
+                if (engine != null) {
+                    HandshakeStatus handshakeStatus = engine.getHandshakeStatus();
+                    if (handshakeStatus != HandshakeStatus.NOT_HANDSHAKING && handshakeStatus != HandshakeStatus.FINISHED) {
+                        // The peer went away before the handshake completed.
+                        close();
+                        return;
+                    }
+                    try {
+                        engine.closeInbound();
+                    } catch (SSLException exception) {
+                        // The peer did not send close_notify.
+                    }
+                }
+                endOfInput();
+                inputEnded = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                return;
+            }
+            if (engine != null) {
+                unwrap();
+            } else {
+                deliver();
+            }
+        }
+
+        // Selector thread.
+        void writable() throws IOException {
+            flushOutbound();
+            if (engine != null && netIn.position() > 0 && !readPaused.get()) {
+                unwrap();
+            }
+        }
+
+        // Selector thread. Stops reading while the worker has not caught up
+        // with the input; data already received stays in netIn.
+        private void pauseReading() {
+            readPaused.set(true);
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        // Selector thread.
+        private void resumeReading() throws IOException {
+            if (closed || readPaused.get() || !key.isValid()) {
+                return;
+            }
+            if (!inputEnded) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+            if (engine != null && netIn.position() > 0) {
+                unwrap();
+            }
+        }
+
+        // Worker thread.
+        private void inputDrained() {
+            if (readPaused.compareAndSet(true, false)) {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            resumeReading();
+                        } catch (IOException exception) {
+                            close();
+                        } catch (RuntimeException exception) {
+                            logger.log(Level.SEVERE, "Closing connection after unexpected failure", exception);
+                            close();
+                        }
+                    }
+                });
+            }
+        }
+
+        private void unwrap() throws IOException {
+            netIn.flip();
+            try {
+                while (netIn.hasRemaining() && !readPaused.get()) {
+                    SSLEngineResult result = engine.unwrap(netIn, appIn);
+                    boolean ranTasks = runDelegatedTasks();
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        deliver();
+                        appIn = ByteBuffer.allocate(Math.max(appIn.capacity() * 2, engine.getSession().getApplicationBufferSize()));
+                        continue;
+                    } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        if (netIn.position() == 0 && netIn.limit() == netIn.capacity()) {
+                            // A single record does not fit in the buffer.
+                            ByteBuffer largerBuffer = ByteBuffer.allocate(Math.max(netIn.capacity() * 2, engine.getSession().getPacketBufferSize()));
+                            largerBuffer.put(netIn);
+                            largerBuffer.flip();
+                            netIn = largerBuffer;
+                        }
+                        break;
+                    } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        deliver();
+                        endOfInput();
+                        closeRequested = true;
+                        break;
+                    }
+                    deliver();
+                    HandshakeStatus handshakeStatus = engine.getHandshakeStatus();
+                    if (handshakeStatus == HandshakeStatus.NEED_WRAP) {
+                        flushOutbound();
+                    } else if (result.bytesConsumed() == 0 && result.bytesProduced() == 0 && !ranTasks) {
+                        break;
+                    }
+                }
+            } finally {
+                netIn.compact();
+            }
+            flushOutbound();
+        }
+
+        private boolean runDelegatedTasks() {
+            boolean ranTasks = false;
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+                ranTasks = true;
+            }
+            return ranTasks;
+        }
+
+        // Selector thread. Encrypts and writes as much of the queued output
+        // as the channel accepts.
+        void flushOutbound() throws IOException {
+            if (closed) {
+                return;
+            }
+            while (true) {
+                if (netOut.hasRemaining()) {
+                    channel.write(netOut);
+                    if (netOut.hasRemaining()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                ByteBuffer source;
+                if (engine == null) {
+                    source = appOut.poll();
+                    if (source == null) {
+                        break;
+                    }
+                    netOut = source;
+                    continue;
+                }
+                HandshakeStatus handshakeStatus = engine.getHandshakeStatus();
+                if (handshakeStatus == HandshakeStatus.NEED_WRAP) {
+                    source = EMPTY_BUFFER;
+                } else if (handshakeStatus == HandshakeStatus.NOT_HANDSHAKING || handshakeStatus == HandshakeStatus.FINISHED) {
+                    source = appOut.peek();
+                    if (source == null) {
+                        if (closeRequested && !engine.isOutboundDone()) {
+                            engine.closeOutbound();
+                            source = EMPTY_BUFFER;
+                        } else {
+                            break;
+                        }
+                    }
+                } else {
+                    // The handshake is waiting for input from the peer.
+                    break;
+                }
+                netOut.clear();
+                SSLEngineResult result = engine.wrap(source, netOut);
+                netOut.flip();
+                runDelegatedTasks();
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    netOut = ByteBuffer.allocate(netOut.capacity() * 2);
+                    netOut.flip();
+                    continue;
+                }
+                if (source != EMPTY_BUFFER && !source.hasRemaining()) {
+                    appOut.poll();
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED && !netOut.hasRemaining()) {
+                    break;
+                }
+            }
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            if (closeRequested && appOut.isEmpty() && (engine == null || engine.isOutboundDone())) {
+                close();
+            }
+        }
+
+        // Selector thread. Hands decrypted input to the protocol.
+        private void deliver() {
+            appIn.flip();
+            if (!appIn.hasRemaining()) {
+                appIn.clear();
+                return;
+            }
+            if (input != null) {
+                byte[] data = new byte[appIn.remaining()];
+                appIn.get(data);
+                if (input.offer(data) >= MAX_PENDING_CHUNKS) {
+                    pauseReading();
+                }
+            } else {
+                synchronized (this) {
+                    while (appIn.hasRemaining()) {
+                        byte nextByte = appIn.get();
+                        if (nextByte == '\n') {
+                            String line = new String(lineBuffer.toByteArray(), StandardCharsets.UTF_8);
+                            if (line.endsWith("\r")) {
+                                line = line.substring(0, line.length() - 1);
+                            }
+                            lineBuffer.reset();
+                            pendingLines.add(line);
+                        } else {
+                            lineBuffer.write(nextByte);
+                        }
+                    }
+                    if (lineBuffer.size() > MAX_LINE_LENGTH || pendingLines.size() > MAX_PENDING_LINES) {
+                        logger.log(Level.WARNING, "Closing connection from {0}: input limit exceeded", channel.socket().getRemoteSocketAddress());
+                        pendingLines.clear();
+                        inputClosed = true;
+                        closeRequested = true;
+                    }
+                }
+                scheduleDrain();
+            }
+            appIn.clear();
+        }
+
+        private void endOfInput() {
+            if (input != null) {
+                input.offer(null);
+            } else {
+                synchronized (this) {
+                    inputClosed = true;
+                }
+                scheduleDrain();
+            }
+        }
+
+        private void scheduleDrain() {
+            synchronized (this) {
+                if (drainScheduled) {
+                    return;
+                }
+                drainScheduled = true;
+            }
+            try {
+                listener.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drainLines();
+                    }
+                });
+            } catch (RejectedExecutionException exception) {
+                logger.log(Level.WARNING, "Closing connection from {0}: all workers are busy", channel.socket().getRemoteSocketAddress());
+                synchronized (this) {
+                    drainScheduled = false;
+                }
+                requestClose();
+            }
+        }
+
+        // Worker thread. Processes the pending lines of this connection in
+        // order; at most one drain runs per connection at a time.
+        private void drainLines() {
+            try {
+                LineSession currentSession;
+                synchronized (this) {
+                    currentSession = session;
+                }
+                if (currentSession == null) {
+                    currentSession = listener.lineProtocol.open(output);
+                    output.flush();
+                    synchronized (this) {
+                        if (closed) {
+                            currentSession.close();
+                            return;
+                        }
+                        session = currentSession;
+                    }
+                }
+                while (true) {
+                    String line;
+                    synchronized (this) {
+                        line = pendingLines.poll();
+                        if (line == null) {
+                            drainScheduled = false;
+                            if (inputClosed) {
+                                break;
+                            }
+                            return;
+                        }
+                    }
+                    if (!currentSession.processLine(line)) {
+                        break;
+                    }
+                    output.flush();
+                }
+            } catch (Exception exception) {
+                logger.log(Level.FINE, null, exception);
+            }
+            requestClose();
+        }
+
+        // Worker thread.
+        private void serveStream() {
+            try {
+                listener.streamProtocol.serve(input, output);
+                if (!closed) {
+                    output.flush();
+                }
+            } catch (Exception exception) {
+                // Failures after the peer has gone away are expected.
+                logger.log(closed ? Level.FINE : Level.SEVERE, null, exception);
+            }
+            requestClose();
+        }
+
+        // Any thread. Closes the connection once queued output is written.
+        void requestClose() {
+            closeRequested = true;
+            wakeSelector();
+        }
+
+        private void wakeSelector() {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flushOutbound();
+                    } catch (IOException exception) {
+                        close();
+                    } catch (RuntimeException exception) {
+                        logger.log(Level.SEVERE, "Closing connection after unexpected failure", exception);
+                        close();
+                    }
+                }
+            });
+        }
+
+        // Selector thread.
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException exception) {
+                logger.log(Level.FINE, null, exception);
+            }
+            if (input != null) {
+                input.offer(null);
+            }
+            final LineSession closingSession;
+            synchronized (this) {
+                closingSession = session;
+                session = null;
+                pendingLines.clear();
+                inputClosed = true;
+            }
+            if (closingSession != null) {
+                closingSession.close();
+            }
+        }
+
+        /**
+         * Buffers the reply of a worker thread until it is flushed to the
+         * selector.
+         */
+        private class ConnectionOutputStream extends OutputStream {
+
+            private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+            @Override
+            public synchronized void write(int b) throws IOException {
+                checkOpen();
+                buffer.write(b);
+            }
+
+            @Override
+            public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+                checkOpen();
+                buffer.write(bytes, offset, length);
+            }
+
+            @Override
+            public synchronized void flush() throws IOException {
+                checkOpen();
+                if (buffer.size() > 0) {
+                    appOut.add(ByteBuffer.wrap(buffer.toByteArray()));
+                    buffer.reset();
+                    wakeSelector();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    flush();
+                }
+            }
+
+            private void checkOpen() throws IOException {
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+            }
+        }
+
+        /**
+         * Blocking view of the input received by the selector for stream
+         * protocols. A null chunk marks the end of the input. The selector
+         * stops reading once MAX_PENDING_CHUNKS chunks are queued, so the
+         * queue holds at most that many chunks plus those decrypted from the
+         * last read.
+         */
+        private class ConnectionInputStream extends InputStream {
+
+            private final LinkedBlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+            private final byte[] endOfStream = new byte[0];
+            private byte[] currentChunk = null;
+            private int position = 0;
+            private boolean ended = false;
+
+            // Returns the number of queued chunks.
+            int offer(byte[] chunk) {
+                chunks.add(chunk == null ? endOfStream : chunk);
+                return chunks.size();
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                int count = read(single, 0, 1);
+                return (count < 0) ? -1 : (single[0] & 0xff);
+            }
+
+            @Override
+            public synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                while (!ended && (currentChunk == null || position == currentChunk.length)) {
+                    try {
+                        currentChunk = chunks.take();
+                        if (chunks.size() <= MAX_PENDING_CHUNKS / 2) {
+                            inputDrained();
+                        }
+                    } catch (InterruptedException exception) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while reading", exception);
+                    }
+                    position = 0;
+                    if (currentChunk == endOfStream) {
+                        ended = true;
+                    }
+                }
+                if (ended) {
+                    return -1;
+                }
+                int count = Math.min(length, currentChunk.length - position);
+                System.arraycopy(currentChunk, position, bytes, offset, count);
+                position += count;
+                return count;
+            }
+
+            @Override
+            public synchronized int available() {
+                return (currentChunk == null || ended) ? 0 : currentChunk.length - position;
+            }
+        }
+    }
+}
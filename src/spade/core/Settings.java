@@ -49,7 +49,45 @@ public class Settings {
             setProperty("direction_both", "both");
             setProperty("storage_identifier", "storageID");
             setProperty("default_query_storage", "Neo4j");
+            setProperty("fresh_query_reads", "false");
+            setProperty("query_worker_threads", "16");
+            setProperty("query_queue_size", "64");
+            setProperty("query_connection_idle_timeout", "300000");
+            setProperty("query_max_concurrent", "8");
+            setProperty("query_timeout", "300000");
+            setProperty("query_max_result_elements", "1000000");
+            setProperty("selector_server", "false");
+            setProperty("selector_threads", "2");
+            setProperty("control_worker_threads", "4");
+            setProperty("control_queue_size", "16");
+            setProperty("remote_query_threads", "16");
+            setProperty("remote_query_host_concurrency", "4");
+            setProperty("remote_connection_max_idle", "4");
+            setProperty("remote_connection_idle_timeout", "30000");
+            setProperty("transformer_parallelism", "1");
+            setProperty("transformer_partition_size", "4096");
+            setProperty("transformer_cache_size", "32");
+            setProperty("transformer_cache_max_elements", "1000000");
             setProperty("neo4j_webserver", "true");
+            setProperty("neo4j_node_cache_size", "1000000");
+            setProperty("neo4j_edge_cache_size", "1000000");
+            setProperty("neo4j_edge_index_deduplication", "true");
+            setProperty("neo4j_hash_index", "legacy");
+            setProperty("neo4j_writer_queue_size", "100000");
+            setProperty("neo4j_commit_batch_size", "100000");
+            setProperty("neo4j_commit_interval", "15000");
+            setProperty("neo4j_commit_idle_delay", "100");
+            setProperty("sketch_cache_ttl", "30000");
+            setProperty("sketch_fetch_threads", "4");
+            setProperty("sketch_fetch_max_waiters", "1024");
+            setProperty("sketch_update_threads", "4");
+            setProperty("sketch_update_queue_size", "1024");
+            setProperty("sketch_update_window", "100");
+            setProperty("sketch_update_batch_size", "256");
+            setProperty("sketch_update_timeout", "60000");
+            setProperty("sql_batch_size", "1000");
+            setProperty("sql_commit_interval", "15000");
+            setProperty("sql_statement_cache_size", "64");
         }
     }
 
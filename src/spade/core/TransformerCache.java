@@ -0,0 +1,191 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import spade.client.QueryParameters;
+import spade.utility.CommonFunctions;
+
+/**
+ * Caches the output of the transformer chain for recently transformed query results.
+ * An entry is keyed by a digest of the content of the input graph, the parameters of the
+ * query and the ordered list of transformers with their arguments, so a result is only
+ * reused if the same chain is applied to the same graph for the same query.
+ *
+ * Entries are evicted least recently used first once there are more than
+ * transformer_cache_size of them or they hold more than transformer_cache_max_elements
+ * vertices and edges in total. A size of 0 disables the cache.
+ */
+public class TransformerCache {
+
+	private static final int MAX_ENTRIES = CommonFunctions.parseInt(Settings.getProperty("transformer_cache_size"), 32);
+	private static final long MAX_ELEMENTS = CommonFunctions.parseLong(Settings.getProperty("transformer_cache_max_elements"), 1000000L);
+
+	private static final LinkedHashMap<String, Graph> entries = new LinkedHashMap<String, Graph>(16, 0.75f, true);
+	private static long cachedElements;
+	private static long hits, misses, evictions;
+
+	public static boolean isEnabled(){
+		return MAX_ENTRIES > 0;
+	}
+
+	/**
+	 * @param graph The graph that is about to be transformed.
+	 * @param queryParameters The parameters of the query that returned the graph.
+	 * @param transformers The transformers in the order that they are applied.
+	 * @return The key of the transformed graph.
+	 */
+	public static String getKey(Graph graph, QueryParameters queryParameters, List<AbstractTransformer> transformers){
+		StringBuilder key = new StringBuilder(digest(graph));
+		key.append('|').append(queryParameters);
+		for(AbstractTransformer transformer : transformers){
+			key.append('|').append(transformer.getClass().getName()).append('(').append(transformer.arguments).append(')');
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return The cached output for the key or null if there is none.
+	 */
+	public static synchronized Graph get(String key){
+		Graph graph = entries.get(key);
+		if(graph == null){
+			misses++;
+		}else{
+			hits++;
+		}
+		return graph;
+	}
+
+	/**
+	 * Caches the output of the transformers. The graph is indexed before it is cached
+	 * because it is shared by all the queries that read it and must not change.
+	 */
+	public static void put(String key, Graph graph){
+		long size = size(graph);
+		if(size > MAX_ELEMENTS){
+			return;
+		}
+		graph.commitIndex();
+		synchronized(TransformerCache.class){
+			Graph previous = entries.put(key, graph);
+			if(previous != null){
+				cachedElements -= size(previous);
+			}
+			cachedElements += size;
+			Iterator<Graph> iterator = entries.values().iterator();
+			while(iterator.hasNext() && (entries.size() > MAX_ENTRIES || cachedElements > MAX_ELEMENTS)){
+				cachedElements -= size(iterator.next());
+				iterator.remove();
+				evictions++;
+			}
+		}
+	}
+
+	/**
+	 * Drops all entries. Called when the transformers change.
+	 */
+	public static synchronized void clear(){
+		entries.clear();
+		cachedElements = 0;
+	}
+
+	public static synchronized String getStatistics(){
+		long requests = hits + misses;
+		return "Transformer cache: " + entries.size() + " entries (" + cachedElements + " elements), "
+				+ hits + " hits, " + misses + " misses, " + evictions + " evictions"
+				+ (requests > 0 ? String.format(", hit rate %.1f%%", 100.0 * hits / requests) : "");
+	}
+
+	private static long size(Graph graph){
+		return (long) graph.vertexSet().size() + graph.edgeSet().size();
+	}
+
+	/**
+	 * Combines SHA-256 digests of the annotations of every vertex and edge by addition
+	 * so that the digest does not depend on the order of the elements.
+	 */
+	private static String digest(Graph graph){
+		MessageDigest messageDigest;
+		try{
+			messageDigest = MessageDigest.getInstance("SHA-256");
+		}catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);
+		}
+		long[] sum = new long[4];
+		Map<AbstractVertex, byte[]> vertexDigests = new HashMap<AbstractVertex, byte[]>();
+		for(AbstractVertex vertex : graph.vertexSet()){
+			byte[] vertexDigest = digest(messageDigest, vertex.getAnnotations(), null, null);
+			vertexDigests.put(vertex, vertexDigest);
+			add(sum, vertexDigest);
+		}
+		for(AbstractEdge edge : graph.edgeSet()){
+			byte[] sourceDigest = vertexDigests.get(edge.getSourceVertex());
+			byte[] destinationDigest = vertexDigests.get(edge.getDestinationVertex());
+			if(sourceDigest == null){
+				sourceDigest = digest(messageDigest, edge.getSourceVertex().getAnnotations(), null, null);
+			}
+			if(destinationDigest == null){
+				destinationDigest = digest(messageDigest, edge.getDestinationVertex().getAnnotations(), null, null);
+			}
+			add(sum, digest(messageDigest, edge.getAnnotations(), sourceDigest, destinationDigest));
+		}
+		StringBuilder result = new StringBuilder();
+		for(long value : sum){
+			result.append(String.format("%016x", value));
+		}
+		return result.append(':').append(graph.vertexSet().size()).append(':').append(graph.edgeSet().size()).toString();
+	}
+
+	private static byte[] digest(MessageDigest messageDigest, Map<String, String> annotations, byte[] sourceDigest, byte[] destinationDigest){
+		// sorted since equal annotation maps can iterate in different orders
+		for(Map.Entry<String, String> annotation : new TreeMap<String, String>(annotations).entrySet()){
+			messageDigest.update(annotation.getKey().getBytes(StandardCharsets.UTF_8));
+			messageDigest.update((byte) 0);
+			messageDigest.update(String.valueOf(annotation.getValue()).getBytes(StandardCharsets.UTF_8));
+			messageDigest.update((byte) 0);
+		}
+		if(sourceDigest != null){
+			messageDigest.update((byte) 1);
+			messageDigest.update(sourceDigest);
+			messageDigest.update(destinationDigest);
+		}
+		return messageDigest.digest();
+	}
+
+	private static void add(long[] sum, byte[] digest){
+		for(int i = 0; i < sum.length; i++){
+			long value = 0;
+			for(int j = 0; j < 8; j++){
+				value = (value << 8) | (digest[i * 8 + j] & 0xff);
+			}
+			sum[i] += value;
+		}
+	}
+}
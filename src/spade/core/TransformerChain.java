@@ -0,0 +1,101 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import spade.client.QueryParameters;
+
+/**
+ * Executes a list of transformers on a query result. Runs of consecutive edge
+ * transformers are fused into a single pass over the edges so that no
+ * intermediate graph is built between them. Graphs are indexed lazily, so the
+ * intermediate results of whole-graph transformers are only indexed if a
+ * transformer queries them.
+ */
+public class TransformerChain {
+	
+	private static final Logger logger = Logger.getLogger(TransformerChain.class.getName());
+	
+	/**
+	 * Transforms the graph with the given transformers in order. A transformer that 
+	 * fails is logged and skipped. If a fused run of edge transformers fails then its
+	 * transformers are run one at a time so that only the failing one is skipped.
+	 * 
+	 * @param graph The graph to transform.
+	 * @param transformers The transformers to apply.
+	 * @param digQueryParams The parameters of the query whose result is being transformed.
+	 * @return The transformed graph or null if a transformer returned null.
+	 * @throws QueryContext.CancelledException If the query being transformed has been cancelled.
+	 */
+	public static Graph execute(Graph graph, List<AbstractTransformer> transformers, QueryParameters digQueryParams){
+		int i = 0;
+		while(graph != null && i < transformers.size()){
+			if(transformers.get(i) instanceof AbstractEdgeTransformer){
+				List<AbstractEdgeTransformer> edgeTransformers = new ArrayList<AbstractEdgeTransformer>();
+				while(i < transformers.size() && transformers.get(i) instanceof AbstractEdgeTransformer){
+					edgeTransformers.add((AbstractEdgeTransformer)transformers.get(i));
+					i++;
+				}
+				graph = transformEdges(edgeTransformers, graph, digQueryParams);
+			}else{
+				graph = putGraph(transformers.get(i), graph, digQueryParams);
+				i++;
+			}
+		}
+		return graph;
+	}
+	
+	private static Graph transformEdges(List<AbstractEdgeTransformer> edgeTransformers, Graph graph, QueryParameters digQueryParams){
+		if(edgeTransformers.size() > 1){
+			QueryContext.checkpoint();
+			try{
+				return AbstractEdgeTransformer.transformEdges(graph, edgeTransformers, digQueryParams);
+			}catch(QueryContext.CancelledException e){
+				throw e;
+			}catch(Exception e){
+				logger.log(Level.WARNING, "Fused transformers failed. Running them one at a time", e);
+			}
+		}
+		for(AbstractEdgeTransformer transformer : edgeTransformers){
+			if(graph == null){
+				break;
+			}
+			graph = putGraph(transformer, graph, digQueryParams);
+		}
+		return graph;
+	}
+	
+	private static Graph putGraph(AbstractTransformer transformer, Graph graph, QueryParameters digQueryParams){
+		QueryContext.checkpoint();
+		try{
+			return transformer.putGraph(graph, digQueryParams);
+		}catch(QueryContext.CancelledException e){
+			throw e;
+		}catch(Exception e){
+			logger.log(Level.SEVERE, null, e);
+			return graph;
+		}
+	}
+	
+}
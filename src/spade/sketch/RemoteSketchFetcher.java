@@ -0,0 +1,243 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.sketch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import spade.core.AbstractSketch;
+import spade.core.Kernel;
+import spade.core.MatrixFilter;
+import spade.core.RemoteConnectionPool;
+import spade.core.Settings;
+import spade.utility.CommonFunctions;
+
+/**
+ * Fetches the sketches of remote hosts in the background and stores them in
+ * Kernel.remoteSketches.
+ *
+ * A host is sent the versions of the sketches that it sent before and only
+ * replies with the rows of its matrix filters that changed after them, so a
+ * fetch costs as much as the changes on the host rather than its sketches.
+ *
+ * A sketch fetched from a host is reused for sketch_cache_ttl milliseconds.
+ * Requests for a host whose fetch is still in progress wait for that fetch
+ * instead of starting another one, so a burst of connections to the same host
+ * results in a single round trip. At most sketch_fetch_max_waiters requests
+ * wait for a fetch, further requests use the sketches received before so that
+ * a host that does not answer cannot make the waiters grow without bound.
+ */
+final class RemoteSketchFetcher {
+
+    private static final Logger logger = Logger.getLogger(RemoteSketchFetcher.class.getName());
+    private static final long CACHE_TTL = CommonFunctions.parseLong(Settings.getProperty("sketch_cache_ttl"), 30000L);
+    private static final int FETCH_THREADS = CommonFunctions.parseInt(Settings.getProperty("sketch_fetch_threads"), 4);
+    private static final int MAX_WAITERS = CommonFunctions.parseInt(Settings.getProperty("sketch_fetch_max_waiters"), 1024);
+    // At most one fetch per host is queued so the queue is bounded by the number of hosts
+    private static final ThreadPoolExecutor fetchExecutor = createFetchExecutor();
+    // Guarded by itself
+    private static final Map<String, Fetch> fetches = new HashMap<>();
+    // The versions of the sketches received from each host. A fetch updates
+    // the versions of its host, apply() removes keys from the others.
+    private static final Map<String, Map<String, MatrixFilter.Version>> receivedVersions = new ConcurrentHashMap<>();
+
+    private RemoteSketchFetcher() {
+    }
+
+    private static ThreadPoolExecutor createFetchExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(FETCH_THREADS, FETCH_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "sketchFetch-Thread");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Runs the action on the executor once Kernel.remoteSketches holds a
+     * sketch of the remote host that is no older than sketch_cache_ttl. Never
+     * blocks the caller on the network. If the fetch fails, or too many
+     * actions are already waiting for it, the action runs with the sketches
+     * received before, if any, and the next request retries a failed fetch.
+     *
+     * @param remoteHost The host to fetch the sketches from.
+     * @param localHost The name of this host as seen by the remote host, its
+     * sketch is not copied from the remote host.
+     * @param action The action to run once the sketch is available.
+     * @param executor The executor to run the action on.
+     */
+    static void whenAvailable(String remoteHost, String localHost, Runnable action, Executor executor) {
+        Fetch fetch;
+        synchronized (fetches) {
+            fetch = fetches.get(remoteHost);
+            if (fetch != null && fetch.isPending()) {
+                if (fetch.waiters.size() < MAX_WAITERS) {
+                    fetch.waiters.add(action);
+                    return;
+                }
+                if (!fetch.overflowed) {
+                    fetch.overflowed = true;
+                    logger.log(Level.WARNING, "concreteSketch - {0} updates waiting for sketches from {1}, using the sketches received before",
+                            new Object[]{MAX_WAITERS, remoteHost});
+                }
+            } else if (fetch == null || fetch.isExpired()) {
+                fetch = new Fetch(remoteHost, localHost, executor);
+                fetch.waiters.add(action);
+                fetches.put(remoteHost, fetch);
+                fetchExecutor.execute(fetch);
+                return;
+            }
+        }
+        executor.execute(action);
+    }
+
+    /**
+     * Makes the next request for every host fetch the sketches of that host
+     * again, regardless of sketch_cache_ttl.
+     */
+    static void invalidate() {
+        synchronized (fetches) {
+            for (Fetch fetch : fetches.values()) {
+                fetch.invalidated = true;
+            }
+        }
+    }
+
+    /**
+     * Brings the copy of a sketch in Kernel.remoteSketches up to date with a
+     * delta and records the version that the copy is at. The bits of a delta
+     * are added to the copy so bits received from other hosts are kept. A
+     * copy is only replaced if its size differs from the delta, and then no
+     * host has sent the new copy, so all hosts are asked for the whole
+     * sketch next time.
+     */
+    private static void apply(String remoteHost, String key, MatrixFilter.Delta delta, Map<String, MatrixFilter.Version> versions) {
+        synchronized (Kernel.remoteSketches) {
+            AbstractSketch copy = Kernel.remoteSketches.get(key);
+            if (copy == null || !copy.matrixFilter.merge(delta)) {
+                if (!delta.isFull()) {
+                    // The copy was not built from this host, get the whole sketch next time
+                    versions.remove(key);
+                    return;
+                }
+                if (copy != null) {
+                    for (Map.Entry<String, Map<String, MatrixFilter.Version>> host : receivedVersions.entrySet()) {
+                        if (!host.getKey().equals(remoteHost)) {
+                            host.getValue().remove(key);
+                        }
+                    }
+                }
+                Kernel.remoteSketches.put(key, new Sketch(delta.getMatrixFilter()));
+            }
+            versions.put(key, delta.getVersion());
+        }
+    }
+
+    private static final class Fetch implements Runnable {
+
+        private final String remoteHost;
+        private final String localHost;
+        private final Executor executor;
+        private final List<Runnable> waiters = new ArrayList<>();
+        // Guarded by fetches, zero while the fetch is in progress
+        private long completedAt;
+        private boolean invalidated;
+        private boolean overflowed;
+
+        private Fetch(String remoteHost, String localHost, Executor executor) {
+            this.remoteHost = remoteHost;
+            this.localHost = localHost;
+            this.executor = executor;
+        }
+
+        private boolean isPending() {
+            return completedAt == 0;
+        }
+
+        private boolean isExpired() {
+            return invalidated || System.currentTimeMillis() - completedAt >= CACHE_TTL;
+        }
+
+        @Override
+        public void run() {
+            boolean fetched = false;
+            try {
+                logger.log(Level.INFO, "concreteSketch - Attempting to receive sketches from {0}", remoteHost);
+                Map<String, MatrixFilter.Version> versions = receivedVersions.get(remoteHost);
+                if (versions == null) {
+                    versions = new ConcurrentHashMap<>();
+                    receivedVersions.put(remoteHost, versions);
+                }
+                final Map<String, MatrixFilter.Version> sentVersions = new HashMap<>(versions);
+                // The host does not know the name it is stored under here
+                final MatrixFilter.Version hostVersion = sentVersions.remove(remoteHost);
+                Object[] response = RemoteConnectionPool.executeSketch(remoteHost, new RemoteConnectionPool.Request<Object[]>() {
+                    @Override
+                    public Object[] execute(RemoteConnectionPool.RemoteConnection connection) throws IOException, ClassNotFoundException {
+                        connection.writeObject("giveSketchDelta");
+                        connection.writeObject(hostVersion);
+                        connection.writeObject(sentVersions);
+                        return new Object[]{connection.readObject(), connection.readObject()};
+                    }
+                });
+                MatrixFilter.Delta hostDelta = (MatrixFilter.Delta) response[0];
+                Map<String, MatrixFilter.Delta> deltas = (Map<String, MatrixFilter.Delta>) response[1];
+                if (hostDelta != null) {
+                    apply(remoteHost, remoteHost, hostDelta, versions);
+                }
+                deltas.remove(localHost);
+                for (Map.Entry<String, MatrixFilter.Delta> delta : deltas.entrySet()) {
+                    apply(remoteHost, delta.getKey(), delta.getValue(), versions);
+                }
+                fetched = true;
+                logger.log(Level.INFO, "concreteSketch - Received sketches from {0}", remoteHost);
+            } catch (IOException | ClassNotFoundException | RuntimeException exception) {
+                logger.log(Level.SEVERE, "concreteSketch - Unable to receive sketches from " + remoteHost, exception);
+            }
+            List<Runnable> ready;
+            synchronized (fetches) {
+                completedAt = System.currentTimeMillis();
+                if (!fetched) {
+                    fetches.remove(remoteHost);
+                }
+                ready = new ArrayList<>(waiters);
+                waiters.clear();
+            }
+            for (Runnable action : ready) {
+                executor.execute(action);
+            }
+        }
+    }
+}
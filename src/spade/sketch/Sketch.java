@@ -19,144 +19,396 @@
  */
 package spade.sketch;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.net.ssl.SSLSocket;
+import org.apache.lucene.queryParser.QueryParser;
 import spade.core.*;
+import spade.utility.CommonFunctions;
 
 public class Sketch extends AbstractSketch {
 
     private static final double falsePositiveProbability = 0.1;
     private static final int expectedSize = 20;
     private static final Logger logger = Logger.getLogger(Sketch.class.getName());
-    private static final boolean USE_CACHE = false;
+    private static final int UPDATE_THREADS = CommonFunctions.parseInt(Settings.getProperty("sketch_update_threads"), 4);
+    private static final int UPDATE_QUEUE_SIZE = CommonFunctions.parseInt(Settings.getProperty("sketch_update_queue_size"), 1024);
+    private static final long UPDATE_WINDOW = CommonFunctions.parseLong(Settings.getProperty("sketch_update_window"), 100L);
+    // Each update is a clause of the lineage query, Lucene allows 1024 by default
+    private static final int UPDATE_BATCH_SIZE = CommonFunctions.parseInt(Settings.getProperty("sketch_update_batch_size"), 256);
+    // Runs batches of matrix updates off the ingest thread. When the queue is
+    // full the batch runs on the thread that submitted it to slow down ingestion.
+    private static final ThreadPoolExecutor updateExecutor = createUpdateExecutor();
+    // Submits the updates that arrived within UPDATE_WINDOW of each other as one batch
+    private static final ScheduledExecutorService batchTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "sketchBatch-Thread");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    // Adds the update to the batch on the thread that found the remote sketch available
+    private static final Executor batchExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    private static final Object updateLock = new Object();
+    // Updates that were submitted and have not finished, guarded by updateLock
+    private static int pendingUpdates;
+    // Updates waiting to be submitted as a batch, guarded by updateLock
+    private static List<MatrixUpdate> batch = new ArrayList<>();
 
     public Sketch() {
         matrixFilter = new MatrixFilter(falsePositiveProbability, expectedSize);
         objects = new HashMap<>();
     }
 
+    /**
+     * Creates a sketch that holds a matrix filter received from another host.
+     */
+    Sketch(MatrixFilter matrixFilter) {
+        this.matrixFilter = matrixFilter;
+        objects = new HashMap<>();
+    }
+
+    private static ThreadPoolExecutor createUpdateExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(UPDATE_THREADS, UPDATE_THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(UPDATE_QUEUE_SIZE), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "sketchUpdate-Thread");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     @Override
     public void putVertex(AbstractVertex incomingVertex) {
     }
 
     @Override
     public void putEdge(AbstractEdge incomingEdge) {
-        try {
-            if (incomingEdge.type().equalsIgnoreCase("Used")
-                    && incomingEdge.getDestinationVertex().getAnnotation("network").equalsIgnoreCase("true")) {
-                // Connection was created to this host
-                AbstractVertex networkVertex = incomingEdge.getDestinationVertex();
-                String remoteHost = networkVertex.getAnnotation("destination host");
-                String localHost = networkVertex.getAnnotation("source host");
-                if (!USE_CACHE || (USE_CACHE && !Kernel.remoteSketches.containsKey(remoteHost))) {
-                    logger.log(Level.INFO, "concreteSketch - Attempting to receive sketches from {0}", remoteHost);
-                    int port = Integer.parseInt(Settings.getProperty("remote_sketch_port"));
-                    SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(remoteHost, port);
-
-                    OutputStream outStream = remoteSocket.getOutputStream();
-                    InputStream inStream = remoteSocket.getInputStream();
-                    ObjectOutputStream clientObjectOutputStream = new ObjectOutputStream(outStream);
-                    ObjectInputStream clientObjectInputStream = new ObjectInputStream(inStream);
-
-                    clientObjectOutputStream.writeObject("giveSketch");
-                    clientObjectOutputStream.flush();
-                    AbstractSketch tmpSketch = (AbstractSketch) clientObjectInputStream.readObject();
-                    Map<String, AbstractSketch> receivedSketches = (Map<String, AbstractSketch>) clientObjectInputStream.readObject();
-                    Kernel.remoteSketches.put(remoteHost, tmpSketch);
-                    receivedSketches.remove(localHost);
-                    Kernel.remoteSketches.putAll(receivedSketches);
-
-                    logger.log(Level.INFO, "concreteSketch - Received sketches from {0}", remoteHost);
-                    clientObjectOutputStream.writeObject("close");
-                    clientObjectOutputStream.flush();
-                    clientObjectOutputStream.close();
-                    clientObjectInputStream.close();
-                    outStream.close();
-                    inStream.close();
-                    remoteSocket.close();
+        if (incomingEdge.type().equalsIgnoreCase("Used")
+                && incomingEdge.getDestinationVertex().getAnnotation("network").equalsIgnoreCase("true")) {
+            // Connection was created to this host. The matrix is updated once
+            // the sketch of the remote host has been fetched in the background.
+            AbstractVertex networkVertex = incomingEdge.getDestinationVertex();
+            String remoteHost = networkVertex.getAnnotation("destination host");
+            String localHost = networkVertex.getAnnotation("source host");
+            final MatrixUpdate update = new MatrixUpdate(this, networkVertex, true);
+            updateSubmitted();
+            RemoteSketchFetcher.whenAvailable(remoteHost, localHost, new Runnable() {
+                @Override
+                public void run() {
+                    addToBatch(update);
                 }
-                // Update sketch bloom filters
-                BloomFilter newAncestors = Kernel.remoteSketches.get(remoteHost).matrixFilter.get(networkVertex);
-                if (newAncestors != null) {
-                    logger.log(Level.INFO, "concreteSketch - Found bloomfilter for networkVertex");
-                    Runnable update = new updateMatrixThread(this, networkVertex, incomingEdge.type());
-                    new Thread(update).start();
-                }
-            } else if (incomingEdge.type().equalsIgnoreCase("WasGeneratedBy")
-                    && incomingEdge.getSourceVertex().getAnnotation("network").equalsIgnoreCase("true")) {
-                AbstractVertex networkVertex = incomingEdge.getSourceVertex();
-                Runnable update = new updateMatrixThread(this, networkVertex, incomingEdge.type());
-                new Thread(update).start();
+            }, batchExecutor);
+        } else if (incomingEdge.type().equalsIgnoreCase("WasGeneratedBy")
+                && incomingEdge.getSourceVertex().getAnnotation("network").equalsIgnoreCase("true")) {
+            AbstractVertex networkVertex = incomingEdge.getSourceVertex();
+            updateSubmitted();
+            addToBatch(new MatrixUpdate(this, networkVertex, false));
+        }
+    }
+
+    @Override
+    public void invalidateRemoteSketches() {
+        RemoteSketchFetcher.invalidate();
+    }
+
+    @Override
+    public int awaitUpdates(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (updateLock) {
+            long remaining = timeout;
+            while (pendingUpdates > 0 && remaining > 0) {
+                updateLock.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
             }
-        } catch (NumberFormatException | IOException | ClassNotFoundException exception) {
-            Logger.getLogger(Sketch.class.getName()).log(Level.SEVERE, null, exception);
+            return pendingUpdates;
+        }
+    }
+
+    private static void updateSubmitted() {
+        synchronized (updateLock) {
+            pendingUpdates++;
         }
     }
+
+    static void updatesFinished(int count) {
+        synchronized (updateLock) {
+            pendingUpdates -= count;
+            if (pendingUpdates == 0) {
+                updateLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Adds an update to the current batch. The batch is submitted once it is
+     * full or UPDATE_WINDOW milliseconds after its first update.
+     */
+    private static void addToBatch(MatrixUpdate update) {
+        List<MatrixUpdate> fullBatch = null;
+        synchronized (updateLock) {
+            batch.add(update);
+            if (batch.size() >= UPDATE_BATCH_SIZE) {
+                fullBatch = batch;
+                batch = new ArrayList<>();
+            } else if (batch.size() == 1) {
+                batchTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        submitBatch();
+                    }
+                }, UPDATE_WINDOW, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (fullBatch != null) {
+            updateExecutor.execute(new MatrixUpdateBatch(fullBatch));
+        }
+    }
+
+    private static void submitBatch() {
+        List<MatrixUpdate> currentBatch;
+        synchronized (updateLock) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            currentBatch = batch;
+            batch = new ArrayList<>();
+        }
+        updateExecutor.execute(new MatrixUpdateBatch(currentBatch));
+    }
 }
 
-class updateMatrixThread implements Runnable {
+/**
+ * A network vertex whose edge must be reflected in the matrix filter of a
+ * sketch.
+ */
+class MatrixUpdate {
 
-    private final AbstractSketch sketch;
-    private final AbstractVertex vertex;
-    private final String type;
-    private static final Logger logger = Logger.getLogger(updateMatrixThread.class.getName());
-    private static final String ID_STRING = Settings.getProperty("storage_identifier");
+    final AbstractSketch sketch;
+    final AbstractVertex vertex;
+    // True for a Used edge, false for a WasGeneratedBy edge
+    final boolean used;
 
-    public updateMatrixThread(AbstractSketch workingSketch, AbstractVertex networkVertex, String edgeType) {
+    MatrixUpdate(AbstractSketch workingSketch, AbstractVertex networkVertex, boolean usedEdge) {
         sketch = workingSketch;
         vertex = networkVertex;
-        type = edgeType;
+        used = usedEdge;
+    }
+}
+
+/**
+ * Applies a batch of matrix updates. The lineage of all the network vertices
+ * of the batch is fetched with a single traversal in each direction, and the
+ * network vertices that each of them reaches are then found in that lineage.
+ */
+class MatrixUpdateBatch implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(MatrixUpdateBatch.class.getName());
+    private static final int LINEAGE_DEPTH = 20;
+    private final List<MatrixUpdate> updates;
+
+    MatrixUpdateBatch(List<MatrixUpdate> batch) {
+        updates = batch;
     }
 
     @Override
     public void run() {
-        String storageId = getStorageId(vertex);
-        if (type.equalsIgnoreCase("Used")) {
-            logger.log(Level.INFO, "concreteSketch - Updating matrixfilter for USED edge for storageId: {0}", storageId);
-            String remoteHost = vertex.getAnnotation("destination host");
-            BloomFilter newAncestors = Kernel.remoteSketches.get(remoteHost).matrixFilter.get(vertex);
-            Graph descendants = Query.executeQuery("query Neo4j lineage " + storageId + " 20 d null", false);
-            for (AbstractVertex currentVertex : descendants.vertexSet()) {
-                if (currentVertex.getAnnotation("network").equalsIgnoreCase("true")) {
-                    sketch.matrixFilter.updateAncestors(currentVertex, newAncestors);
+        try {
+            List<MatrixUpdate> usedUpdates = new ArrayList<>();
+            List<MatrixUpdate> wgbUpdates = new ArrayList<>();
+            for (MatrixUpdate update : updates) {
+                (update.used ? usedUpdates : wgbUpdates).add(update);
+            }
+            AbstractStorage storage = getStorage();
+            if (storage == null) {
+                logger.log(Level.WARNING, "concreteSketch - No Neo4j storage to update matrixfilter from");
+                return;
+            }
+            if (!Kernel.requestFlush()) {
+                logger.log(Level.WARNING, "concreteSketch - Unable to flush transactions for matrixfilter update");
+            }
+            // Used edges first so that their ancestors are reflected in the
+            // WasGeneratedBy edges of the same batch
+            if (!usedUpdates.isEmpty()) {
+                logger.log(Level.INFO, "concreteSketch - Updating matrixfilter for {0} USED edges", usedUpdates.size());
+                Map<MatrixUpdate, Set<AbstractVertex>> descendants = getNetworkLineage(storage, usedUpdates, "d");
+                for (MatrixUpdate update : usedUpdates) {
+                    String remoteHost = update.vertex.getAnnotation("destination host");
+                    AbstractSketch remoteSketch = Kernel.remoteSketches.get(remoteHost);
+                    if (remoteSketch == null) {
+                        logger.log(Level.WARNING, "concreteSketch - No sketch available from {0}", remoteHost);
+                        continue;
+                    }
+                    BloomFilter newAncestors = remoteSketch.matrixFilter.get(update.vertex);
+                    for (AbstractVertex currentVertex : descendants.get(update)) {
+                        update.sketch.matrixFilter.updateAncestors(currentVertex, newAncestors);
+                    }
                 }
+                logger.log(Level.INFO, "concreteSketch - Updated bloomfilters for {0} USED edges", usedUpdates.size());
             }
-            logger.log(Level.INFO, "concreteSketch - Updated bloomfilters for USED edge - storageId: {0}", storageId);
-        } else if (type.equalsIgnoreCase("WasGeneratedBy")) {
-            logger.log(Level.INFO, "concreteSketch - Updating matrixfilter for WGB edge for storageId: {0}", storageId);
-            Graph ancestors = Query.executeQuery("query Neo4j lineage " + storageId + " 20 a null", false);
-            for (AbstractVertex currentVertex : ancestors.vertexSet()) {
-                if (currentVertex.getAnnotation("network").equalsIgnoreCase("true")) {
-                    sketch.matrixFilter.add(vertex, currentVertex);
+            if (!wgbUpdates.isEmpty()) {
+                logger.log(Level.INFO, "concreteSketch - Updating matrixfilter for {0} WGB edges", wgbUpdates.size());
+                Map<MatrixUpdate, Set<AbstractVertex>> ancestors = getNetworkLineage(storage, wgbUpdates, "a");
+                for (MatrixUpdate update : wgbUpdates) {
+                    for (AbstractVertex currentVertex : ancestors.get(update)) {
+                        update.sketch.matrixFilter.add(update.vertex, currentVertex);
+                    }
                 }
+                logger.log(Level.INFO, "concreteSketch - Updated bloomfilters for {0} WGB edges", wgbUpdates.size());
             }
-            logger.log(Level.INFO, "concreteSketch - Updated bloomfilters for WGB edge - storageId: {0}", storageId);
+        } catch (RuntimeException exception) {
+            logger.log(Level.SEVERE, null, exception);
+        } finally {
+            Sketch.updatesFinished(updates.size());
         }
     }
 
-    private String getStorageId(AbstractVertex networkVertex) {
-        try {
-            logger.log(Level.INFO, "concreteSketch - Getting storageId of networkVertex");
-            String vertexQueryExpression = "query Neo4j vertices";
-            vertexQueryExpression += " source\\ host:" + networkVertex.getAnnotation("source host");
-            vertexQueryExpression += " AND source\\ port:" + networkVertex.getAnnotation("source port");
-            vertexQueryExpression += " AND destination\\ host:" + networkVertex.getAnnotation("destination host");
-            vertexQueryExpression += " AND destination\\ port:" + networkVertex.getAnnotation("destination port");
-            Graph result = Query.executeQuery(vertexQueryExpression, false);
-            AbstractVertex resultVertex = result.vertexSet().iterator().next();
-            logger.log(Level.INFO, "concreteSketch - Returning storageId: {0}", resultVertex.getAnnotation(ID_STRING));
-            return resultVertex.getAnnotation(ID_STRING);
-        } catch (Exception exception) {
-            Logger.getLogger(Sketch.class.getName()).log(Level.SEVERE, null, exception);
-            return null;
+    private static AbstractStorage getStorage() {
+        synchronized (Kernel.storages) {
+            for (AbstractStorage storage : Kernel.storages) {
+                if (storage.getClass().getName().equals("spade.storage.Neo4j")) {
+                    return storage;
+                }
+            }
         }
+        return null;
+    }
+
+    /**
+     * Finds the network vertices within LINEAGE_DEPTH of the stored vertex of
+     * each update, including that vertex itself.
+     *
+     * @param storage The storage to get the lineage from.
+     * @param batch The updates.
+     * @param direction "a" for ancestors or "d" for descendants.
+     * @return The network vertices reached from each update.
+     */
+    private static Map<MatrixUpdate, Set<AbstractVertex>> getNetworkLineage(AbstractStorage storage, List<MatrixUpdate> batch, String direction) {
+        Map<MatrixUpdate, Set<AbstractVertex>> result = new HashMap<>();
+        Set<String> connections = new LinkedHashSet<>();
+        for (MatrixUpdate update : batch) {
+            result.put(update, new HashSet<AbstractVertex>());
+            connections.add(getVertexExpression(update.vertex));
+        }
+        StringBuilder vertexExpression = new StringBuilder();
+        for (String connection : connections) {
+            if (vertexExpression.length() > 0) {
+                vertexExpression.append(" OR ");
+            }
+            vertexExpression.append('(').append(connection).append(')');
+        }
+        Graph lineage = storage.getLineage(vertexExpression.toString(), LINEAGE_DEPTH, direction, null);
+        if (lineage == null) {
+            return result;
+        }
+
+        // The lineage of every vertex of the batch is contained in the
+        // combined lineage, since it holds every edge within LINEAGE_DEPTH of
+        // any of them.
+        boolean ancestors = direction.equals("a");
+        Map<AbstractVertex, List<AbstractVertex>> adjacency = new HashMap<>();
+        for (AbstractEdge edge : lineage.edgeSet()) {
+            AbstractVertex from = ancestors ? edge.getSourceVertex() : edge.getDestinationVertex();
+            AbstractVertex to = ancestors ? edge.getDestinationVertex() : edge.getSourceVertex();
+            List<AbstractVertex> next = adjacency.get(from);
+            if (next == null) {
+                next = new ArrayList<>();
+                adjacency.put(from, next);
+            }
+            next.add(to);
+        }
+        Map<String, List<AbstractVertex>> storedVertices = new LinkedHashMap<>();
+        for (AbstractVertex vertex : lineage.vertexSet()) {
+            if (isNetworkVertex(vertex)) {
+                String connection = getVertexExpression(vertex);
+                List<AbstractVertex> vertices = storedVertices.get(connection);
+                if (vertices == null) {
+                    vertices = new ArrayList<>();
+                    storedVertices.put(connection, vertices);
+                }
+                vertices.add(vertex);
+            }
+        }
+
+        Map<String, Set<AbstractVertex>> reachedByConnection = new HashMap<>();
+        for (MatrixUpdate update : batch) {
+            String connection = getVertexExpression(update.vertex);
+            Set<AbstractVertex> reached = reachedByConnection.get(connection);
+            if (reached == null) {
+                reached = getReachableNetworkVertices(storedVertices.get(connection), adjacency);
+                reachedByConnection.put(connection, reached);
+            }
+            result.put(update, reached);
+        }
+        return result;
+    }
+
+    private static Set<AbstractVertex> getReachableNetworkVertices(List<AbstractVertex> startVertices, Map<AbstractVertex, List<AbstractVertex>> adjacency) {
+        Set<AbstractVertex> reached = new HashSet<>();
+        if (startVertices == null) {
+            return reached;
+        }
+        Set<AbstractVertex> visited = new HashSet<>(startVertices);
+        List<AbstractVertex> level = new ArrayList<>(startVertices);
+        for (int depth = 0; !level.isEmpty(); depth++) {
+            List<AbstractVertex> nextLevel = new ArrayList<>();
+            for (AbstractVertex vertex : level) {
+                if (isNetworkVertex(vertex)) {
+                    reached.add(vertex);
+                }
+                List<AbstractVertex> next = adjacency.get(vertex);
+                if (depth < LINEAGE_DEPTH && next != null) {
+                    for (AbstractVertex nextVertex : next) {
+                        if (visited.add(nextVertex)) {
+                            nextLevel.add(nextVertex);
+                        }
+                    }
+                }
+            }
+            level = nextLevel;
+        }
+        return reached;
+    }
+
+    private static boolean isNetworkVertex(AbstractVertex vertex) {
+        return "true".equalsIgnoreCase(vertex.getAnnotation("network"));
+    }
+
+    private static String getVertexExpression(AbstractVertex networkVertex) {
+        // Values such as IPv6 addresses hold query syntax, and one unparseable
+        // value would fail the query of the whole batch
+        String vertexExpression = "source\\ host:" + escape(networkVertex.getAnnotation("source host"));
+        vertexExpression += " AND source\\ port:" + escape(networkVertex.getAnnotation("source port"));
+        vertexExpression += " AND destination\\ host:" + escape(networkVertex.getAnnotation("destination host"));
+        vertexExpression += " AND destination\\ port:" + escape(networkVertex.getAnnotation("destination port"));
+        return vertexExpression;
+    }
+
+    private static String escape(String value) {
+        return QueryParser.escape(String.valueOf(value));
     }
 }
@@ -20,27 +20,30 @@
 package spade.storage;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
-import java.util.LinkedList;
 import java.util.Calendar;
 import java.util.Date;
 import java.nio.charset.StandardCharsets;
 
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.neo4j.graphalgo.GraphAlgoFactory;
 import org.neo4j.graphalgo.PathFinder;
@@ -49,6 +52,8 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.PathExpander;
+import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.Transaction;
@@ -59,6 +64,11 @@ import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexHits;
 import org.neo4j.graphdb.index.IndexManager;
 import org.neo4j.graphdb.index.RelationshipIndex;
+import org.neo4j.graphdb.schema.ConstraintDefinition;
+import org.neo4j.graphdb.traversal.BranchState;
+import org.neo4j.graphdb.traversal.Evaluators;
+import org.neo4j.graphdb.traversal.TraversalDescription;
+import org.neo4j.graphdb.traversal.Uniqueness;
 import org.neo4j.helpers.collection.IteratorUtil;
 import org.neo4j.kernel.Traversal;
 import org.neo4j.tooling.GlobalGraphOperations;
@@ -68,9 +78,12 @@ import spade.core.AbstractStorage;
 import spade.core.AbstractVertex;
 import spade.core.Edge;
 import spade.core.Graph;
+import spade.core.QueryContext;
+import spade.core.ScalableBloomFilter;
 import spade.core.Settings;
 import spade.core.Vertex;
-import spade.core.BloomFilter;
+import spade.utility.CommonFunctions;
+import spade.utility.FileUtility;
 
 /**
  * Neo4j storage implementation.
@@ -93,39 +106,74 @@ public class Neo4j extends AbstractStorage {
     static final Logger logger = Logger.getLogger(Neo4j.class.getName());
     private final String NEO_CONFIG_FILE = "cfg/neo4j.properties";
 
-    private enum MyRelationshipTypes implements RelationshipType { EDGE }
-    private enum MyNodeTypes implements Label { VERTEX }
+    enum MyRelationshipTypes implements RelationshipType { EDGE }
+    enum MyNodeTypes implements Label { VERTEX }
     private String neo4jDatabaseDirectoryPath = null;
 
-  	public final String HASHCODE_LABEL = "hashCode";
-  	private double falsePositiveProbability = 0.0001;
-
-    // Performance tuning note: Set this to higher value (up to Integer.MAX_VALUE) to reduce db hit rate.
-    // Downside: This would eat more heap at start time.
-  	private int expectedNumberOfElements = 1000000;
-    private BloomFilter<String> nodeBloomFilter;
-    private BloomFilter<String> edgeBloomFilter;
-    private LinkedList<String> localNodeHashQueue = new LinkedList<String>();
-    private HashMap<String, Node> localNodeCache = new HashMap<String, Node>();
-
-    // Performance tuning note: Depending on data locality, you can increase this FIFO cache size.
+  	public static final String HASHCODE_LABEL = "hashCode";
+    private static final String CONFIG_FILE = Settings.getDefaultConfigFilePath(Neo4j.class);
+    // Annotation keys added to the vertex and edge indexes (null to index all). hashCode and the storage identifier are always indexed,
+    // and so are the network vertex keys that the sketches and remote queries look network vertices up by.
+    private static final String[] NETWORK_VERTEX_KEYS = {"network", "source host", "source port", "destination host", "destination port"};
+    // Performance tuning note: Leave out high cardinality keys that are never searched on (e.g. time, size) to halve index writes.
+    private Set<String> vertexIndexKeys;
+    private Set<String> edgeIndexKeys;
+    // Performance tuning note: Set neo4j_hash_index to schema to look vertices up by hash through a schema index on the VERTEX label,
+    // backed by a uniqueness constraint, instead of the legacy Lucene index. Edges are always looked up in the legacy index.
+    // Vertices are added to the legacy hashCode index in both modes, so the storage can fall back to it or be switched back.
+    private boolean useSchemaIndex = "schema".equalsIgnoreCase(Settings.getProperty("neo4j_hash_index"));
+  	static final double falsePositiveProbability = 0.0001;
+
+    // Performance tuning note: The bloom filters grow by chaining larger filters as elements are added, so that the
+    // false positive probability stays below falsePositiveProbability. This is the capacity of the first filter.
+    // Set this to the expected number of elements to save the chained lookups. Downside: The filter files take more space.
+  	static final int expectedNumberOfElements = 1000000;
+    // Memory mapped from the database directory
+    private ScalableBloomFilter<String> nodeBloomFilter;
+    private ScalableBloomFilter<String> edgeBloomFilter;
+    // Performance tuning note: Depending on data locality, you can increase this LRU cache size (neo4j_node_cache_size).
     // Performance tuning note: Set this to higher value (e.g. 1000000) to reduce db hit rate.
     // Downside: This would eat more heap.
-  	private final int NODE_VERTEX_LOCAL_CACHE_SIZE = 1000000;
+  	private final int NODE_VERTEX_LOCAL_CACHE_SIZE = CommonFunctions.parseInt(Settings.getProperty("neo4j_node_cache_size"), 1000000);
+    // Recently used nodes keyed by the binary hash of their vertex
+    private ConcurrentLinkedHashMap<HashKey, Node> localNodeCache = new ConcurrentLinkedHashMap.Builder<HashKey, Node>()
+            .maximumWeightedCapacity(NODE_VERTEX_LOCAL_CACHE_SIZE).build();
+    // Performance tuning note: Repetitive workloads (e.g. reads and writes of the same file) send the same edges again and again.
+    // Edges seen recently are recognized from this LRU cache (neo4j_edge_cache_size) without probing the edge index.
+  	private final int EDGE_LOCAL_CACHE_SIZE = CommonFunctions.parseInt(Settings.getProperty("neo4j_edge_cache_size"), 1000000);
+    private ConcurrentLinkedHashMap<HashKey, Boolean> localEdgeCache = new ConcurrentLinkedHashMap.Builder<HashKey, Boolean>()
+            .maximumWeightedCapacity(EDGE_LOCAL_CACHE_SIZE).build();
+    // Performance tuning note: Set neo4j_edge_index_deduplication to false to skip the edge index lookup on bloom filter hits.
+    // Downside: An edge that is no longer in the recent edge cache is stored again if it is repeated.
+    private final boolean EDGE_INDEX_DEDUPLICATION = !"false".equalsIgnoreCase(Settings.getProperty("neo4j_edge_index_deduplication"));
+    // Performance tuning note: Writes are applied and committed by a dedicated writer thread, so the kernel never waits on a commit.
+    // Increase neo4j_writer_queue_size to absorb longer bursts. Downside: This would eat more heap.
+    private final int WRITER_QUEUE_SIZE = CommonFunctions.parseInt(Settings.getProperty("neo4j_writer_queue_size"), 100000);
     // Performance tuning note: Set this to higher value (e.g. 100000) to commit less often to db - This increases ingestion rate.
     // Downside: Any external (non atomic) quering to database won't report non-commited data.
-    private final int GLOBAL_TX_SIZE = 100000;
-    // Performance tuning note: This is time in sec that storage is flushed. Increase this to increase throughput / ingestion rate.
+    private final int GLOBAL_TX_SIZE = CommonFunctions.parseInt(Settings.getProperty("neo4j_commit_batch_size"), 100000);
+    // Performance tuning note: This is the longest time that a write stays uncommitted while writes keep arriving.
+    // Increase this to increase throughput / ingestion rate.
     // Downside: Any external (non atomic) quering to database won't report non-commited data.
-    private final int MAX_WAIT_TIME_BEFORE_FLUSH = 15000; // ms
+    private final long MAX_WAIT_TIME_BEFORE_FLUSH = CommonFunctions.parseLong(Settings.getProperty("neo4j_commit_interval"), 15000L); // ms
+    // Performance tuning note: Pending writes are committed once no new write has arrived for this long, so that the size
+    // of a commit follows the ingestion rate: small commits when the reporters are quiet, large ones under load.
+    private final long COMMIT_IDLE_DELAY = CommonFunctions.parseLong(Settings.getProperty("neo4j_commit_idle_delay"), 100L); // ms
     private final boolean LOG_PERFORMANCE_STATS = true;
-    private final String NODE_BLOOMFILTER = "spade-neo4j-node-bloomfilter";
-    private final String EDGE_BLOOMFILTER = "spade-neo4j-edge-bloomfilter";
+    static final String NODE_BLOOMFILTER = "spade-neo4j-node-bloomfilter.sbf";
+    static final String EDGE_BLOOMFILTER = "spade-neo4j-edge-bloomfilter.sbf";
+    // Java serialized filters of earlier versions, replaced by the files above
+    private static final String LEGACY_NODE_BLOOMFILTER = "spade-neo4j-node-bloomfilter";
+    private static final String LEGACY_EDGE_BLOOMFILTER = "spade-neo4j-edge-bloomfilter";
 
+    // Only the writer thread opens and commits globalTx
     private Transaction globalTx;
   	private int globalTxCount=0;
+    private long globalTxStartTime;
 
-    private Date lastFlushTime;
+    private BlockingQueue<WriteRequest> writeQueue;
+    private Thread writerThread;
+    private static final WriteRequest STOP_REQUEST = new WriteRequest(null, null);
 
     //
     // variables used to track stats only
@@ -137,6 +185,10 @@ public class Neo4j extends AbstractStorage {
     private int dbHitCountForVertex = 0;
     private int dbHitCountForEdge = 0;
     private int nodeFoundInLocalCacheCount = 0;
+    private long nodeCacheHitCount = 0;
+    private long nodeCacheMissCount = 0;
+    private long edgeFoundInLocalCacheCount = 0;
+    private long edgeFoundInDbCount = 0;
     private int foundInDbCount = 0;
     private int falsePositiveCount = 0;
     private Date reportProgressDate;
@@ -148,6 +200,13 @@ public class Neo4j extends AbstractStorage {
     private int nodeFoundInLocalCacheCountTmp = 0;
     private int foundInDbCountTmp = 0;
     private int falsePositiveCountTmp = 0;
+    private long commitCount = 0;
+    private long committedWriteCount = 0;
+    private long commitLatencyTotal = 0; // ms
+    private long commitLatencyMax = 0; // ms
+    private long commitCountTmp = 0;
+    private long commitLatencyTotalTmp = 0;
+    private long intervalCommitLatencyMax = 0; // ms, since the last progress report
     //
 
     @Override
@@ -157,6 +216,9 @@ public class Neo4j extends AbstractStorage {
             if (neo4jDatabaseDirectoryPath == null) {
                 return false;
             }
+            Map<String, String> config = loadConfig();
+            vertexIndexKeys = parseIndexKeys(config.get("vertexIndexKeys"), NETWORK_VERTEX_KEYS);
+            edgeIndexKeys = parseIndexKeys(config.get("edgeIndexKeys"), new String[0]);
             GraphDatabaseBuilder graphDbBuilder = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(neo4jDatabaseDirectoryPath);
             try {
                 graphDbBuilder.loadPropertiesFromFile(NEO_CONFIG_FILE);
@@ -174,15 +236,27 @@ public class Neo4j extends AbstractStorage {
                 edgeIndex = index.forRelationships(EDGE_INDEX);
                 tx.success();
             }
+            if (useSchemaIndex) {
+                useSchemaIndex = createHashConstraint();
+            }
 
-            nodeBloomFilter = loadBloomFilter(NODE_BLOOMFILTER);
-            edgeBloomFilter = loadBloomFilter(EDGE_BLOOMFILTER);
+            nodeBloomFilter = loadBloomFilter(NODE_BLOOMFILTER, LEGACY_NODE_BLOOMFILTER, true);
+            edgeBloomFilter = loadBloomFilter(EDGE_BLOOMFILTER, LEGACY_EDGE_BLOOMFILTER, false);
 
             if (LOG_PERFORMANCE_STATS==true) {
               logger.log(Level.INFO, "nodeBloomFilter size at startup: " + nodeBloomFilter.count());
             }
             reportProgressDate = Calendar.getInstance().getTime();
-            lastFlushTime = Calendar.getInstance().getTime();
+
+            writeQueue = new ArrayBlockingQueue<>(WRITER_QUEUE_SIZE);
+            writerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWriter();
+                }
+            }, "Neo4j-writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
 
             return true;
         } catch (Exception exception) {
@@ -191,51 +265,148 @@ public class Neo4j extends AbstractStorage {
         }
     }
 
-    private BloomFilter loadBloomFilter(String fileName) {
+    private boolean createHashConstraint() {
+        try {
+            try ( Transaction tx = graphDb.beginTx() ) {
+                boolean exists = false;
+                for (ConstraintDefinition constraint : graphDb.schema().getConstraints(MyNodeTypes.VERTEX)) {
+                    for (String key : constraint.getPropertyKeys()) {
+                        exists = exists || key.equals(HASHCODE_LABEL);
+                    }
+                }
+                if (!exists) {
+                    // existing vertices are indexed in the background
+                    graphDb.schema().constraintFor(MyNodeTypes.VERTEX).assertPropertyIsUnique(HASHCODE_LABEL).create();
+                }
+                tx.success();
+            }
+            try ( Transaction tx = graphDb.beginTx() ) {
+                graphDb.schema().awaitIndexesOnline(1, TimeUnit.HOURS);
+                tx.success();
+            }
+            logger.log(Level.INFO, "Looking vertices up through the schema index on " + MyNodeTypes.VERTEX + "." + HASHCODE_LABEL);
+            return true;
+        } catch (Exception exception) {
+            logger.log(Level.SEVERE, "Failed to create the uniqueness constraint on " + HASHCODE_LABEL + ". Using the legacy index", exception);
+            return false;
+        }
+    }
 
-    	try {
-    		File filePath = new File(neo4jDatabaseDirectoryPath, fileName);
-    		if (filePath.exists()) {
-	    		FileInputStream fileInputStream = new FileInputStream(
-	    			filePath.toString()
-				);
-	    		ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream);
-	    		BloomFilter bloomFilter = (BloomFilter<Integer>) objectInputStream.readObject();
-	    		objectInputStream.close();
-	    		fileInputStream.close();
-	    		return bloomFilter;
-	    	}
-    	} catch (IOException exception) {
-    		logger.log(Level.SEVERE, "Failed to load spade neo4j bloomfilter cache", exception);
-    	} catch(ClassNotFoundException exception) {
-        	exception.printStackTrace();
-      	}
-      	return new BloomFilter<Integer>(falsePositiveProbability, expectedNumberOfElements);
-    }
-
-    private void saveBloomFilter(String fileName, BloomFilter bloomFilter) {
+    private Node findNodeByHash(String bigHashCode) {
+        if (useSchemaIndex) {
+            return graphDb.findNode(MyNodeTypes.VERTEX, HASHCODE_LABEL, bigHashCode);
+        }
+        return vertexIndex.get(HASHCODE_LABEL, bigHashCode).getSingle();
+    }
 
-    	try {
-    		FileOutputStream fileOutputStream = new FileOutputStream(
-    			new File(neo4jDatabaseDirectoryPath, fileName).toString()
-			);
-    		ObjectOutputStream objectOutputStream = new ObjectOutputStream(fileOutputStream);
-    		objectOutputStream.writeObject(bloomFilter);
-    		objectOutputStream.close();
-    		fileOutputStream.close();
-    	} catch (IOException exception) {
-    		logger.log(Level.SEVERE, "Failed to save spade neo4j bloomfilter cache", exception);
-    	}
+    static Map<String, String> loadConfig() {
+        Map<String, String> config = new HashMap<String, String>();
+        if (new File(CONFIG_FILE).exists()) {
+            try {
+                config = FileUtility.readConfigFileAsKeyValueMap(CONFIG_FILE, "=");
+            } catch (Exception exception) {
+                logger.log(Level.WARNING, "Failed to read " + CONFIG_FILE + ". Indexing all annotations", exception);
+            }
+        }
+        return config;
+    }
+
+    static Set<String> parseIndexKeys(String value, String[] requiredKeys) {
+        if (value == null || value.trim().isEmpty() || value.trim().equals("*")) {
+            return null;
+        }
+        Set<String> keys = new HashSet<String>();
+        for (String key : value.split(",")) {
+            if (!key.trim().isEmpty()) {
+                keys.add(key.trim());
+            }
+        }
+        keys.add(HASHCODE_LABEL);
+        keys.add(ID_STRING);
+        keys.addAll(Arrays.asList(requiredKeys));
+        logger.log(Level.INFO, "Indexing annotations: " + keys);
+        return keys;
+    }
+
+    private static boolean isIndexed(Set<String> indexKeys, String key) {
+        return indexKeys == null || indexKeys.contains(key);
+    }
+
+    /**
+     * Maps the bloom filter file of the database. If there is none yet, e.g. for a database
+     * written by an earlier version, the filter is created and filled with the hashes of the
+     * vertices or edges already in the database. The filter is only a cache of the stored
+     * hashes, so a file that cannot be read is deleted and rebuilt in the same way.
+     */
+    private ScalableBloomFilter<String> loadBloomFilter(String fileName, String legacyFileName, boolean vertices) throws IOException {
+        File filePath = new File(neo4jDatabaseDirectoryPath, fileName);
+        boolean exists = filePath.exists();
+        ScalableBloomFilter<String> bloomFilter;
+        try {
+            bloomFilter = openBloomFilter(neo4jDatabaseDirectoryPath, fileName);
+        } catch (IOException | RuntimeException exception) {
+            logger.log(Level.WARNING, "Unable to read " + filePath + ". Rebuilding it from the stored hashes", exception);
+            if (!filePath.delete()) {
+                throw new IOException("Unable to delete " + filePath, exception);
+            }
+            exists = false;
+            bloomFilter = openBloomFilter(neo4jDatabaseDirectoryPath, fileName);
+        }
+        if (!exists) {
+            try ( Transaction tx = graphDb.beginTx() ) {
+                Iterable<? extends PropertyContainer> elements = vertices
+                        ? GlobalGraphOperations.at(graphDb).getAllNodes() : GlobalGraphOperations.at(graphDb).getAllRelationships();
+                for (PropertyContainer element : elements) {
+                    Object bigHashCode = element.getProperty(HASHCODE_LABEL, null);
+                    if (bigHashCode != null) {
+                        bloomFilter.add(bigHashCode.toString());
+                    }
+                }
+                tx.success();
+            }
+            if (bloomFilter.count() > 0) {
+                logger.log(Level.INFO, "Built " + fileName + " from " + bloomFilter.count() + " stored hashes");
+            }
+            bloomFilter.flush();
+            new File(neo4jDatabaseDirectoryPath, legacyFileName).delete();
+        }
+        return bloomFilter;
+    }
 
+    static ScalableBloomFilter<String> openBloomFilter(String neo4jDatabaseDirectoryPath, String fileName) throws IOException {
+        return new ScalableBloomFilter<String>(new File(neo4jDatabaseDirectoryPath, fileName), falsePositiveProbability, expectedNumberOfElements);
     }
 
     @Override
     public boolean flushTransactions() {
-        if (Calendar.getInstance().getTime().getTime() - lastFlushTime.getTime() > MAX_WAIT_TIME_BEFORE_FLUSH) {
-            globalTxCheckin(true);
-            lastFlushTime = Calendar.getInstance().getTime();
+        return flushTransactions(false);
+    }
+
+    /**
+     * The writer thread commits on its own schedule. A forced flush waits until every
+     * write that was put before it has been committed.
+     */
+    @Override
+    public boolean flushTransactions(boolean force) {
+        if (!force) {
+            return true;
+        }
+        WriteRequest flushRequest = new WriteRequest(null, null);
+        flushRequest.flushed = new CountDownLatch(1);
+        if (!enqueue(flushRequest)) {
+            return false;
+        }
+        try {
+            while (!flushRequest.flushed.await(1, TimeUnit.SECONDS)) {
+                if (!writerThread.isAlive()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
         }
-        return true;
     }
 
     @Override
@@ -245,14 +416,29 @@ public class Neo4j extends AbstractStorage {
         }
         // Flush all transactions before shutting down the database
         // make sure buffers are done, and stop and join all threads
-        globalTxFinalize();
+        if (enqueue(STOP_REQUEST)) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                logger.log(Level.WARNING, "Interrupted while waiting for pending Neo4j writes", exception);
+            }
+        }
+        if (LOG_PERFORMANCE_STATS==true) {
+          logger.log(Level.INFO, "Commits: " + commitCount + ", writes per commit: " + (commitCount > 0 ? committedWriteCount / commitCount : 0)
+                  + ", average latency: " + (commitCount > 0 ? commitLatencyTotal / commitCount : 0) + " ms, max latency: " + commitLatencyMax + " ms");
+        }
         graphDb.shutdown(); // look at register shutdownhook in http://neo4j.com/docs/stable/tutorials-java-embedded-setup.html
         if (LOG_PERFORMANCE_STATS==true) {
           logger.log(Level.INFO, "Database shutdown completed");
         }
-        saveBloomFilter(NODE_BLOOMFILTER, nodeBloomFilter);
-        saveBloomFilter(EDGE_BLOOMFILTER, edgeBloomFilter);
-        
+        try {
+            nodeBloomFilter.close();
+            edgeBloomFilter.close();
+        } catch (IOException exception) {
+            logger.log(Level.SEVERE, "Failed to close spade neo4j bloomfilter cache", exception);
+        }
+
         if (LOG_PERFORMANCE_STATS==true) {
           logger.log(Level.INFO, "All chores completed!");
         }
@@ -269,13 +455,19 @@ public class Neo4j extends AbstractStorage {
         if (diff > reportProgressAverageTime) {
             logger.log(Level.INFO, "Node L1: Rate: " + (int) (falsePositiveCount - falsePositiveCountTmp)/(diff/reportProgressAverageTime) + " confirmed false +tive/min. Bloom filter false +tive probability: " + nodeBloomFilter.getFalsePositiveProbability() + " Bloom filter elements count: " + nodeBloomFilter.count());
             logger.log(Level.INFO, "Node L2: Rate: " + (int) (nodeFoundInLocalCacheCount - nodeFoundInLocalCacheCountTmp)/(diff/reportProgressAverageTime) + " node detection from local cache/min. Total: " + nodeFoundInLocalCacheCount);
-            logger.log(Level.INFO, "Node L2: Rate: " + (int) (100.0*localNodeHashQueue.size()/NODE_VERTEX_LOCAL_CACHE_SIZE) + " % local node cache filled. Total: " + NODE_VERTEX_LOCAL_CACHE_SIZE);
+            logger.log(Level.INFO, "Node L2: Rate: " + (int) (100.0*localNodeCache.size()/NODE_VERTEX_LOCAL_CACHE_SIZE) + " % local node cache filled. Total: " + NODE_VERTEX_LOCAL_CACHE_SIZE);
+            logger.log(Level.INFO, "Node L2: Hit rate: " + (int) (100.0*nodeCacheHitCount/Math.max(1, nodeCacheHitCount + nodeCacheMissCount)) + " % of local node cache lookups. Hits: " + nodeCacheHitCount + " Misses: " + nodeCacheMissCount);
             logger.log(Level.INFO, "Node L3: Rate: " + (int) (dbHitCountForVertex - dbHitCountForVertexTmp)/(diff/reportProgressAverageTime) + " db hit for vertexes from putVertices /min. Total: " + dbHitCountForVertex);
             logger.log(Level.INFO, "Node L3: Rate: " + (int) (foundInDbCount - foundInDbCountTmp)/(diff/reportProgressAverageTime) + " detection from db/min. Total: " + foundInDbCount);
 
             logger.log(Level.INFO, "Edges Rate: " + (int) (dbHitCountForEdge - dbHitCountForEdgeTmp)/(diff/reportProgressAverageTime) + " db hit for vertices from putEdges /min. Total: " + dbHitCountForEdge);
+            logger.log(Level.INFO, "Edges: Duplicates detected from local edge cache: " + edgeFoundInLocalCacheCount + " from db: " + edgeFoundInDbCount + ". Local edge cache size: " + localEdgeCache.size());
             logger.log(Level.INFO, "Count Vertices: " + (int) (vertexCount - vertexCountTmp)/(diff/reportProgressAverageTime) + " nodes/min. Total: " + vertexCount);
             logger.log(Level.INFO, "Count Edges: " + (int) (edgeCount - edgeCountTmp)/(diff/reportProgressAverageTime) + " edges/min. Total: " + edgeCount);
+            long commits = commitCount - commitCountTmp;
+            logger.log(Level.INFO, "Commits: Rate: " + (int) commits/(diff/reportProgressAverageTime) + " commits/min. Average latency: "
+                    + (commits > 0 ? (commitLatencyTotal - commitLatencyTotalTmp) / commits : 0) + " ms. Max latency: " + intervalCommitLatencyMax
+                    + " ms. Queued writes: " + writeQueue.size());
             logger.log(Level.INFO, "Heap Size: " + Runtime.getRuntime().totalMemory() + " bytes");
 
             reportProgressDate = Calendar.getInstance().getTime();
@@ -287,49 +479,211 @@ public class Neo4j extends AbstractStorage {
             foundInDbCountTmp = foundInDbCount;
             dbHitCountForEdgeTmp = dbHitCountForEdge;
             falsePositiveCountTmp = falsePositiveCount;
+            commitCountTmp = commitCount;
+            commitLatencyTotalTmp = commitLatencyTotal;
+            intervalCommitLatencyMax = 0;
         }
     }
 
-    public void putInLocalCache(Node vertex, String bigHashCode) {
-  		if (localNodeHashQueue.size() > NODE_VERTEX_LOCAL_CACHE_SIZE) {
-  		    localNodeCache.remove(localNodeHashQueue.removeFirst());
-  		}
-
-      localNodeHashQueue.add(bigHashCode);
+    public void putInLocalCache(Node vertex, HashKey bigHashCode) {
       localNodeCache.put(bigHashCode, vertex);
     }
 
-    void globalTxCheckin() {
-        globalTxCheckin(false);
+    private Node getFromLocalCache(HashKey bigHashCode) {
+      Node node = localNodeCache.get(bigHashCode);
+      if (node != null) {
+        nodeCacheHitCount++;
+      } else {
+        nodeCacheMissCount++;
+      }
+      return node;
+    }
+
+    /**
+     * Binary SHA-256 hash of a vertex or edge. Takes less heap than the hash string
+     * stored in the database and compares without decoding characters.
+     */
+    static final class HashKey {
+
+        private final long hash0, hash1, hash2, hash3;
+
+        HashKey(byte[] hash) {
+            hash0 = toLong(hash, 0);
+            hash1 = toLong(hash, 8);
+            hash2 = toLong(hash, 16);
+            hash3 = toLong(hash, 24);
+        }
+
+        private static long toLong(byte[] bytes, int offset) {
+            long value = 0;
+            for (int i = offset; i < offset + 8; i++) {
+                value = (value << 8) | (bytes[i] & 0xff);
+            }
+            return value;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash0 ^ (hash0 >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof HashKey)) {
+                return false;
+            }
+            HashKey other = (HashKey) object;
+            return hash0 == other.hash0 && hash1 == other.hash1 && hash2 == other.hash2 && hash3 == other.hash3;
+        }
+    }
+
+    /**
+     * A vertex or an edge to be written by the writer thread, or a flush or stop marker.
+     * The hashes are computed by the thread that puts the element, so that the next
+     * batch is prepared while the writer thread commits the previous one.
+     */
+    private static final class WriteRequest {
+
+        private final AbstractVertex vertex;
+        private final AbstractEdge edge;
+        private final byte[] bigHash;
+        private final byte[] srcVertexBigHash;
+        private final byte[] dstVertexBigHash;
+        private CountDownLatch flushed;
+
+        private WriteRequest(AbstractVertex vertex, AbstractEdge edge) {
+            this.vertex = vertex;
+            this.edge = edge;
+            if (vertex != null) {
+                bigHash = vertex.bigHashCode();
+                srcVertexBigHash = null;
+                dstVertexBigHash = null;
+            } else if (edge != null) {
+                bigHash = edge.bigHashCode();
+                srcVertexBigHash = edge.getSourceVertex().bigHashCode();
+                dstVertexBigHash = edge.getDestinationVertex().bigHashCode();
+            } else {
+                bigHash = null;
+                srcVertexBigHash = null;
+                dstVertexBigHash = null;
+            }
+        }
     }
-    
-    void globalTxCheckin(boolean forcedFlush) {
-  		if ((globalTxCount % GLOBAL_TX_SIZE == 0) || (forcedFlush == true)) {
+
+    private boolean enqueue(WriteRequest request) {
+        if (writerThread == null || !writerThread.isAlive()) {
+            logger.log(Level.SEVERE, "Neo4j writer thread is not running");
+            return false;
+        }
+        try {
+            // blocks only if the writer has fallen WRITER_QUEUE_SIZE writes behind
+            writeQueue.put(request);
+            return true;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Applies queued writes in a long running transaction that is committed when it holds
+     * GLOBAL_TX_SIZE writes, when it is MAX_WAIT_TIME_BEFORE_FLUSH old, when no write has
+     * arrived for COMMIT_IDLE_DELAY or when a flush is requested.
+     */
+    private void runWriter() {
+        try {
+            while (true) {
+                WriteRequest request;
+                if (globalTx == null) {
+                    request = writeQueue.take();
+                } else {
+                    long txAge = System.currentTimeMillis() - globalTxStartTime;
+                    request = writeQueue.poll(Math.max(0, Math.min(COMMIT_IDLE_DELAY, MAX_WAIT_TIME_BEFORE_FLUSH - txAge)), TimeUnit.MILLISECONDS);
+                }
+                if (request == null) {
+                    globalTxFinalize();
+                } else if (request == STOP_REQUEST) {
+                    break;
+                } else if (request.flushed != null) {
+                    globalTxFinalize();
+                    request.flushed.countDown();
+                } else {
+                    if (globalTx == null) {
+                        globalTx = graphDb.beginTx();
+                        globalTxStartTime = System.currentTimeMillis();
+                    }
+                    try {
+                        if (request.vertex != null) {
+                            writeVertex(request.vertex, request.bigHash);
+                        } else {
+                            writeEdge(request.edge, request.bigHash, request.srcVertexBigHash, request.dstVertexBigHash);
+                        }
+                    } catch (Exception exception) {
+                        logger.log(Level.SEVERE, "Failed to write to Neo4j", exception);
+                    }
+                    globalTxCount++;
+                    if (globalTxCount >= GLOBAL_TX_SIZE || System.currentTimeMillis() - globalTxStartTime >= MAX_WAIT_TIME_BEFORE_FLUSH) {
+                        globalTxFinalize();
+                    }
+                }
+            }
+        } catch (InterruptedException exception) {
+            logger.log(Level.WARNING, "Neo4j writer thread interrupted", exception);
+        } finally {
             globalTxFinalize();
-            globalTx = graphDb.beginTx();
-  		}
-  		globalTxCount++;
-  	}
+        }
+    }
 
   	void globalTxFinalize() {
   		if (globalTx != null) {
+            long start = System.currentTimeMillis();
   			try {
-  				globalTx.success();
-  			} finally {
-  				globalTx.close();
+  				try {
+  					globalTx.success();
+  				} finally {
+  					globalTx.close();
+  				}
+  			} catch (Exception exception) {
+  				logger.log(Level.SEVERE, "Failed to commit " + globalTxCount + " writes to Neo4j", exception);
   			}
+            long latency = System.currentTimeMillis() - start;
+            globalTx = null;
+            commitCount++;
+            committedWriteCount += globalTxCount;
+            commitLatencyTotal += latency;
+            commitLatencyMax = Math.max(commitLatencyMax, latency);
+            intervalCommitLatencyMax = Math.max(intervalCommitLatencyMax, latency);
   		}
   		globalTxCount = 0;
   	}
 
+    /**
+     * Queues the vertex for the writer thread.
+     *
+     * @return True if the vertex was queued.
+     */
     @Override
     public boolean putVertex(AbstractVertex incomingVertex) {
-      String bigHashCode = new String(incomingVertex.bigHashCode(), StandardCharsets.UTF_8);
-    	globalTxCheckin();
+        return enqueue(new WriteRequest(incomingVertex, null));
+    }
+
+    /**
+     * Queues the edge for the writer thread.
+     *
+     * @return True if the edge was queued.
+     */
+    @Override
+    public boolean putEdge(AbstractEdge incomingEdge) {
+        return enqueue(new WriteRequest(null, incomingEdge));
+    }
+
+    private boolean writeVertex(AbstractVertex incomingVertex, byte[] bigHash) {
+      String bigHashCode = new String(bigHash, StandardCharsets.UTF_8);
+      HashKey hashKey = new HashKey(bigHash);
 
     	try {
         if (nodeBloomFilter.contains(bigHashCode)) { // L1, confirming if its false +tive
-          if (localNodeCache.containsKey(bigHashCode)) { // L2
+          if (getFromLocalCache(hashKey) != null) { // L2
             	nodeFoundInLocalCacheCount++;
               return false;
           }
@@ -337,9 +691,9 @@ public class Neo4j extends AbstractStorage {
 
           // L3: confirming from db if we have bloom filter false postive after FIFO cache miss
           Node newVertex;
-          newVertex = vertexIndex.get(HASHCODE_LABEL, bigHashCode).getSingle();
+          newVertex = findNodeByHash(bigHashCode);
         	if (newVertex != null) {
-             putInLocalCache(newVertex, bigHashCode);
+             putInLocalCache(newVertex, hashKey);
              foundInDbCount++;
              return false;
           } else {
@@ -357,7 +711,9 @@ public class Neo4j extends AbstractStorage {
             continue;
           }
           newVertex.setProperty(key, value);
-          vertexIndex.add(newVertex, key, value);
+          if (isIndexed(vertexIndexKeys, key)) {
+            vertexIndex.add(newVertex, key, value);
+          }
         }
 
         newVertex.setProperty(HASHCODE_LABEL, bigHashCode);
@@ -365,7 +721,7 @@ public class Neo4j extends AbstractStorage {
         newVertex.setProperty(ID_STRING, newVertex.getId());
         vertexIndex.add(newVertex, ID_STRING, Long.toString(newVertex.getId()));
         nodeBloomFilter.add(bigHashCode);
-        putInLocalCache(newVertex, bigHashCode);
+        putInLocalCache(newVertex, hashKey);
 
       } finally {
 
@@ -374,10 +730,14 @@ public class Neo4j extends AbstractStorage {
     }
 
 
-    @Override
-    public boolean putEdge(AbstractEdge incomingEdge) {
-        String bigHashCode = new String(incomingEdge.bigHashCode(), StandardCharsets.UTF_8);
-        if (edgeBloomFilter.contains(bigHashCode)) {
+    private boolean writeEdge(AbstractEdge incomingEdge, byte[] bigHash, byte[] srcVertexBigHash, byte[] dstVertexBigHash) {
+        String bigHashCode = new String(bigHash, StandardCharsets.UTF_8);
+        HashKey hashKey = new HashKey(bigHash);
+        if (localEdgeCache.get(hashKey) != null) {
+            edgeFoundInLocalCacheCount++;
+            return true;
+        }
+        if (EDGE_INDEX_DEDUPLICATION && edgeBloomFilter.contains(bigHashCode)) {
             Relationship edge;
             edge = edgeIndex.get(HASHCODE_LABEL, bigHashCode).getSingle();
             if (edge != null) {
@@ -385,40 +745,43 @@ public class Neo4j extends AbstractStorage {
                 //     // if there is heavy repetition of edges then comment out this logging or it will slow down ingestion
                 //     logger.log(Level.INFO, "Edge (bigHashCode: " + bigHashCode + ") is already in db, skiping");
                 // }
+                localEdgeCache.put(hashKey, Boolean.TRUE);
+                edgeFoundInDbCount++;
                 return true;
             }
         }
         
         AbstractVertex srcVertex = incomingEdge.getSourceVertex();
         AbstractVertex dstVertex = incomingEdge.getDestinationVertex();
-        globalTxCheckin();
 
         try {
-            String srcVertexBigHashCode = new String(srcVertex.bigHashCode(), StandardCharsets.UTF_8);
-            String dstVertexBigHashCode = new String(dstVertex.bigHashCode(), StandardCharsets.UTF_8);
-            Node srcNode = localNodeCache.get(srcVertexBigHashCode);
-            Node dstNode = localNodeCache.get(dstVertexBigHashCode);
+            HashKey srcVertexHashKey = new HashKey(srcVertexBigHash);
+            HashKey dstVertexHashKey = new HashKey(dstVertexBigHash);
+            Node srcNode = getFromLocalCache(srcVertexHashKey);
+            Node dstNode = getFromLocalCache(dstVertexHashKey);
 
             if (srcNode == null) {
                 dbHitCountForEdge++;
-                srcNode = vertexIndex.get(HASHCODE_LABEL, srcVertexBigHashCode).getSingle();
+                srcNode = findNodeByHash(new String(srcVertexBigHash, StandardCharsets.UTF_8));
                 if (srcNode == null) {
                     // insert vertex if not in db
-                    putVertex(srcVertex);
-                    srcNode = localNodeCache.get(srcVertexBigHashCode);
+                    writeVertex(srcVertex, srcVertexBigHash);
+                    srcNode = localNodeCache.get(srcVertexHashKey);
+                } else {
+                    putInLocalCache(srcNode, srcVertexHashKey);
                 }
-                putInLocalCache(srcNode, srcVertexBigHashCode);
             }
 
             if (dstNode == null) {
                 dbHitCountForEdge++;
-                dstNode = vertexIndex.get(HASHCODE_LABEL, dstVertexBigHashCode).getSingle();
+                dstNode = findNodeByHash(new String(dstVertexBigHash, StandardCharsets.UTF_8));
                 if (dstNode == null) {
                     // insert vertex if not in db
-                    putVertex(dstVertex);
-                    dstNode = localNodeCache.get(dstVertexBigHashCode);
+                    writeVertex(dstVertex, dstVertexBigHash);
+                    dstNode = localNodeCache.get(dstVertexHashKey);
+                } else {
+                    putInLocalCache(dstNode, dstVertexHashKey);
                 }
-                putInLocalCache(dstNode, dstVertexBigHashCode);
             }
 
             edgeCount++;
@@ -432,15 +795,18 @@ public class Neo4j extends AbstractStorage {
                     continue;
                 }
                 newEdge.setProperty(key, value);
-                edgeIndex.add(newEdge, key, value);
-
-                newEdge.setProperty(HASHCODE_LABEL, bigHashCode);
-                edgeIndex.add(newEdge, HASHCODE_LABEL, bigHashCode);
-                newEdge.setProperty(ID_STRING, newEdge.getId());
-                edgeIndex.add(newEdge, ID_STRING, Long.toString(newEdge.getId()));
-                edgeBloomFilter.add(bigHashCode);
+                if (isIndexed(edgeIndexKeys, key)) {
+                    edgeIndex.add(newEdge, key, value);
+                }
             }
 
+            newEdge.setProperty(HASHCODE_LABEL, bigHashCode);
+            edgeIndex.add(newEdge, HASHCODE_LABEL, bigHashCode);
+            newEdge.setProperty(ID_STRING, newEdge.getId());
+            edgeIndex.add(newEdge, ID_STRING, Long.toString(newEdge.getId()));
+            edgeBloomFilter.add(bigHashCode);
+            localEdgeCache.put(hashKey, Boolean.TRUE);
+
         } finally {
         }
         return true;
@@ -461,8 +827,22 @@ public class Neo4j extends AbstractStorage {
         return resultVertex;
     }
 
+    private AbstractVertex convertNodeToVertex(Node node, Map<Long, AbstractVertex> convertedVertices) {
+        AbstractVertex vertex = convertedVertices.get(node.getId());
+        if (vertex == null) {
+            vertex = convertNodeToVertex(node);
+            convertedVertices.put(node.getId(), vertex);
+        }
+        return vertex;
+    }
+
     private AbstractEdge convertRelationshipToEdge(Relationship relationship) {
-        AbstractEdge resultEdge = new Edge((Vertex) convertNodeToVertex(relationship.getStartNode()), (Vertex) convertNodeToVertex(relationship.getEndNode()));
+        return convertRelationshipToEdge(relationship, new HashMap<Long, AbstractVertex>());
+    }
+
+    private AbstractEdge convertRelationshipToEdge(Relationship relationship, Map<Long, AbstractVertex> convertedVertices) {
+        AbstractEdge resultEdge = new Edge((Vertex) convertNodeToVertex(relationship.getStartNode(), convertedVertices),
+                (Vertex) convertNodeToVertex(relationship.getEndNode(), convertedVertices));
         for (String key : relationship.getPropertyKeys()) {
             Object value = relationship.getProperty(key);
             if (value instanceof String) {
@@ -596,6 +976,7 @@ public class Neo4j extends AbstractStorage {
             for (Node destinationNode : destinationNodes) {
                 try ( Transaction tx = graphDb.beginTx() ) {
                     for (Path currentPath : pathFinder.findAllPaths(sourceNode, destinationNode)) {
+                        QueryContext.checkpoint(resultGraph);
                         for (Node currentNode : currentPath.nodes()) {
                             if (!addedNodeIds.contains(currentNode.getId())) {
                                 resultGraph.putVertex(convertNodeToVertex(currentNode));
@@ -639,74 +1020,80 @@ public class Neo4j extends AbstractStorage {
             return null;
         }
 
+        if ((terminatingExpression != null) && (terminatingExpression.trim().equalsIgnoreCase("null"))) {
+            terminatingExpression = null;
+        }
+
         Graph resultGraph = new Graph();
-        Set<Node> doneSet = new HashSet<>();
-        Set<Node> tempSet = new HashSet<>();
+        // Each node is converted once even if it is reached along several relationships.
+        Map<Long, AbstractVertex> convertedVertices = new HashMap<>();
 
         try ( Transaction tx = graphDb.beginTx() ) {
+            List<Node> startNodes = new ArrayList<>();
             IndexHits<Node> queryHits = vertexIndex.query(vertexExpression);
             for (Node foundNode : queryHits) {
-                resultGraph.putVertex(convertNodeToVertex(foundNode));
-                tempSet.add(foundNode);
+                resultGraph.putVertex(convertNodeToVertex(foundNode, convertedVertices));
+                startNodes.add(foundNode);
             }
             queryHits.close();
-            tx.success();
-        }
 
-        if ((terminatingExpression != null) && (terminatingExpression.trim().equalsIgnoreCase("null"))) {
-            terminatingExpression = null;
-        }
-        Set<Node> terminatingSet = new HashSet<>();
-        if (terminatingExpression != null) {
-            try ( Transaction tx = graphDb.beginTx() ) {
-                IndexHits<Node> queryHits = vertexIndex.query(terminatingExpression);
+            final Set<Node> terminatingSet = new HashSet<>();
+            if (terminatingExpression != null) {
+                queryHits = vertexIndex.query(terminatingExpression);
                 for (Node foundNode : queryHits) {
                     terminatingSet.add(foundNode);
                 }
                 queryHits.close();
-                tx.success();
             }
-        }
 
-        int currentDepth = 0;
-        while (true) {
-            if ((tempSet.isEmpty()) || (depth == 0)) {
-                break;
-            }
-            doneSet.addAll(tempSet);
-            Set<Node> newTempSet = new HashSet<>();
-            for (Node tempNode : tempSet) {
-                try ( Transaction tx = graphDb.beginTx() ) {
-                    for (Relationship nodeRelationship : tempNode.getRelationships(dir)) {
-                        Node otherNode = nodeRelationship.getOtherNode(tempNode);
-                        if (terminatingSet.contains(otherNode)) {
-                            continue;
-                        }
-                        if (!doneSet.contains(otherNode)) {
-                            newTempSet.add(otherNode);
-                        }
-                        resultGraph.putVertex(convertNodeToVertex(otherNode));
-                        resultGraph.putEdge(convertRelationshipToEdge(nodeRelationship));
-                        // Add network artifacts to the network map of the graph.
-                        // This is needed to resolve remote queries
-                        try {
-                            if (((String) otherNode.getProperty("subtype")).equalsIgnoreCase("network")) {
-                                resultGraph.putNetworkVertex(convertNodeToVertex(otherNode), currentDepth);
+            if (depth > 0 && !startNodes.isEmpty()) {
+                // Breadth first with node-global uniqueness so that every node is expanded once,
+                // from its shallowest depth. The expander adds all relationships of the node
+                // when it is expanded, so edges between nodes that were already visited are
+                // still included, and relationships to terminating nodes are not followed.
+                final Direction expandDirection = dir;
+                final Graph lineageGraph = resultGraph;
+                final Map<Long, AbstractVertex> lineageVertices = convertedVertices;
+                TraversalDescription traversal = graphDb.traversalDescription()
+                        .breadthFirst()
+                        .expand(new PathExpander<Object>() {
+                            @Override
+                            public Iterable<Relationship> expand(Path path, BranchState<Object> state) {
+                                Node node = path.endNode();
+                                List<Relationship> relationships = new ArrayList<>();
+                                for (Relationship nodeRelationship : node.getRelationships(expandDirection)) {
+                                    Node otherNode = nodeRelationship.getOtherNode(node);
+                                    if (terminatingSet.contains(otherNode)) {
+                                        continue;
+                                    }
+                                    QueryContext.checkpoint(lineageGraph);
+                                    AbstractVertex otherVertex = convertNodeToVertex(otherNode, lineageVertices);
+                                    lineageGraph.putVertex(otherVertex);
+                                    lineageGraph.putEdge(convertRelationshipToEdge(nodeRelationship, lineageVertices));
+                                    // Add network artifacts to the network map of the graph.
+                                    // This is needed to resolve remote queries
+                                    if ("network".equalsIgnoreCase(String.valueOf(otherNode.getProperty("subtype", null)))) {
+                                        lineageGraph.putNetworkVertex(otherVertex, path.length());
+                                    }
+                                    relationships.add(nodeRelationship);
+                                }
+                                return relationships;
                             }
-                        } catch (Exception exception) {
-                            // Ignore
-                        }
-                    }
-                    tx.success();
+
+                            @Override
+                            public PathExpander<Object> reverse() {
+                                throw new UnsupportedOperationException();
+                            }
+                        })
+                        .uniqueness(Uniqueness.NODE_GLOBAL)
+                        .evaluator(Evaluators.toDepth(depth));
+                for (Iterator<Path> paths = traversal.traverse(startNodes).iterator(); paths.hasNext();) {
+                    paths.next();
                 }
             }
-            tempSet.clear();
-            tempSet.addAll(newTempSet);
-            depth--;
-            currentDepth++;
+            tx.success();
         }
 
-        resultGraph.commitIndex();
         return resultGraph;
     }
 
@@ -724,13 +1111,33 @@ public class Neo4j extends AbstractStorage {
     	return DigestUtils.sha256Hex(vertex.toString());
     }
 
+    /**
+     * Re-indexes an existing database offline with the keys currently configured in the
+     * storage config file. The database must not be in use.
+     *
+     * Usage: Neo4j <database path>
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.out.println("Usage: Neo4j <database path>");
+            return;
+        }
+        index(args[0], true);
+    }
+
     public static void index(String dbpath, boolean printProgress) {
 
-        int totalThreads = Runtime.getRuntime().availableProcessors();
+        Map<String, String> config = loadConfig();
+        final Set<String> vertexIndexKeys = parseIndexKeys(config.get("vertexIndexKeys"), NETWORK_VERTEX_KEYS);
+        final Set<String> edgeIndexKeys = parseIndexKeys(config.get("edgeIndexKeys"), new String[0]);
+        // at least one node and one relationship indexer
+        int totalThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
         final ConcurrentLinkedQueue<Node> nodeTaskQueue = new ConcurrentLinkedQueue<Node>();
         final ConcurrentLinkedQueue<Relationship> edgeTaskQueue = new ConcurrentLinkedQueue<Relationship>();
         final ReentrantReadWriteLock nodeRwlock = new ReentrantReadWriteLock();
         final ReentrantReadWriteLock edgeRwlock = new ReentrantReadWriteLock();
+        // workers are stopped with a flag since interrupting a commit closes the transaction log
+        final AtomicBoolean indexingDone = new AtomicBoolean(false);
         final Index<Node> vertexIndex;
         final RelationshipIndex edgeIndex;
         System.out.println("Loading database...");
@@ -773,7 +1180,7 @@ public class Neo4j extends AbstractStorage {
                 Transaction tx = graphDb.beginTx();
                 int counter = 0;
                 try {
-                    while (!Thread.currentThread().isInterrupted()) {
+                    while (!indexingDone.get()) {
 
                         if (counter < 10000) {
                             Node node = nodeTaskQueue.poll();
@@ -782,7 +1189,9 @@ public class Neo4j extends AbstractStorage {
                             }
 
                             for ( String key : node.getPropertyKeys() ) {
-                                vertexIndex.add(node, key, (String) node.getProperty( key ));
+                                if (isIndexed(vertexIndexKeys, key) && !key.equals(spade.storage.Neo4j.ID_STRING)) {
+                                    vertexIndex.add(node, key, String.valueOf(node.getProperty( key )));
+                                }
                             }
                             node.setProperty(spade.storage.Neo4j.ID_STRING, node.getId());
                             vertexIndex.add(node, spade.storage.Neo4j.ID_STRING, Long.toString(node.getId()));
@@ -801,7 +1210,8 @@ public class Neo4j extends AbstractStorage {
                     }
 
                 } finally {
-                    // tx.success();
+                    // the last batch is committed too
+                    tx.success();
                     tx.close();
                     if (nodeRwlock.writeLock().isHeldByCurrentThread()) {
                         nodeRwlock.writeLock().unlock();
@@ -817,7 +1227,7 @@ public class Neo4j extends AbstractStorage {
                 Transaction tx = graphDb.beginTx();
                 int counter = 0;
                 try {
-                    while (!Thread.currentThread().isInterrupted()) {
+                    while (!indexingDone.get()) {
 
                         if (counter < 10000) {
                             Relationship relationship = edgeTaskQueue.poll();
@@ -826,7 +1236,9 @@ public class Neo4j extends AbstractStorage {
                             }
 
                             for ( String key : relationship.getPropertyKeys() ) {
-                                edgeIndex.add(relationship, key, (String) relationship.getProperty( key ));
+                                if (isIndexed(edgeIndexKeys, key) && !key.equals(spade.storage.Neo4j.ID_STRING)) {
+                                    edgeIndex.add(relationship, key, String.valueOf(relationship.getProperty( key )));
+                                }
                             }
                             relationship.setProperty(spade.storage.Neo4j.ID_STRING, relationship.getId());
                             edgeIndex.add(relationship, spade.storage.Neo4j.ID_STRING, Long.toString(relationship.getId()));
@@ -835,7 +1247,7 @@ public class Neo4j extends AbstractStorage {
                         }
 
                         if (counter > 1000 && edgeRwlock.writeLock().tryLock()){
-                            // tx.success();
+                            tx.success();
                             tx.close();
                             tx = graphDb.beginTx();
                             edgeRwlock.writeLock().unlock();
@@ -845,7 +1257,8 @@ public class Neo4j extends AbstractStorage {
                     }
 
                 } finally {
-                    // tx.success();
+                    // the last batch is committed too
+                    tx.success();
                     tx.close();
                     if (edgeRwlock.writeLock().isHeldByCurrentThread()) {
                         edgeRwlock.writeLock().unlock();
@@ -936,8 +1349,8 @@ public class Neo4j extends AbstractStorage {
 
         System.out.println("Queues cleared. Threads teardown started...");
 
+        indexingDone.set(true);
         for (int i=0; i<totalThreads/2; i++) {
-            nodeWorkers.get(i).interrupt();
             try {
                 nodeWorkers.get(i).join();
             } catch (InterruptedException exception) {
@@ -946,7 +1359,6 @@ public class Neo4j extends AbstractStorage {
         }
 
         for (int i=0; i<totalThreads/2; i++) {
-            edgeWorkers.get(i).interrupt();
             try {
                 edgeWorkers.get(i).join();
             } catch (InterruptedException exception) {
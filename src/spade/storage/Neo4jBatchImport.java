@@ -0,0 +1,285 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2016 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractStorage;
+import spade.core.AbstractVertex;
+import spade.core.ScalableBloomFilter;
+import spade.core.Settings;
+
+/**
+ * Offline bulk import into a new Neo4j database. Vertices and edges are written
+ * through the Neo4j batch inserter without transactions or index updates, and
+ * duplicates are detected in memory. The database is laid out exactly as the Neo4j
+ * storage writes it: the indexes are built in one pass when the storage is removed,
+ * and the bloom filters that the Neo4j storage uses for duplicate detection are
+ * written with it, so that the database can then be opened by the Neo4j storage.
+ *
+ * Use it with a reporter that replays archived provenance, e.g. the Audit reporter
+ * reading an input log. The database cannot be queried while it is being imported.
+ *
+ * Usage: add storage Neo4jBatchImport <new database path>
+ */
+public class Neo4jBatchImport extends AbstractStorage {
+
+    private static final Logger logger = Logger.getLogger(Neo4jBatchImport.class.getName());
+    private static final String ID_STRING = Settings.getProperty("storage_identifier");
+
+    private String neo4jDatabaseDirectoryPath;
+    private BatchInserter inserter;
+    private HashIndex nodeIds;
+    private HashIndex edgeIds;
+    private ScalableBloomFilter<String> nodeBloomFilter;
+    private ScalableBloomFilter<String> edgeBloomFilter;
+    private long importedVertexCount = 0;
+    private long importedEdgeCount = 0;
+    private long duplicateVertexCount = 0;
+    private long duplicateEdgeCount = 0;
+
+    @Override
+    public boolean initialize(String arguments) {
+        if (arguments == null || arguments.trim().isEmpty()) {
+            logger.log(Level.SEVERE, "Usage: add storage Neo4jBatchImport <new database path>");
+            return false;
+        }
+        neo4jDatabaseDirectoryPath = arguments.trim();
+        // Duplicates are only detected among the imported elements
+        if (new File(neo4jDatabaseDirectoryPath, "neostore").exists()) {
+            logger.log(Level.SEVERE, "Database already exists at " + neo4jDatabaseDirectoryPath + ". Bulk import needs a new database");
+            return false;
+        }
+        try {
+            Map<String, String> config = new HashMap<String, String>();
+            config.put("dump_configuration", "false");
+            inserter = BatchInserters.inserter(neo4jDatabaseDirectoryPath, config);
+            if ("schema".equalsIgnoreCase(Settings.getProperty("neo4j_hash_index"))) {
+                // built when the inserter shuts down
+                inserter.createDeferredConstraint(Neo4j.MyNodeTypes.VERTEX).assertPropertyIsUnique(Neo4j.HASHCODE_LABEL).create();
+            }
+            nodeBloomFilter = Neo4j.openBloomFilter(neo4jDatabaseDirectoryPath, Neo4j.NODE_BLOOMFILTER);
+            edgeBloomFilter = Neo4j.openBloomFilter(neo4jDatabaseDirectoryPath, Neo4j.EDGE_BLOOMFILTER);
+        } catch (Exception exception) {
+            logger.log(Level.SEVERE, "Failed to open batch inserter at " + neo4jDatabaseDirectoryPath, exception);
+            return false;
+        }
+        nodeIds = new HashIndex();
+        edgeIds = new HashIndex();
+        return true;
+    }
+
+    @Override
+    public boolean putVertex(AbstractVertex incomingVertex) {
+        return createNode(incomingVertex, incomingVertex.bigHashCode()) != -1;
+    }
+
+    // returns the id of the new node or -1 if the vertex was already imported
+    private long createNode(AbstractVertex incomingVertex, byte[] bigHash) {
+        if (nodeIds.get(bigHash) != -1) {
+            duplicateVertexCount++;
+            return -1;
+        }
+        String bigHashCode = new String(bigHash, StandardCharsets.UTF_8);
+        Map<String, Object> properties = getProperties(incomingVertex.getAnnotations(), bigHashCode);
+        long nodeId = inserter.createNode(properties, Neo4j.MyNodeTypes.VERTEX);
+        inserter.setNodeProperty(nodeId, ID_STRING, nodeId);
+        nodeIds.put(bigHash, nodeId);
+        nodeBloomFilter.add(bigHashCode);
+        importedVertexCount++;
+        return nodeId;
+    }
+
+    @Override
+    public boolean putEdge(AbstractEdge incomingEdge) {
+        byte[] bigHash = incomingEdge.bigHashCode();
+        if (edgeIds.get(bigHash) != -1) {
+            duplicateEdgeCount++;
+            return true;
+        }
+        long sourceId = getOrCreateNode(incomingEdge.getSourceVertex());
+        long destinationId = getOrCreateNode(incomingEdge.getDestinationVertex());
+        String bigHashCode = new String(bigHash, StandardCharsets.UTF_8);
+        Map<String, Object> properties = getProperties(incomingEdge.getAnnotations(), bigHashCode);
+        long relationshipId = inserter.createRelationship(sourceId, destinationId, Neo4j.MyRelationshipTypes.EDGE, properties);
+        inserter.setRelationshipProperty(relationshipId, ID_STRING, relationshipId);
+        edgeIds.put(bigHash, relationshipId);
+        edgeBloomFilter.add(bigHashCode);
+        importedEdgeCount++;
+        return true;
+    }
+
+    private long getOrCreateNode(AbstractVertex vertex) {
+        byte[] bigHash = vertex.bigHashCode();
+        long nodeId = nodeIds.get(bigHash);
+        return nodeId != -1 ? nodeId : createNode(vertex, bigHash);
+    }
+
+    private Map<String, Object> getProperties(Map<String, String> annotations, String bigHashCode) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        for (Map.Entry<String, String> currentEntry : annotations.entrySet()) {
+            if (!currentEntry.getKey().equalsIgnoreCase(ID_STRING)) {
+                properties.put(currentEntry.getKey(), currentEntry.getValue());
+            }
+        }
+        properties.put(Neo4j.HASHCODE_LABEL, bigHashCode);
+        return properties;
+    }
+
+    @Override
+    public boolean shutdown() {
+        logger.log(Level.INFO, "Imported " + importedVertexCount + " vertices and " + importedEdgeCount + " edges. Skipped "
+                + duplicateVertexCount + " duplicate vertices and " + duplicateEdgeCount + " duplicate edges");
+        nodeIds = null;
+        edgeIds = null;
+        try {
+            inserter.shutdown();
+            nodeBloomFilter.close();
+            edgeBloomFilter.close();
+        } catch (Exception exception) {
+            logger.log(Level.SEVERE, "Failed to shut down batch inserter", exception);
+            return false;
+        }
+        logger.log(Level.INFO, "Building indexes of " + neo4jDatabaseDirectoryPath);
+        Neo4j.index(neo4jDatabaseDirectoryPath, false);
+        logger.log(Level.INFO, "Bulk import completed");
+        return true;
+    }
+
+    /**
+     * Open addressing map from the 256-bit hash of an element to its id. Keeps the hash
+     * in four longs per slot so that a large import does not allocate an object per element.
+     * The slots are kept in segmented arrays indexed by long, since the hashes of more than
+     * 2^29 slots do not fit in one Java array.
+     */
+    private static final class HashIndex {
+
+        private LongArray hashes = new LongArray(4 * 1024, 0);
+        private LongArray ids = new LongArray(1024, -1);
+        private long size = 0;
+
+        long get(byte[] hash) {
+            long slot = find(hashes, ids, toLong(hash, 0), toLong(hash, 8), toLong(hash, 16), toLong(hash, 24));
+            return ids.get(slot);
+        }
+
+        void put(byte[] hash, long id) {
+            if (2 * (size + 1) > ids.length) {
+                resize();
+            }
+            long hash0 = toLong(hash, 0), hash1 = toLong(hash, 8), hash2 = toLong(hash, 16), hash3 = toLong(hash, 24);
+            long slot = find(hashes, ids, hash0, hash1, hash2, hash3);
+            if (ids.get(slot) == -1) {
+                size++;
+            }
+            hashes.set(4 * slot, hash0);
+            hashes.set(4 * slot + 1, hash1);
+            hashes.set(4 * slot + 2, hash2);
+            hashes.set(4 * slot + 3, hash3);
+            ids.set(slot, id);
+        }
+
+        // the slot holding the hash or the empty slot where it belongs
+        private static long find(LongArray hashes, LongArray ids, long hash0, long hash1, long hash2, long hash3) {
+            long mask = ids.length - 1;
+            long slot = (hash0 ^ (hash0 >>> 32)) & mask;
+            while (ids.get(slot) != -1) {
+                long base = 4 * slot;
+                if (hashes.get(base) == hash0 && hashes.get(base + 1) == hash1 && hashes.get(base + 2) == hash2 && hashes.get(base + 3) == hash3) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void resize() {
+            LongArray oldHashes = hashes;
+            LongArray oldIds = ids;
+            hashes = new LongArray(oldHashes.length * 2, 0);
+            ids = new LongArray(oldIds.length * 2, -1);
+            for (long slot = 0; slot < oldIds.length; slot++) {
+                long id = oldIds.get(slot);
+                if (id != -1) {
+                    long hash0 = oldHashes.get(4 * slot), hash1 = oldHashes.get(4 * slot + 1);
+                    long hash2 = oldHashes.get(4 * slot + 2), hash3 = oldHashes.get(4 * slot + 3);
+                    long newSlot = find(hashes, ids, hash0, hash1, hash2, hash3);
+                    hashes.set(4 * newSlot, hash0);
+                    hashes.set(4 * newSlot + 1, hash1);
+                    hashes.set(4 * newSlot + 2, hash2);
+                    hashes.set(4 * newSlot + 3, hash3);
+                    ids.set(newSlot, id);
+                }
+            }
+        }
+
+        private static long toLong(byte[] bytes, int offset) {
+            long value = 0;
+            for (int i = offset; i < offset + 8; i++) {
+                value = (value << 8) | (bytes[i] & 0xff);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * An array of longs indexed by long, kept in segments of at most 2^SEGMENT_SHIFT longs.
+     */
+    private static final class LongArray {
+
+        private static final int SEGMENT_SHIFT = 24;
+        private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+        private final long length;
+        private final long[][] segments;
+
+        LongArray(long length, long value) {
+            this.length = length;
+            long segmentCount = (length + SEGMENT_MASK) >>> SEGMENT_SHIFT;
+            if (segmentCount > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Hash index of " + length + " slots is too large");
+            }
+            segments = new long[(int) segmentCount][];
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = new long[(int) Math.min(SEGMENT_MASK + 1L, length - ((long) i << SEGMENT_SHIFT))];
+                if (value != 0) {
+                    Arrays.fill(segments[i], value);
+                }
+            }
+        }
+
+        long get(long index) {
+            return segments[(int) (index >>> SEGMENT_SHIFT)][(int) (index & SEGMENT_MASK)];
+        }
+
+        void set(long index, long value) {
+            segments[(int) (index >>> SEGMENT_SHIFT)][(int) (index & SEGMENT_MASK)] = value;
+        }
+    }
+}
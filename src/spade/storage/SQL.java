@@ -19,28 +19,46 @@
  */
 package spade.storage;
 
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 import spade.core.AbstractEdge;
 import spade.core.AbstractStorage;
 import spade.core.AbstractVertex;
 import spade.core.Graph;
+import spade.core.QueryContext;
 import spade.core.Settings;
 import spade.core.Vertex;
+import spade.utility.CommonFunctions;
 
 /**
  * Basic SQL storage implementation.
  *
+ * Vertices and edges are inserted with a prepared statement for each table and
+ * set of annotation columns. The inserts are batched and committed once
+ * sql_batch_size of them are pending or sql_commit_interval milliseconds after
+ * the last commit, and before every query. With MySQL, add
+ * rewriteBatchedStatements=true to the database URL to send each batch as a
+ * single statement.
+ *
  * @author Dawood Tariq
  */
 public class SQL extends AbstractStorage {
@@ -51,11 +69,19 @@ public class SQL extends AbstractStorage {
     private final String VERTEX_TABLE = "VERTEX";
     private final String EDGE_TABLE = "EDGE";
     private final boolean ENABLE_SANITAZATION = true;
+    private static final Pattern UNSAFE_COLUMN_CHARACTERS = Pattern.compile("[^a-zA-Z0-9]+");
     private static final String ID_STRING = Settings.getProperty("storage_identifier");
     private static final String DIRECTION_ANCESTORS = Settings.getProperty("direction_ancestors");
     private static final String DIRECTION_DESCENDANTS = Settings.getProperty("direction_descendants");
+    private static final int BATCH_SIZE = CommonFunctions.parseInt(Settings.getProperty("sql_batch_size"), 1000);
+    private static final long COMMIT_INTERVAL = CommonFunctions.parseLong(Settings.getProperty("sql_commit_interval"), 15000L);
+    private static final int STATEMENT_CACHE_SIZE = CommonFunctions.parseInt(Settings.getProperty("sql_statement_cache_size"), 64);
+
+    // Insert statements by table and columns, least recently used first
+    private final LinkedHashMap<String, InsertBatch> insertStatements = new LinkedHashMap<>(16, 0.75f, true);
+    private int pendingInserts;
+    private long lastCommitTime;
 
-    // private Statement batch_statement;
     @Override
     public boolean initialize(String arguments) {
         vertexAnnotations = new HashSet<>();
@@ -92,6 +118,7 @@ public class SQL extends AbstractStorage {
                     + ")";
             dbStatement.execute(createEdgeTable);
             dbStatement.close();
+            lastCommitTime = System.currentTimeMillis();
 
             return true;
         } catch (ClassNotFoundException | InstantiationException | IllegalAccessException | SQLException ex) {
@@ -103,7 +130,11 @@ public class SQL extends AbstractStorage {
     @Override
     public boolean shutdown() {
         try {
-            dbConnection.commit();
+            commitBatches();
+            for (InsertBatch batch : insertStatements.values()) {
+                batch.statement.close();
+            }
+            insertStatements.clear();
             dbConnection.close();
             return true;
         } catch (Exception ex) {
@@ -114,7 +145,7 @@ public class SQL extends AbstractStorage {
 
     private String sanitizeColumn(String column) {
         if (ENABLE_SANITAZATION) {
-            column = column.replaceAll("[^a-zA-Z0-9]+", "");
+            column = UNSAFE_COLUMN_CHARACTERS.matcher(column).replaceAll("");
         }
         return column;
     }
@@ -128,6 +159,8 @@ public class SQL extends AbstractStorage {
         }
 
         try {
+            // The prepared inserts must not be executed across the change of the table
+            executeBatches();
             Statement columnStatement = dbConnection.createStatement();
             String statement = "ALTER TABLE `" + table 
                         + "` ADD COLUMN `" 
@@ -164,127 +197,191 @@ public class SQL extends AbstractStorage {
 
     @Override
     public boolean putVertex(AbstractVertex incomingVertex) {
-        // Use StringBuilder to build the SQL insert statement
-        StringBuilder insertStringBuilder = new StringBuilder("INSERT INTO " + VERTEX_TABLE + " (type, hash, ");
-        for (String annotationKey : incomingVertex.getAnnotations().keySet()) {
-            if (annotationKey.equalsIgnoreCase("type")) {
+        insert(VERTEX_TABLE, new String[]{"type", "hash"},
+                new Object[]{incomingVertex.type(), incomingVertex.hashCode()},
+                incomingVertex.getAnnotations());
+        return true;
+    }
+
+    @Override
+    public boolean putEdge(AbstractEdge incomingEdge) {
+        int srcVertexHash = incomingEdge.getSourceVertex().hashCode();
+        int dstVertexHash = incomingEdge.getDestinationVertex().hashCode();
+        insert(EDGE_TABLE, new String[]{"type", "hash", "srcVertexHash", "dstVertexHash"},
+                new Object[]{incomingEdge.type(), incomingEdge.hashCode(), srcVertexHash, dstVertexHash},
+                incomingEdge.getAnnotations());
+        return true;
+    }
+
+    /**
+     * Adds a row to the batch of the insert statement for its columns. The
+     * values are bound as parameters, so they are stored as they are.
+     *
+     * @param table The table to insert into.
+     * @param fixedColumns The columns that every row of the table has.
+     * @param fixedValues The values of the fixed columns.
+     * @param annotations The annotations, each stored in a column named after
+     * the sanitized key.
+     */
+    private synchronized void insert(String table, String[] fixedColumns, Object[] fixedValues, Map<String, String> annotations) {
+        // Sorted so that the same annotation keys always use the same statement
+        TreeMap<String, String> columns = new TreeMap<>();
+        for (Map.Entry<String, String> annotation : annotations.entrySet()) {
+            if (annotation.getKey().equalsIgnoreCase("type")) {
                 continue;
             }
 
             // Sanitize column name to remove special characters
-            String newAnnotationKey = sanitizeColumn(annotationKey);
+            String column = sanitizeColumn(annotation.getKey());
 
             // As the annotation keys are being iterated, add them as new
             // columns to the table if they do not already exist
-            addColumn(VERTEX_TABLE, newAnnotationKey);
-
-            insertStringBuilder.append("");
-            insertStringBuilder.append(newAnnotationKey);
-            insertStringBuilder.append(", ");
+            addColumn(table, column);
+            columns.put(column, annotation.getValue());
         }
 
-        // Eliminate the last 2 characters from the string (", ") and begin adding values
-        String insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2);
-        insertStringBuilder = new StringBuilder(insertString + ") VALUES (");
-
-        // Add the type and hash code
-        insertStringBuilder.append("'");
-        insertStringBuilder.append(incomingVertex.type());
-        insertStringBuilder.append("', ");
-        insertStringBuilder.append(incomingVertex.hashCode());
-        insertStringBuilder.append(", ");
-
-        // Add the annotation values
-        for (String annotationKey : incomingVertex.getAnnotations().keySet()) {
-            if (annotationKey.equalsIgnoreCase("type")) {
-                continue;
-            }
-
-            String value = (ENABLE_SANITAZATION) ? incomingVertex.getAnnotation(annotationKey).replace("'", "\"") : incomingVertex.getAnnotation(annotationKey);
-
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(value);
-            insertStringBuilder.append("', ");
+        Object[] values = Arrays.copyOf(fixedValues, fixedValues.length + columns.size());
+        int column = fixedValues.length;
+        for (String value : columns.values()) {
+            values[column++] = value;
         }
-        insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2) + ")";
-
         try {
-            Statement s = dbConnection.createStatement();
-            s.execute(insertString);
-            s.close();
-            // s.closeOnCompletion();
-        } catch (Exception e) {
+            InsertBatch batch = getInsertStatement(table, fixedColumns, columns.keySet());
+            setParameters(batch.statement, values);
+            batch.statement.addBatch();
+            batch.rows.add(values);
+            pendingInserts++;
+        } catch (SQLException e) {
             Logger.getLogger(SQL.class.getName()).log(Level.SEVERE, null, e);
         }
-        return true;
+        if (pendingInserts >= BATCH_SIZE) {
+            commitBatches();
+        }
     }
 
-    @Override
-    public boolean putEdge(AbstractEdge incomingEdge) {
-        int srcVertexHash = incomingEdge.getSourceVertex().hashCode();
-        int dstVertexHash = incomingEdge.getDestinationVertex().hashCode();
-
-        // Use StringBuilder to build the SQL insert statement
-        StringBuilder insertStringBuilder = new StringBuilder("INSERT INTO " + EDGE_TABLE + " (type, hash, srcVertexHash, dstVertexHash, ");
-        for (String annotationKey : incomingEdge.getAnnotations().keySet()) {
-            if (annotationKey.equalsIgnoreCase("type")) {
-                continue;
+    private InsertBatch getInsertStatement(String table, String[] fixedColumns, Set<String> columns) throws SQLException {
+        StringBuilder columnList = new StringBuilder();
+        StringBuilder parameterList = new StringBuilder();
+        for (String column : fixedColumns) {
+            columnList.append(column).append(", ");
+            parameterList.append("?, ");
+        }
+        for (String column : columns) {
+            columnList.append(column).append(", ");
+            parameterList.append("?, ");
+        }
+        String insertString = "INSERT INTO " + table
+                + " (" + columnList.substring(0, columnList.length() - 2)
+                + ") VALUES (" + parameterList.substring(0, parameterList.length() - 2) + ")";
+
+        InsertBatch batch = insertStatements.get(insertString);
+        if (batch == null) {
+            if (insertStatements.size() >= STATEMENT_CACHE_SIZE) {
+                Iterator<InsertBatch> eldest = insertStatements.values().iterator();
+                InsertBatch evicted = eldest.next();
+                eldest.remove();
+                executeBatch(evicted);
+                evicted.statement.close();
             }
-            // Sanitize column name to remove special characters
-            String newAnnotationKey = sanitizeColumn(annotationKey);
+            batch = new InsertBatch(dbConnection.prepareStatement(insertString));
+            insertStatements.put(insertString, batch);
+        }
+        return batch;
+    }
 
-            // As the annotation keys are being iterated, add them as new
-            // columns to the table if they do not already exist
-            addColumn(EDGE_TABLE, newAnnotationKey);
+    private static void setParameters(PreparedStatement statement, Object[] values) throws SQLException {
+        for (int i = 0; i < values.length; i++) {
+            statement.setObject(i + 1, values[i]);
+        }
+    }
 
-            insertStringBuilder.append("");
-            insertStringBuilder.append(newAnnotationKey);
-            insertStringBuilder.append(", ");
+    private void executeBatch(InsertBatch batch) {
+        if (batch.rows.isEmpty()) {
+            return;
         }
+        try {
+            batch.statement.executeBatch();
+        } catch (BatchUpdateException e) {
+            Logger.getLogger(SQL.class.getName()).log(Level.WARNING, "Batch insert failed, inserting its rows one by one", e);
+            retryFailedRows(batch, e.getUpdateCounts());
+        } catch (SQLException e) {
+            Logger.getLogger(SQL.class.getName()).log(Level.SEVERE, null, e);
+            retryFailedRows(batch, new int[0]);
+        } finally {
+            batch.rows.clear();
+        }
+    }
 
-        // Eliminate the last 2 characters from the string (", ") and begin adding values
-        String insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2);
-        insertStringBuilder = new StringBuilder(insertString + ") VALUES (");
-
-        // Add the type, hash code, and source and destination vertex Ids
-        insertStringBuilder.append("'");
-        insertStringBuilder.append(incomingEdge.type());
-        insertStringBuilder.append("', ");
-        insertStringBuilder.append(incomingEdge.hashCode());
-        insertStringBuilder.append(", ");
-        insertStringBuilder.append(srcVertexHash);
-        insertStringBuilder.append(", ");
-        insertStringBuilder.append(dstVertexHash);
-        insertStringBuilder.append(", ");
-
-        // Add the annotation values
-        for (String annotationKey : incomingEdge.getAnnotations().keySet()) {
-            if (annotationKey.equalsIgnoreCase("type")) {
+    /**
+     * Inserts the rows of a failed batch that the driver did not report as
+     * inserted one at a time, so that a bad row does not take the rest of the
+     * batch with it. Rows that fail again are logged.
+     *
+     * @param batch The failed batch.
+     * @param updateCounts The update counts of the rows that were executed,
+     * EXECUTE_FAILED for the rows that failed.
+     */
+    private void retryFailedRows(InsertBatch batch, int[] updateCounts) {
+        try {
+            batch.statement.clearBatch();
+        } catch (SQLException e) {
+            Logger.getLogger(SQL.class.getName()).log(Level.SEVERE, null, e);
+        }
+        for (int i = 0; i < batch.rows.size(); i++) {
+            if (i < updateCounts.length && updateCounts[i] != Statement.EXECUTE_FAILED) {
                 continue;
             }
+            Object[] values = batch.rows.get(i);
+            try {
+                setParameters(batch.statement, values);
+                batch.statement.executeUpdate();
+            } catch (SQLException e) {
+                Logger.getLogger(SQL.class.getName()).log(Level.SEVERE, "Failed to insert row " + Arrays.toString(values), e);
+            }
+        }
+    }
 
-            String value = (ENABLE_SANITAZATION) ? incomingEdge.getAnnotation(annotationKey).replace("'", "\"") : incomingEdge.getAnnotation(annotationKey);
-
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(value);
-            insertStringBuilder.append("', ");
+    private synchronized void executeBatches() {
+        if (pendingInserts == 0) {
+            return;
         }
-        insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2) + ")";
+        for (InsertBatch batch : insertStatements.values()) {
+            executeBatch(batch);
+        }
+    }
 
+    /**
+     * Executes the pending inserts and commits them.
+     *
+     * @return True if the commit succeeded.
+     */
+    private synchronized boolean commitBatches() {
+        executeBatches();
+        pendingInserts = 0;
+        lastCommitTime = System.currentTimeMillis();
         try {
-            Statement s = dbConnection.createStatement();
-            s.execute(insertString);
-            s.close();
-        } catch (Exception e) {
+            dbConnection.commit();
+            return true;
+        } catch (SQLException e) {
             Logger.getLogger(SQL.class.getName()).log(Level.SEVERE, null, e);
+            return false;
         }
-        return true;
+    }
+
+    @Override
+    public boolean flushTransactions(boolean force) {
+        synchronized (this) {
+            if (!force && (pendingInserts == 0 || System.currentTimeMillis() - lastCommitTime < COMMIT_INTERVAL)) {
+                return true;
+            }
+        }
+        return commitBatches();
     }
 
     @Override
     public Graph getVertices(String expression) {
         try {
-            dbConnection.commit();
+            commitBatches();
             Graph graph = new Graph();
             // assuming that expression is single key value only
             String query = "SELECT * FROM VERTEX WHERE " + expression.replace(":","=");
@@ -335,7 +432,7 @@ public class SQL extends AbstractStorage {
 
         // Get the source vertex
         try {
-            dbConnection.commit();
+            commitBatches();
             String query = "SELECT * FROM VERTEX WHERE vertexId = " + vertexId;
             Statement vertexStatement = dbConnection.createStatement();
             ResultSet result = vertexStatement.executeQuery(query);
@@ -405,6 +502,7 @@ public class SQL extends AbstractStorage {
             doneSet.addAll(tempSet);
             Set<Integer> newTempSet = new HashSet<>();
             for (Integer tempVertexHash : tempSet) {
+                QueryContext.checkpoint(graph);
                 // Get edges for this vertex
                 try {
                     // Construct the required query
@@ -447,7 +545,7 @@ public class SQL extends AbstractStorage {
                                 edge.addAnnotation(edgeColumnLabels.get(i), result.getString(i));
                             }
                         }
-                        putEdge(edge);
+                        graph.putEdge(edge);
                     }
                 } catch (Exception ex) {
                     Logger.getLogger(SQL.class.getName()).log(Level.SEVERE, null, ex);
@@ -487,4 +585,18 @@ public class SQL extends AbstractStorage {
             return null;
         }
     }
+
+    /**
+     * An insert statement with the values of the rows added to its batch,
+     * which are kept to retry the rows of a batch that failed.
+     */
+    private static final class InsertBatch {
+
+        private final PreparedStatement statement;
+        private final List<Object[]> rows = new ArrayList<>();
+
+        private InsertBatch(PreparedStatement statement) {
+            this.statement = statement;
+        }
+    }
 }
@@ -20,6 +20,7 @@
 package spade.transformer;
 
 import java.io.File;
+import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -38,6 +39,7 @@ import spade.core.AbstractEdge;
 import spade.core.AbstractTransformer;
 import spade.core.AbstractVertex;
 import spade.core.Graph;
+import spade.core.Partitions;
 import spade.core.Settings;
 
 public class Aggregation extends AbstractTransformer{
@@ -77,16 +79,30 @@ public class Aggregation extends AbstractTransformer{
 		}
 	}
 	
+	@Override
+	public boolean isPartitionable(){
+		return true;
+	}
+	
 	@Override
 	public Graph putGraph(Graph graph, QueryParameters digQueryParams) {
-		String[] annotationsToRemove = annotationAggregationFunction.keySet().toArray(new String[]{});
+		final String[] annotationsToRemove = annotationAggregationFunction.keySet().toArray(new String[]{});
 		Map<AbstractEdge, Map<String, List<String>>> edgeAnnotationSet = new HashMap<AbstractEdge, Map<String, List<String>>>();
 		Map<AbstractVertex, Map<String, List<String>>> vertexAnnotationSet = new HashMap<AbstractVertex, Map<String, List<String>>>();
 		Map<AbstractVertex, AbstractVertex> oldNewVertices = new HashMap<AbstractVertex, AbstractVertex>(); //to avoid double work when same vertex again
 		
 		//build map which contains the vertex -> annotation -> list of values (for all vertices and their annotations)
-		for(AbstractVertex originalVertex : graph.vertexSet()){
-			AbstractVertex newVertex = createNewWithoutAnnotations(originalVertex, annotationsToRemove);
+		//the stripped copies are created in parallel partitions if enabled and merged in order
+		List<Map.Entry<AbstractVertex, AbstractVertex>> newVertices = Partitions.map(graph.vertexSet(), 
+				new Partitions.Mapper<AbstractVertex, Map.Entry<AbstractVertex, AbstractVertex>>(){
+			@Override
+			public Map.Entry<AbstractVertex, AbstractVertex> map(AbstractVertex originalVertex){
+				return new SimpleEntry<AbstractVertex, AbstractVertex>(originalVertex, createNewWithoutAnnotations(originalVertex, annotationsToRemove));
+			}
+		});
+		for(Map.Entry<AbstractVertex, AbstractVertex> newVertexEntry : newVertices){
+			AbstractVertex originalVertex = newVertexEntry.getKey();
+			AbstractVertex newVertex = newVertexEntry.getValue();
 			if(vertexAnnotationSet.get(newVertex) == null){
 				vertexAnnotationSet.put(newVertex, new HashMap<String, List<String>>());
 			}
@@ -101,8 +117,16 @@ public class Aggregation extends AbstractTransformer{
 		}
 		
 		//build map which contains the edge -> annotation -> list of values (for all edges and their annotations)
-		for(AbstractEdge originalEdge : graph.edgeSet()){
-			AbstractEdge newEdge = createNewWithoutAnnotations(originalEdge, annotationsToRemove);
+		List<Map.Entry<AbstractEdge, AbstractEdge>> newEdges = Partitions.map(graph.edgeSet(), 
+				new Partitions.Mapper<AbstractEdge, Map.Entry<AbstractEdge, AbstractEdge>>(){
+			@Override
+			public Map.Entry<AbstractEdge, AbstractEdge> map(AbstractEdge originalEdge){
+				return new SimpleEntry<AbstractEdge, AbstractEdge>(originalEdge, createNewWithoutAnnotations(originalEdge, annotationsToRemove));
+			}
+		});
+		for(Map.Entry<AbstractEdge, AbstractEdge> newEdgeEntry : newEdges){
+			AbstractEdge originalEdge = newEdgeEntry.getKey();
+			AbstractEdge newEdge = newEdgeEntry.getValue();
 			if(edgeAnnotationSet.get(newEdge) == null){
 				edgeAnnotationSet.put(newEdge, new HashMap<String, List<String>>());
 			}
@@ -118,17 +142,24 @@ public class Aggregation extends AbstractTransformer{
 		
 		Graph resultGraph = new Graph();
 		//create a new graph with updated (aggregated) annotations
-		for(AbstractEdge edge : edgeAnnotationSet.keySet()){
-			AbstractEdge newEdge = createNewWithoutAnnotations(edge, annotationsToRemove);
-			for(String annotation : edgeAnnotationSet.get(edge).keySet()){
-				String aggregationFunction = annotationAggregationFunction.get(annotation);
-				List<String> list = edgeAnnotationSet.get(edge).get(annotation);
-				if(list != null && list.size() != 0){
-					String newValue = applyFunctionOnList(list, aggregationFunction);
-					newEdge.addAnnotation(annotationNewAnnotation.get(annotation), newValue);
+		//edge annotations are aggregated in parallel partitions if enabled. vertices are shared between edges so they are updated after
+		final Map<AbstractEdge, Map<String, List<String>>> edgeAnnotationValues = edgeAnnotationSet;
+		List<AbstractEdge> aggregatedEdges = Partitions.map(edgeAnnotationSet.keySet(), new Partitions.Mapper<AbstractEdge, AbstractEdge>(){
+			@Override
+			public AbstractEdge map(AbstractEdge edge){
+				AbstractEdge newEdge = createNewWithoutAnnotations(edge, annotationsToRemove);
+				for(String annotation : edgeAnnotationValues.get(edge).keySet()){
+					String aggregationFunction = annotationAggregationFunction.get(annotation);
+					List<String> list = edgeAnnotationValues.get(edge).get(annotation);
+					if(list != null && list.size() != 0){
+						String newValue = applyFunctionOnList(list, aggregationFunction);
+						newEdge.addAnnotation(annotationNewAnnotation.get(annotation), newValue);
+					}
 				}
+				return newEdge;
 			}
-			
+		});
+		for(AbstractEdge newEdge : aggregatedEdges){
 			AbstractVertex sourceVertex = newEdge.getSourceVertex();
 			AbstractVertex destinationVertex = newEdge.getDestinationVertex();
 			
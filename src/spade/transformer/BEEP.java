@@ -31,6 +31,7 @@ import spade.client.QueryParameters;
 import spade.core.AbstractTransformer;
 import spade.core.Graph;
 import spade.core.Settings;
+import spade.core.TransformerChain;
 
 public class BEEP extends AbstractTransformer {
 	
@@ -132,18 +133,7 @@ public class BEEP extends AbstractTransformer {
 			return graph;
 		}			
 		
-		for(AbstractTransformer transformer : transformers){
-			if(graph != null){
-				graph = transformer.putGraph(graph, digQueryParams);
-				if(graph != null){
-					graph.commitIndex();
-				}
-			}else{
-				break;
-			}
-		}
-		
-		return graph;
+		return TransformerChain.execute(graph, transformers, digQueryParams);
 	}
 	
 }
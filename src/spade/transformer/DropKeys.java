@@ -21,6 +21,7 @@
 package spade.transformer;
 
 import java.io.File;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -32,6 +33,7 @@ import spade.core.AbstractEdge;
 import spade.core.AbstractTransformer;
 import spade.core.AbstractVertex;
 import spade.core.Graph;
+import spade.core.Partitions;
 import spade.core.Settings;
 import spade.utility.CommonFunctions;
 
@@ -80,16 +82,31 @@ public class DropKeys extends AbstractTransformer{
 		}
 	}
 
+	@Override
+	public boolean isPartitionable(){
+		return true;
+	}
+	
 	public Graph putGraph(Graph graph, QueryParameters digQueryParams){
 		Graph resultGraph = new Graph();
 	
-		for(AbstractVertex vertex : graph.vertexSet()){
-			AbstractVertex newVertex = createNewWithoutAnnotations(vertex, annotationsToRemove);
+		List<AbstractVertex> newVertices = Partitions.map(graph.vertexSet(), new Partitions.Mapper<AbstractVertex, AbstractVertex>(){
+			@Override
+			public AbstractVertex map(AbstractVertex vertex){
+				return createNewWithoutAnnotations(vertex, annotationsToRemove);
+			}
+		});
+		for(AbstractVertex newVertex : newVertices){
 			resultGraph.putVertex(newVertex);
 		}
 		
-		for(AbstractEdge edge : graph.edgeSet()){
-			AbstractEdge newEdge = createNewWithoutAnnotations(edge, annotationsToRemove);
+		List<AbstractEdge> newEdges = Partitions.map(graph.edgeSet(), new Partitions.Mapper<AbstractEdge, AbstractEdge>(){
+			@Override
+			public AbstractEdge map(AbstractEdge edge){
+				return createNewWithoutAnnotations(edge, annotationsToRemove);
+			}
+		});
+		for(AbstractEdge newEdge : newEdges){
 			resultGraph.putEdge(newEdge);
 		}			
 
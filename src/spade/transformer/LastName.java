@@ -21,34 +21,30 @@ package spade.transformer;
 
 import spade.client.QueryParameters;
 import spade.core.AbstractEdge;
-import spade.core.AbstractTransformer;
-import spade.core.Graph;
+import spade.core.AbstractEdgeTransformer;
 
-public class LastName extends AbstractTransformer{
+public class LastName extends AbstractEdgeTransformer{
 
-	public Graph putGraph(Graph graph, QueryParameters digQueryParams){
-		Graph resultGraph = new Graph();
-		for(AbstractEdge edge : graph.edgeSet()){
-			if(getAnnotationSafe(edge, "operation").equals("rename") 
-					|| getAnnotationSafe(edge, "operation").equals("rename_read")
-					|| getAnnotationSafe(edge, "operation").equals("link") 
-					|| getAnnotationSafe(edge, "operation").equals("link_read")
-					|| getAnnotationSafe(edge, "operation").equals("symlink") 
-					|| getAnnotationSafe(edge, "operation").equals("symlink_read")){
-				continue;
-			}
-			AbstractEdge newEdge = createNewWithoutAnnotations(edge);
-//			if(getAnnotationSafe(newEdge, "operation").equals("link_newpath") 
-//					|| getAnnotationSafe(newEdge, "operation").equals("rename_newpath")){
-//				newEdge.addAnnotation("operation", "write");
-//			}
-			if(newEdge != null && newEdge.getSourceVertex() != null && newEdge.getDestinationVertex() != null){
-				resultGraph.putVertex(newEdge.getSourceVertex());
-				resultGraph.putVertex(newEdge.getDestinationVertex());
-				resultGraph.putEdge(newEdge);
-			}
+	@Override
+	public boolean isPartitionable(){
+		return true;
+	}
+	
+	public AbstractEdge transformEdge(AbstractEdge edge, QueryParameters digQueryParams){
+		if(getAnnotationSafe(edge, "operation").equals("rename") 
+				|| getAnnotationSafe(edge, "operation").equals("rename_read")
+				|| getAnnotationSafe(edge, "operation").equals("link") 
+				|| getAnnotationSafe(edge, "operation").equals("link_read")
+				|| getAnnotationSafe(edge, "operation").equals("symlink") 
+				|| getAnnotationSafe(edge, "operation").equals("symlink_read")){
+			return null;
 		}
-		return resultGraph;
+		AbstractEdge newEdge = createNewWithoutAnnotations(edge);
+//		if(getAnnotationSafe(newEdge, "operation").equals("link_newpath") 
+//				|| getAnnotationSafe(newEdge, "operation").equals("rename_newpath")){
+//			newEdge.addAnnotation("operation", "write");
+//		}
+		return newEdge;
 	}
 	
 }
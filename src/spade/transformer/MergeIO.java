@@ -21,22 +21,17 @@ package spade.transformer;
 
 import spade.client.QueryParameters;
 import spade.core.AbstractEdge;
-import spade.core.AbstractTransformer;
-import spade.core.Graph;
+import spade.core.AbstractEdgeTransformer;
 
-public class MergeIO extends AbstractTransformer{
+public class MergeIO extends AbstractEdgeTransformer{
 
-	public Graph putGraph(Graph graph, QueryParameters digQueryParams){
-		Graph resultGraph = new Graph();
-		for(AbstractEdge edge : graph.edgeSet()){
-			AbstractEdge newEdge = createNewWithoutAnnotations(edge, "time", "size");
-			if(newEdge != null && newEdge.getSourceVertex() != null && newEdge.getDestinationVertex() != null){
-				resultGraph.putVertex(newEdge.getSourceVertex());
-				resultGraph.putVertex(newEdge.getDestinationVertex());
-				resultGraph.putEdge(newEdge);
-			}
-		}
-		return resultGraph;
+	@Override
+	public boolean isPartitionable(){
+		return true;
+	}
+	
+	public AbstractEdge transformEdge(AbstractEdge edge, QueryParameters digQueryParams){
+		return createNewWithoutAnnotations(edge, "time", "size");
 	}
 	
 }
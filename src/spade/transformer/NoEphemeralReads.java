@@ -21,6 +21,7 @@ package spade.transformer;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
@@ -33,6 +34,7 @@ import spade.core.AbstractEdge;
 import spade.core.AbstractTransformer;
 import spade.core.AbstractVertex;
 import spade.core.Graph;
+import spade.core.Partitions;
 import spade.core.Settings;
 import spade.utility.CommonFunctions;
 import spade.utility.FileUtility;
@@ -62,18 +64,26 @@ public class NoEphemeralReads extends AbstractTransformer {
 		}
 	}
 
+	@Override
+	public boolean isPartitionable(){
+		return true;
+	}
+	
 	public Graph putGraph(Graph graph, QueryParameters digQueryParams){
 		
-		AbstractVertex queriedVertex = null;
+		final AbstractVertex queriedVertex = (digQueryParams != null) ? digQueryParams.getVertex() : null;
 		
-		if(digQueryParams != null){
-			queriedVertex = digQueryParams.getVertex();
-		}
+		// Strip the edges once, in parallel partitions if enabled
+		List<AbstractEdge> newEdges = Partitions.map(graph.edgeSet(), new Partitions.Mapper<AbstractEdge, AbstractEdge>(){
+			@Override
+			public AbstractEdge map(AbstractEdge edge){
+				return createNewWithoutAnnotations(edge);
+			}
+		});
 		
-		Map<AbstractVertex, Set<String>> fileWrittenBy = new HashMap<AbstractVertex, Set<String>>();
+		final Map<AbstractVertex, Set<String>> fileWrittenBy = new HashMap<AbstractVertex, Set<String>>();
 		
-		for(AbstractEdge edge : graph.edgeSet()){
-			AbstractEdge newEdge = createNewWithoutAnnotations(edge);
+		for(AbstractEdge newEdge : newEdges){
 			if(getAnnotationSafe(newEdge.getSourceVertex(), "subtype").equals("file")
 					|| getAnnotationSafe(newEdge.getDestinationVertex(), "subtype").equals("file")){
 				String operation = getAnnotationSafe(newEdge, "operation");
@@ -86,25 +96,30 @@ public class NoEphemeralReads extends AbstractTransformer {
 			}
 		}
 		
-		Graph resultGraph = new Graph();
-		
-		for(AbstractEdge edge : graph.edgeSet()){
-			AbstractEdge newEdge = createNewWithoutAnnotations(edge);
-			if((getAnnotationSafe(newEdge, "operation").equals("read") || getAnnotationSafe(newEdge, "operation").equals("readv") || 
-					getAnnotationSafe(newEdge, "operation").equals("pread64"))
-					&& getAnnotationSafe(newEdge.getDestinationVertex(), "subtype").equals("file")){
-				AbstractVertex vertex = newEdge.getDestinationVertex();
-				String path = getAnnotationSafe(vertex, "path");
-				if(!pathEqualsVertex(path, queriedVertex)){ //if file passed as an argument then always log it otherwise check further
-					if(isPathInIgnoreFilesPattern(path)){ //if file is not in ignore list then always log it otherwise check further
-						if((fileWrittenBy.get(vertex) == null) || (fileWrittenBy.get(vertex).size() == 1 
-								&& fileWrittenBy.get(vertex).toArray()[0].equals(getAnnotationSafe(newEdge.getSourceVertex(), "pid")))){
-							continue;
+		List<AbstractEdge> keptEdges = Partitions.map(newEdges, new Partitions.Mapper<AbstractEdge, AbstractEdge>(){
+			@Override
+			public AbstractEdge map(AbstractEdge newEdge){
+				if((getAnnotationSafe(newEdge, "operation").equals("read") || getAnnotationSafe(newEdge, "operation").equals("readv") || 
+						getAnnotationSafe(newEdge, "operation").equals("pread64"))
+						&& getAnnotationSafe(newEdge.getDestinationVertex(), "subtype").equals("file")){
+					AbstractVertex vertex = newEdge.getDestinationVertex();
+					String path = getAnnotationSafe(vertex, "path");
+					if(!pathEqualsVertex(path, queriedVertex)){ //if file passed as an argument then always log it otherwise check further
+						if(isPathInIgnoreFilesPattern(path)){ //if file is not in ignore list then always log it otherwise check further
+							if((fileWrittenBy.get(vertex) == null) || (fileWrittenBy.get(vertex).size() == 1 
+									&& fileWrittenBy.get(vertex).toArray()[0].equals(getAnnotationSafe(newEdge.getSourceVertex(), "pid")))){
+								return null;
+							}
 						}
 					}
 				}
+				return newEdge;
 			}
+		});
+		
+		Graph resultGraph = new Graph();
 		
+		for(AbstractEdge newEdge : keptEdges){
 			resultGraph.putVertex(newEdge.getSourceVertex());
 			resultGraph.putVertex(newEdge.getDestinationVertex());
 			resultGraph.putEdge(newEdge);			
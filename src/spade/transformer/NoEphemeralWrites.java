@@ -21,6 +21,7 @@ package spade.transformer;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -29,17 +30,28 @@ import spade.core.AbstractEdge;
 import spade.core.AbstractTransformer;
 import spade.core.AbstractVertex;
 import spade.core.Graph;
+import spade.core.Partitions;
 
 public class NoEphemeralWrites extends AbstractTransformer {
 
+	@Override
+	public boolean isPartitionable(){
+		return true;
+	}
+	
 	public Graph putGraph(Graph graph, QueryParameters digQueryParams){
 		
-		Map<AbstractVertex, Set<String>> fileReadBy = new HashMap<AbstractVertex, Set<String>>();
+		// Strip the edges once, in parallel partitions if enabled
+		List<AbstractEdge> newEdges = Partitions.map(graph.edgeSet(), new Partitions.Mapper<AbstractEdge, AbstractEdge>(){
+			@Override
+			public AbstractEdge map(AbstractEdge edge){
+				return createNewWithoutAnnotations(edge);
+			}
+		});
 		
-		for(AbstractEdge edge : graph.edgeSet()){
-			
-			AbstractEdge newEdge = createNewWithoutAnnotations(edge);
+		final Map<AbstractVertex, Set<String>> fileReadBy = new HashMap<AbstractVertex, Set<String>>();
 		
+		for(AbstractEdge newEdge : newEdges){
 			if(getAnnotationSafe(newEdge.getSourceVertex(), "subtype").equals("file")
 					|| getAnnotationSafe(newEdge.getDestinationVertex(), "subtype").equals("file")){
 				String operation = getAnnotationSafe(newEdge, "operation");
@@ -52,20 +64,26 @@ public class NoEphemeralWrites extends AbstractTransformer {
 			}			
 		}
 	
+		List<AbstractEdge> keptEdges = Partitions.map(newEdges, new Partitions.Mapper<AbstractEdge, AbstractEdge>(){
+			@Override
+			public AbstractEdge map(AbstractEdge newEdge){
+				if((getAnnotationSafe(newEdge, "operation").equals("writev") || getAnnotationSafe(newEdge, "operation").equals("write") || 
+						getAnnotationSafe(newEdge, "operation").equals("pwrite64") || getAnnotationSafe(newEdge, "operation").equals("rename_write") || getAnnotationSafe(newEdge, "operation").equals("link_write")
+						|| getAnnotationSafe(newEdge, "operation").equals("symlink_write"))
+						&& getAnnotationSafe(newEdge.getSourceVertex(), "subtype").equals("file")){
+					AbstractVertex vertex = newEdge.getSourceVertex();
+					if((fileReadBy.get(vertex) == null) || (fileReadBy.get(vertex).size() == 1 
+							&& fileReadBy.get(vertex).toArray()[0].equals(getAnnotationSafe(newEdge.getDestinationVertex(), "pid")))){
+						return null; 
+					}
+				}
+				return newEdge;
+			}
+		});
+		
 		Graph resultGraph = new Graph();
 		
-		for(AbstractEdge edge : graph.edgeSet()){
-			AbstractEdge newEdge = createNewWithoutAnnotations(edge);
-			if((getAnnotationSafe(newEdge, "operation").equals("writev") || getAnnotationSafe(newEdge, "operation").equals("write") || 
-					getAnnotationSafe(newEdge, "operation").equals("pwrite64") || getAnnotationSafe(newEdge, "operation").equals("rename_write") || getAnnotationSafe(newEdge, "operation").equals("link_write")
-					|| getAnnotationSafe(newEdge, "operation").equals("symlink_write"))
-					&& getAnnotationSafe(newEdge.getSourceVertex(), "subtype").equals("file")){
-				AbstractVertex vertex = newEdge.getSourceVertex();
-				if((fileReadBy.get(vertex) == null) || (fileReadBy.get(vertex).size() == 1 
-						&& fileReadBy.get(vertex).toArray()[0].equals(getAnnotationSafe(newEdge.getDestinationVertex(), "pid")))){
-					continue; 
-				}
-			}		
+		for(AbstractEdge newEdge : keptEdges){
 			resultGraph.putVertex(newEdge.getSourceVertex());
 			resultGraph.putVertex(newEdge.getDestinationVertex());
 			resultGraph.putEdge(newEdge);
@@ -21,27 +21,22 @@ package spade.transformer;
 
 import spade.client.QueryParameters;
 import spade.core.AbstractEdge;
-import spade.core.AbstractTransformer;
-import spade.core.Graph;
+import spade.core.AbstractEdgeTransformer;
 
 //remove memory artifacts along with edges
-public class NoMemory extends AbstractTransformer{
+public class NoMemory extends AbstractEdgeTransformer{
 
-	public Graph putGraph(Graph graph, QueryParameters digQueryParams){
-		Graph resultGraph = new Graph();
-		for(AbstractEdge edge : graph.edgeSet()){
-			if(getAnnotationSafe(edge.getSourceVertex(), "subtype").equals("memory") 
-					|| getAnnotationSafe(edge.getDestinationVertex(), "subtype").equals("memory")){
-				continue;
-			}
-			AbstractEdge newEdge = createNewWithoutAnnotations(edge);
-			if(newEdge != null && newEdge.getSourceVertex() != null && newEdge.getDestinationVertex() != null){
-				resultGraph.putVertex(newEdge.getSourceVertex());
-				resultGraph.putVertex(newEdge.getDestinationVertex());
-				resultGraph.putEdge(newEdge);	
-			}
+	@Override
+	public boolean isPartitionable(){
+		return true;
+	}
+	
+	public AbstractEdge transformEdge(AbstractEdge edge, QueryParameters digQueryParams){
+		if(getAnnotationSafe(edge.getSourceVertex(), "subtype").equals("memory") 
+				|| getAnnotationSafe(edge.getDestinationVertex(), "subtype").equals("memory")){
+			return null;
 		}
-		return resultGraph;
+		return createNewWithoutAnnotations(edge);
 	}
 	
 }
@@ -21,26 +21,21 @@ package spade.transformer;
 
 import spade.client.QueryParameters;
 import spade.core.AbstractEdge;
-import spade.core.AbstractTransformer;
-import spade.core.Graph;
+import spade.core.AbstractEdgeTransformer;
 
 //remove units and edges to units
-public class NoUnits extends AbstractTransformer{
+public class NoUnits extends AbstractEdgeTransformer{
 
-	public Graph putGraph(Graph graph, QueryParameters digQueryParams){
-		Graph resultGraph = new Graph();
-		for(AbstractEdge edge : graph.edgeSet()){
-			if(getAnnotationSafe(edge, "operation").equals("unit")){
-				continue;
-			}
-			AbstractEdge newEdge = createNewWithoutAnnotations(edge, "unit");
-			if(newEdge != null && newEdge.getSourceVertex() != null && newEdge.getDestinationVertex() != null){
-				resultGraph.putVertex(newEdge.getSourceVertex());
-				resultGraph.putVertex(newEdge.getDestinationVertex());
-				resultGraph.putEdge(newEdge);
-			}
+	@Override
+	public boolean isPartitionable(){
+		return true;
+	}
+	
+	public AbstractEdge transformEdge(AbstractEdge edge, QueryParameters digQueryParams){
+		if(getAnnotationSafe(edge, "operation").equals("unit")){
+			return null;
 		}
-		return resultGraph;
+		return createNewWithoutAnnotations(edge, "unit");
 	}
 	
 }
@@ -21,25 +21,20 @@ package spade.transformer;
 
 import spade.client.QueryParameters;
 import spade.core.AbstractEdge;
-import spade.core.AbstractTransformer;
-import spade.core.Graph;
+import spade.core.AbstractEdgeTransformer;
 
-public class NoVersions extends AbstractTransformer {
+public class NoVersions extends AbstractEdgeTransformer {
 
-	public Graph putGraph(Graph graph, QueryParameters digQueryParams){
-		Graph resultGraph = new Graph();
-		for(AbstractEdge edge : graph.edgeSet()){
-			if(getAnnotationSafe(edge, "operation").equals("update")){
-				continue;
-			}
-			AbstractEdge newEdge = createNewWithoutAnnotations(edge, "version");
-			if(newEdge != null && newEdge.getSourceVertex() != null && newEdge.getDestinationVertex() != null){
-				resultGraph.putVertex(newEdge.getSourceVertex());
-				resultGraph.putVertex(newEdge.getDestinationVertex());
-				resultGraph.putEdge(newEdge);
-			}
+	@Override
+	public boolean isPartitionable(){
+		return true;
+	}
+	
+	public AbstractEdge transformEdge(AbstractEdge edge, QueryParameters digQueryParams){
+		if(getAnnotationSafe(edge, "operation").equals("update")){
+			return null;
 		}
-		return resultGraph;
+		return createNewWithoutAnnotations(edge, "version");
 	}
 	
 }
@@ -27,10 +27,9 @@ import java.util.logging.Logger;
 
 import spade.client.QueryParameters;
 import spade.core.AbstractEdge;
-import spade.core.AbstractTransformer;
-import spade.core.Graph;
+import spade.core.AbstractEdgeTransformer;
 
-public class OPM2Prov extends AbstractTransformer{
+public class OPM2Prov extends AbstractEdgeTransformer{
 	
 	private final static Logger logger = Logger.getLogger(OPM2Prov.class.getName());
 	
@@ -50,25 +49,23 @@ public class OPM2Prov extends AbstractTransformer{
 		opm2ProvEdgeMappings.put("WasTriggeredBy","WasInformedBy");
 	}
 
-	public Graph putGraph(Graph graph, QueryParameters digQueryParams){
-		Graph resultGraph = new Graph();
-		
-		for(AbstractEdge edge : graph.edgeSet()){
-			if(edge != null && edge.getSourceVertex() != null && edge.getDestinationVertex() != null){
-				String edgeType = getAnnotationSafe(edge, "type");
-				String srcType = getAnnotationSafe(edge.getSourceVertex(), "type");
-				String dstType = getAnnotationSafe(edge.getDestinationVertex(), "type");
-				AbstractEdge newEdge = createNewWithoutAnnotations(edge);
-				newEdge.addAnnotation("type", getProvEdgeTypeEquivalentToOPMEdgeType(edgeType));
-				newEdge.getSourceVertex().addAnnotation("type", getProvVertexTypeEquivalentToOPMVertexType(srcType));
-				newEdge.getDestinationVertex().addAnnotation("type", getProvVertexTypeEquivalentToOPMVertexType(dstType));
-				resultGraph.putVertex(newEdge.getSourceVertex());
-				resultGraph.putVertex(newEdge.getDestinationVertex());
-				resultGraph.putEdge(newEdge);
-			}
+	@Override
+	public boolean isPartitionable(){
+		return true;
+	}
+	
+	public AbstractEdge transformEdge(AbstractEdge edge, QueryParameters digQueryParams){
+		if(edge != null && edge.getSourceVertex() != null && edge.getDestinationVertex() != null){
+			String edgeType = getAnnotationSafe(edge, "type");
+			String srcType = getAnnotationSafe(edge.getSourceVertex(), "type");
+			String dstType = getAnnotationSafe(edge.getDestinationVertex(), "type");
+			AbstractEdge newEdge = createNewWithoutAnnotations(edge);
+			newEdge.addAnnotation("type", getProvEdgeTypeEquivalentToOPMEdgeType(edgeType));
+			newEdge.getSourceVertex().addAnnotation("type", getProvVertexTypeEquivalentToOPMVertexType(srcType));
+			newEdge.getDestinationVertex().addAnnotation("type", getProvVertexTypeEquivalentToOPMVertexType(dstType));
+			return newEdge;
 		}
-		
-		return resultGraph;
+		return null;
 	}
 	
 	private String getProvEdgeTypeEquivalentToOPMEdgeType(String opmEdgeType){
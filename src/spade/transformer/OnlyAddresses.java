@@ -21,10 +21,10 @@
 package spade.transformer;
 
 import java.util.AbstractMap.SimpleEntry;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 import spade.client.QueryParameters;
 import spade.core.AbstractEdge;
@@ -42,8 +42,11 @@ public class OnlyAddresses extends AbstractTransformer{
 		 * 
 		 * Add all the Address vertices in the final graph when building necessary data structures
 		 * Build a map of bitcoin payment vertices to bitcoin address vertices (assumption: every payment vertex is only connected to one address vertex)
-		 * Build a map of transaction vertices to 1) list of edges for 'paid from' payment vertices, and 2) list of edges for 'paid to' payment vertices  
-		 * For each transaction found, draw edges from addresses of 'paid to' payment vertices to addresses of 'paid from' payment vertices
+		 * Build a map of transaction vertices to 1) set of 'paid from' payment vertices, and 2) set of 'paid to' payment vertices with their transaction values
+		 * For each transaction found, group its payments by address (and transaction value) and draw edges from addresses of 'paid to' payments to addresses of 'paid from' payments
+		 * 
+		 * Grouping first means that every distinct edge is drawn once, instead of once per pair of payments, which is quadratic for transactions
+		 * with many payments to the same addresses such as the ones of exchanges.
 		 * 
 		 * NOTE: Payment-out vertex of one transaction can be Payment-in vertex of another transaction and vice versa.
 		 * 
@@ -53,49 +56,52 @@ public class OnlyAddresses extends AbstractTransformer{
 		
 		Graph resultGraph = new Graph();
 		
-		Map<AbstractVertex, SimpleEntry<List<AbstractEdge>, List<AbstractEdge>>> transactionsToPayments = new HashMap<AbstractVertex, SimpleEntry<List<AbstractEdge>, List<AbstractEdge>>>(); 
+		Map<AbstractVertex, SimpleEntry<Set<AbstractVertex>, Set<SimpleEntry<AbstractVertex, String>>>> transactionsToPayments = new HashMap<AbstractVertex, SimpleEntry<Set<AbstractVertex>, Set<SimpleEntry<AbstractVertex, String>>>>(); 
 		
 		Map<AbstractVertex, AbstractVertex> paymentToAddresses = new HashMap<AbstractVertex, AbstractVertex>();
 				
 		for(AbstractEdge edge : graph.edgeSet()){
-			if(getAnnotationSafe(edge, "type").equals("WasAttributedTo")){
+			String type = getAnnotationSafe(edge, "type");
+			if(type.equals("WasAttributedTo")){
 				paymentToAddresses.put(edge.getSourceVertex(), edge.getDestinationVertex());
 				resultGraph.putVertex(edge.getDestinationVertex()); //adding the Agent vertex to the final graph
-			}else if(getAnnotationSafe(edge, "type").equals("Used")){ //list of edges for 'paid from' payment vertices
-				if(transactionsToPayments.get(edge.getSourceVertex()) == null){
-					transactionsToPayments.put(edge.getSourceVertex(), new SimpleEntry<List<AbstractEdge>, List<AbstractEdge>>(new ArrayList<AbstractEdge>(), new ArrayList<AbstractEdge>()));
-				}
-				transactionsToPayments.get(edge.getSourceVertex()).getKey().add(edge);
-			}else if(getAnnotationSafe(edge, "type").equals("WasGeneratedBy")){ //list of edges for 'paid to' payment vertices
-				if(transactionsToPayments.get(edge.getDestinationVertex()) == null){
-					transactionsToPayments.put(edge.getDestinationVertex(), new SimpleEntry<List<AbstractEdge>, List<AbstractEdge>>(new ArrayList<AbstractEdge>(), new ArrayList<AbstractEdge>()));
-				}
-				transactionsToPayments.get(edge.getDestinationVertex()).getValue().add(edge);
+			}else if(type.equals("Used")){ //'paid from' payment vertices
+				getPayments(transactionsToPayments, edge.getSourceVertex()).getKey().add(edge.getDestinationVertex());
+			}else if(type.equals("WasGeneratedBy")){ //'paid to' payment vertices
+				getPayments(transactionsToPayments, edge.getDestinationVertex()).getValue().add(
+						new SimpleEntry<AbstractVertex, String>(edge.getSourceVertex(), edge.getAnnotation("transactionValue")));
 			}
 		}				
 		
-		for(AbstractVertex transaction : transactionsToPayments.keySet()){ 
-			SimpleEntry<List<AbstractEdge>, List<AbstractEdge>> allPayments = transactionsToPayments.get(transaction);
-			if(allPayments != null){
-				List<AbstractEdge> paymentsInEdges = allPayments.getKey(); //'paid from' payments
-				List<AbstractEdge> paymentsOutEdges = allPayments.getValue(); //'paid to' payments
-				if(paymentsInEdges != null && paymentsInEdges.size() > 0 && paymentsOutEdges != null && paymentsOutEdges.size() > 0){
-					for(AbstractEdge paymentInEdge : paymentsInEdges){
-						AbstractVertex paymentInAddress = paymentToAddresses.get(paymentInEdge.getDestinationVertex());
-						if(paymentInAddress != null){
-							for(AbstractEdge paymentOutEdge : paymentsOutEdges){
-								AbstractVertex paymentOutAddress = paymentToAddresses.get(paymentOutEdge.getSourceVertex());
-								if(paymentOutAddress != null){
-									AbstractEdge edge = new Edge(paymentOutAddress, paymentInAddress);
-									edge.addAnnotation("type", "ActedOnBehalfOf");
-									if(paymentOutEdge.getAnnotation("transactionValue") != null){
-										edge.addAnnotation("transactionValue", getAnnotationSafe(paymentOutEdge, "transactionValue"));
-									}
-									resultGraph.putEdge(edge);
-								}
-							}
-						}
+		for(SimpleEntry<Set<AbstractVertex>, Set<SimpleEntry<AbstractVertex, String>>> allPayments : transactionsToPayments.values()){ 
+			if(allPayments.getKey().isEmpty() || allPayments.getValue().isEmpty()){
+				continue;
+			}
+			Set<AbstractVertex> paymentInAddresses = new LinkedHashSet<AbstractVertex>(); //addresses of 'paid from' payments
+			for(AbstractVertex paymentIn : allPayments.getKey()){
+				AbstractVertex paymentInAddress = paymentToAddresses.get(paymentIn);
+				if(paymentInAddress != null){
+					paymentInAddresses.add(paymentInAddress);
+				}
+			}
+			if(paymentInAddresses.isEmpty()){
+				continue;
+			}
+			Set<SimpleEntry<AbstractVertex, String>> paymentOutAddresses = new LinkedHashSet<SimpleEntry<AbstractVertex, String>>(); //addresses of 'paid to' payments with the values paid
+			for(SimpleEntry<AbstractVertex, String> paymentOut : allPayments.getValue()){
+				AbstractVertex paymentOutAddress = paymentToAddresses.get(paymentOut.getKey());
+				if(paymentOutAddress != null){
+					paymentOutAddresses.add(new SimpleEntry<AbstractVertex, String>(paymentOutAddress, paymentOut.getValue()));
+				}
+			}
+			for(SimpleEntry<AbstractVertex, String> paymentOutAddress : paymentOutAddresses){
+				for(AbstractVertex paymentInAddress : paymentInAddresses){
+					AbstractEdge edge = new Edge(paymentOutAddress.getKey(), paymentInAddress);
+					edge.addAnnotation("type", "ActedOnBehalfOf");
+					if(paymentOutAddress.getValue() != null){
+						edge.addAnnotation("transactionValue", paymentOutAddress.getValue());
 					}
+					resultGraph.putEdge(edge);
 				}
 			}
 		}
@@ -103,4 +109,15 @@ public class OnlyAddresses extends AbstractTransformer{
 		return resultGraph;
 	}
 	
+	private static SimpleEntry<Set<AbstractVertex>, Set<SimpleEntry<AbstractVertex, String>>> getPayments(
+			Map<AbstractVertex, SimpleEntry<Set<AbstractVertex>, Set<SimpleEntry<AbstractVertex, String>>>> transactionsToPayments, AbstractVertex transaction){
+		SimpleEntry<Set<AbstractVertex>, Set<SimpleEntry<AbstractVertex, String>>> payments = transactionsToPayments.get(transaction);
+		if(payments == null){
+			payments = new SimpleEntry<Set<AbstractVertex>, Set<SimpleEntry<AbstractVertex, String>>>(
+					new LinkedHashSet<AbstractVertex>(), new LinkedHashSet<SimpleEntry<AbstractVertex, String>>());
+			transactionsToPayments.put(transaction, payments);
+		}
+		return payments;
+	}
+	
 }
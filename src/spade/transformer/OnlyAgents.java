@@ -19,15 +19,18 @@
  */
 package spade.transformer;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import org.jgrapht.EdgeFactory;
-import org.jgrapht.alg.TransitiveClosure;
-import org.jgrapht.graph.SimpleDirectedGraph;
-
 import spade.client.QueryParameters;
 import spade.core.AbstractEdge;
 import spade.core.AbstractTransformer;
@@ -36,29 +39,37 @@ import spade.core.Edge;
 import spade.core.Graph;
 
 public class OnlyAgents extends AbstractTransformer{
+	
+	// label of a vertex that reaches more than one source vertex
+	private static final int MULTIPLE = -2;
+	
 	@Override
 	public Graph putGraph(Graph graph, QueryParameters digQueryParams) {
 		/*
 		 * Code description: 
 		 * 
-		 * Add every agent vertex into the final graph while building the following data structures
-		 * Build the graph needed by the TransitiveClosure class
-		 * Build a map where every key is a vertex that was connected to an agent. Map(Vertex -> list of Agent edges)
-		 * Run transitive closure on the graph
-		 * For every edge in the transitive closure graph, check if both endpoints of the edge have agents connected to them (using the map built before)
-		 * 		If yes then draw edges between all the agents of both the endpoints with appropriate directions
+		 * Draw an edge from agent A to agent B whenever a vertex connected to A has a path to another vertex connected to B.
+		 * 
+		 * Stream over the edges once, adding every agent vertex into the final graph while building the following data structures
+		 * 		Incoming adjacency of the graph over integer vertex ids
+		 * 		The distinct agents of every vertex that was connected to an agent, and the inverse grouping Map(Agent -> vertices)
+		 * For every agent B, walk the incoming edges backwards from all the vertices connected to B at once
+		 * 		Every vertex reached has a path to a vertex connected to B. Each vertex is labelled with the vertex it reaches, or
+		 * 		as reaching several, so that it is visited at most twice. A vertex that only reaches itself through a cycle is skipped
+		 * 		Draw edges from the agents of every vertex reached to B
+		 * This is linear in the size of the graph for every agent instead of materializing the transitive closure and then
+		 * joining the agent edges of both endpoints of every closure edge.
 		 * TODO: Do we need to do draw edges between agents connected to the same vertex? eg. A process connected to 2 or more agents. 
 		 */
 		
 		Graph resultGraph = new Graph();
 		
-		SimpleDirectedGraph<AbstractVertex, AbstractEdge> spadeGraph = new SimpleDirectedGraph<AbstractVertex, AbstractEdge>(new EdgeFactory<AbstractVertex, AbstractEdge>() {
-			@Override
-			public AbstractEdge createEdge(AbstractVertex sourceVertex, AbstractVertex destinationVertex) {
-				return new Edge(sourceVertex, destinationVertex);
-			}
-		});
-		Map<AbstractVertex, Set<AbstractEdge>> vertexToAgent = new HashMap<AbstractVertex, Set<AbstractEdge>>();
+		Map<AbstractVertex, Integer> vertexIds = new HashMap<AbstractVertex, Integer>();
+		int edgeCount = graph.edgeSet().size();
+		int[] sourceIds = new int[edgeCount], destinationIds = new int[edgeCount];
+		int edgeIndex = 0;
+		Map<Integer, Set<AbstractVertex>> vertexToAgents = new HashMap<Integer, Set<AbstractVertex>>();
+		Map<AbstractVertex, List<Integer>> agentToVertices = new LinkedHashMap<AbstractVertex, List<Integer>>();
 		for(AbstractEdge edge : graph.edgeSet()){
 			AbstractVertex agentVertex = null, otherVertex = null;
 			if(getAnnotationSafe(edge.getSourceVertex(), "type").equals("Agent")){
@@ -68,36 +79,100 @@ public class OnlyAgents extends AbstractTransformer{
 				otherVertex = edge.getSourceVertex();
 				agentVertex = edge.getDestinationVertex();
 			}
-			if(agentVertex != null && otherVertex != null){ 
-				if(vertexToAgent.get(otherVertex) == null){
-					vertexToAgent.put(otherVertex, new HashSet<AbstractEdge>());
+			int sourceId = getVertexId(vertexIds, edge.getSourceVertex());
+			int destinationId = getVertexId(vertexIds, edge.getDestinationVertex());
+			if(agentVertex != null && otherVertex != null){
+				int otherId = (otherVertex == edge.getSourceVertex()) ? sourceId : destinationId;
+				Set<AbstractVertex> agents = vertexToAgents.get(otherId);
+				if(agents == null){
+					agents = new LinkedHashSet<AbstractVertex>();
+					vertexToAgents.put(otherId, agents);
+				}
+				if(agents.add(agentVertex)){
+					List<Integer> vertices = agentToVertices.get(agentVertex);
+					if(vertices == null){
+						vertices = new ArrayList<Integer>();
+						agentToVertices.put(agentVertex, vertices);
+					}
+					vertices.add(otherId);
 				}
-				vertexToAgent.get(otherVertex).add(edge);
 				resultGraph.putVertex(agentVertex);
 			}
-			spadeGraph.addVertex(edge.getSourceVertex());
-			spadeGraph.addVertex(edge.getDestinationVertex());
-			spadeGraph.addEdge(edge.getSourceVertex(), edge.getDestinationVertex(), edge);
+			if(sourceId != destinationId){
+				sourceIds[edgeIndex] = sourceId;
+				destinationIds[edgeIndex] = destinationId;
+				edgeIndex++;
+			}
+		}
+		
+		// incoming adjacency as offsets into one array
+		int vertexCount = vertexIds.size();
+		int[] incomingOffsets = new int[vertexCount + 1];
+		for(int i = 0; i < edgeIndex; i++){
+			incomingOffsets[destinationIds[i] + 1]++;
+		}
+		for(int i = 0; i < vertexCount; i++){
+			incomingOffsets[i + 1] += incomingOffsets[i];
 		}
+		int[] incoming = new int[edgeIndex];
+		int[] fill = Arrays.copyOf(incomingOffsets, vertexCount);
+		for(int i = 0; i < edgeIndex; i++){
+			incoming[fill[destinationIds[i]]++] = sourceIds[i];
+		}
+		sourceIds = null;
+		destinationIds = null;
 		
-		TransitiveClosure.INSTANCE.closeSimpleDirectedGraph(spadeGraph);
-				
-		for(AbstractEdge edge : spadeGraph.edgeSet()){
-			Set<AbstractEdge> sourceEdges = null, destinationEdges = null;
-			if((sourceEdges = vertexToAgent.get(edge.getSourceVertex())) != null && (destinationEdges = vertexToAgent.get(edge.getDestinationVertex())) != null &&
-					sourceEdges.size() > 0 && destinationEdges.size() > 0){
-				for(AbstractEdge sourceEdge : sourceEdges){
-					AbstractVertex sourceAgent = getAnnotationSafe(sourceEdge.getSourceVertex(), "type").equals("Agent") ? sourceEdge.getSourceVertex() : sourceEdge.getDestinationVertex();
-					for(AbstractEdge destinationEdge : destinationEdges){
-						AbstractVertex destinationAgent = getAnnotationSafe(destinationEdge.getSourceVertex(), "type").equals("Agent") ? destinationEdge.getSourceVertex() : destinationEdge.getDestinationVertex();
-						AbstractEdge newEdge = new Edge(sourceAgent, destinationAgent);
-						newEdge.addAnnotation("type", "ActedOnBehalfOf");
-						resultGraph.putEdge(newEdge); //have added all agents previously. so, not adding them here
+		int[] reached = new int[vertexCount];
+		Deque<Integer> queue = new ArrayDeque<Integer>();
+		for(Map.Entry<AbstractVertex, List<Integer>> entry : agentToVertices.entrySet()){
+			AbstractVertex destinationAgent = entry.getKey();
+			Arrays.fill(reached, -1);
+			for(int source : entry.getValue()){
+				reachFrom(source, source, incoming, incomingOffsets, reached, queue);
+			}
+			while(!queue.isEmpty()){
+				int vertex = queue.poll();
+				reachFrom(vertex, reached[vertex], incoming, incomingOffsets, reached, queue);
+			}
+			
+			Set<AbstractVertex> sourceAgents = new HashSet<AbstractVertex>();
+			for(Map.Entry<Integer, Set<AbstractVertex>> vertexAgents : vertexToAgents.entrySet()){
+				int vertex = vertexAgents.getKey();
+				if(reached[vertex] == MULTIPLE || (reached[vertex] != -1 && reached[vertex] != vertex)){
+					for(AbstractVertex sourceAgent : vertexAgents.getValue()){
+						if(sourceAgents.add(sourceAgent)){
+							AbstractEdge newEdge = new Edge(sourceAgent, destinationAgent);
+							newEdge.addAnnotation("type", "ActedOnBehalfOf");
+							resultGraph.putEdge(newEdge); //have added all agents previously. so, not adding them here
+						}
 					}
-				}				
+				}
 			}
 		}
 		
 		return resultGraph;
 	}
+	
+	private static int getVertexId(Map<AbstractVertex, Integer> vertexIds, AbstractVertex vertex){
+		Integer id = vertexIds.get(vertex);
+		if(id == null){
+			id = vertexIds.size();
+			vertexIds.put(vertex, id);
+		}
+		return id;
+	}
+	
+	// labels the predecessors of the vertex with the source vertex that they reach
+	private static void reachFrom(int vertex, int label, int[] incoming, int[] incomingOffsets, int[] reached, Deque<Integer> queue){
+		for(int i = incomingOffsets[vertex]; i < incomingOffsets[vertex + 1]; i++){
+			int predecessor = incoming[i];
+			if(reached[predecessor] == -1){
+				reached[predecessor] = label;
+				queue.add(predecessor);
+			}else if(reached[predecessor] != label && reached[predecessor] != MULTIPLE){
+				reached[predecessor] = MULTIPLE;
+				queue.add(predecessor);
+			}
+		}
+	}
 }
@@ -19,19 +19,33 @@
  */
 package spade.transformer;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import spade.client.QueryParameters;
+import spade.core.AbstractEdge;
 import spade.core.AbstractTransformer;
+import spade.core.AbstractVertex;
 import spade.core.Graph;
+import spade.core.QueryContext;
+import spade.core.Settings;
 import spade.utility.CommonFunctions;
 
 public class Prune extends AbstractTransformer{
 	
 	private static final Logger logger = Logger.getLogger(Prune.class.getName());
 	
+	private static final String DIRECTION_ANCESTORS = Settings.getProperty("direction_ancestors");
+	private static final String DIRECTION_DESCENDANTS = Settings.getProperty("direction_descendants");
+	private static final String DIRECTION_BOTH = Settings.getProperty("direction_both");
+	
 	private String vertexExpression;
 	
 	public boolean initialize(String arguments){
@@ -62,13 +76,10 @@ public class Prune extends AbstractTransformer{
 			return graph;
 		}
 		
-		Graph resultGraph = new Graph();
-		
-		Graph toRemoveGraph = graph.getLineage(this.vertexExpression, digQueryParams.getDepth(), digQueryParams.getDirection(), digQueryParams.getTerminatingExpression());
+		Set<AbstractEdge> toRemoveEdges = getLineageEdges(graph, this.vertexExpression, digQueryParams.getDepth(), digQueryParams.getDirection(), digQueryParams.getTerminatingExpression());
 		
-		if(toRemoveGraph != null){
-			removeEdges(resultGraph, graph, toRemoveGraph);
-			return resultGraph;
+		if(toRemoveEdges != null){
+			return removeEdges(graph, toRemoveEdges);
 		}else{
 			return graph;
 		}
@@ -76,5 +87,65 @@ public class Prune extends AbstractTransformer{
 		
 	}
 	
+	/**
+	 * Returns the edges that graph.getLineage would return for the same arguments, without
+	 * a Lucene search per frontier vertex. Lucene is only searched for the start vertices and the
+	 * terminating vertices. The lineage is then traversed with the adjacency index of the graph.
+	 * 
+	 * @return The set of lineage edges compared by identity, or null if the direction is invalid.
+	 */
+	private Set<AbstractEdge> getLineageEdges(Graph graph, String vertexExpression, int depth, String direction, String terminatingExpression){
+		Set<AbstractEdge> lineageEdges = Collections.newSetFromMap(new IdentityHashMap<AbstractEdge, Boolean>());
+		boolean ancestors = DIRECTION_ANCESTORS.startsWith(direction.toLowerCase());
+		boolean descendants = DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase());
+		if(DIRECTION_BOTH.startsWith(direction.toLowerCase())){
+			ancestors = descendants = true;
+		}else if(!ancestors && !descendants){
+			return null;
+		}
+		
+		Set<AbstractVertex> terminatingSet = new HashSet<AbstractVertex>();
+		if(terminatingExpression != null && !terminatingExpression.trim().equalsIgnoreCase("null")){
+			for(int id : graph.listVertices(terminatingExpression)){
+				terminatingSet.add(graph.getVertex(id));
+			}
+		}
+		List<AbstractVertex> startVertices = new ArrayList<AbstractVertex>();
+		for(int id : graph.listVertices(vertexExpression)){
+			startVertices.add(graph.getVertex(id));
+		}
+		
+		if(ancestors){
+			traverse(graph, startVertices, depth, true, terminatingSet, lineageEdges);
+		}
+		if(descendants){
+			traverse(graph, startVertices, depth, false, terminatingSet, lineageEdges);
+		}
+		return lineageEdges;
+	}
+	
+	// Same levels as Graph.getLineage: depth + 1 levels from the start vertices, not crossing into terminating vertices
+	private void traverse(Graph graph, List<AbstractVertex> startVertices, int depth, boolean ancestors, 
+			Set<AbstractVertex> terminatingSet, Set<AbstractEdge> lineageEdges){
+		Set<AbstractVertex> doneVertices = new HashSet<AbstractVertex>(startVertices);
+		List<AbstractVertex> currentLevel = startVertices;
+		for(int i = 0; i <= depth && !currentLevel.isEmpty(); i++){
+			QueryContext.checkpoint();
+			List<AbstractVertex> nextLevel = new ArrayList<AbstractVertex>();
+			for(AbstractVertex vertex : currentLevel){
+				List<AbstractEdge> edges = ancestors ? graph.getOutgoingEdges(vertex) : graph.getIncomingEdges(vertex);
+				for(AbstractEdge edge : edges){
+					AbstractVertex otherVertex = ancestors ? edge.getDestinationVertex() : edge.getSourceVertex();
+					if(!terminatingSet.contains(otherVertex)){
+						lineageEdges.add(edge);
+						if(doneVertices.add(otherVertex)){
+							nextLevel.add(otherVertex);
+						}
+					}
+				}
+			}
+			currentLevel = nextLevel;
+		}
+	}
 	
 }
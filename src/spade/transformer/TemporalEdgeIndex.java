@@ -0,0 +1,315 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.transformer;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractTransformer;
+import spade.core.AbstractVertex;
+import spade.core.Graph;
+
+/**
+ * Index of the edges of a graph ordered by the numeric value of an annotation such
+ * as time or event id. Every edge is stripped of its storage identifiers and its value
+ * parsed exactly once. Besides the global order, the index keeps for every vertex its
+ * outgoing and incoming edges in the same order.
+ */
+public class TemporalEdgeIndex{
+	
+	private static final Logger logger = Logger.getLogger(TemporalEdgeIndex.class.getName());
+	
+	// stripped edges in the iteration order of the graph
+	private final AbstractEdge[] edges;
+	// positions of the edges with a parsable value, sorted by value. Equal values keep graph order
+	private final int[] order;
+	// positions of the edges without a parsable (or with a NaN) value, in graph order
+	private final int[] unordered;
+	private final double[] values;
+	private final int[] sourceIds, destinationIds;
+	private final Map<AbstractVertex, Integer> vertexIds = new HashMap<AbstractVertex, Integer>();
+	private final Map<AbstractVertex, Integer> graphVertexIds = new IdentityHashMap<AbstractVertex, Integer>();
+	private final List<AbstractVertex> strippedVertices = new ArrayList<AbstractVertex>();
+	// per-vertex adjacency in value order as offsets into outgoing/incoming (compressed sparse rows)
+	private final int[] outgoingOffsets, incomingOffsets;
+	private final int[] outgoing, incoming;
+	
+	public TemporalEdgeIndex(Graph graph, String annotationName){
+		int edgeCount = graph.edgeSet().size();
+		edges = new AbstractEdge[edgeCount];
+		values = new double[edgeCount];
+		sourceIds = new int[edgeCount];
+		destinationIds = new int[edgeCount];
+		final boolean[] parsed = new boolean[edgeCount];
+		int parsedCount = 0;
+		int position = 0;
+		boolean inOrder = true;
+		double previousValue = Double.NEGATIVE_INFINITY;
+		for(AbstractEdge edge : graph.edgeSet()){
+			int sourceId = getOrCreateVertexId(edge.getSourceVertex());
+			int destinationId = getOrCreateVertexId(edge.getDestinationVertex());
+			AbstractEdge newEdge = AbstractTransformer.createNewWithoutAnnotations(edge, strippedVertices.get(sourceId), strippedVertices.get(destinationId));
+			edges[position] = newEdge;
+			sourceIds[position] = sourceId;
+			destinationIds[position] = destinationId;
+			String value = AbstractTransformer.getAnnotationSafe(newEdge, annotationName);
+			try{
+				values[position] = Double.parseDouble(value);
+				// NaN has no place in the order and passes every bound
+				if(!Double.isNaN(values[position])){
+					parsed[position] = true;
+					parsedCount++;
+					inOrder = inOrder && previousValue <= values[position];
+					previousValue = values[position];
+				}
+			}catch(Exception e){
+				logger.log(Level.SEVERE, "Failed to parse where "+annotationName+"='"+value+"'");
+			}
+			position++;
+		}
+		
+		order = new int[parsedCount];
+		for(int i = 0, j = 0; i < edgeCount; i++){
+			if(parsed[i]){
+				order[j++] = i;
+			}
+		}
+		// audit records usually arrive in time order, in which case there is nothing to sort
+		if(!inOrder){
+			Integer[] sorted = new Integer[parsedCount];
+			for(int i = 0; i < parsedCount; i++){
+				sorted[i] = order[i];
+			}
+			// stable, so equal values stay in graph order
+			Arrays.sort(sorted, new Comparator<Integer>(){
+				@Override
+				public int compare(Integer a, Integer b){
+					return Double.compare(values[a], values[b]);
+				}
+			});
+			for(int i = 0; i < parsedCount; i++){
+				order[i] = sorted[i];
+			}
+		}
+		unordered = new int[edgeCount - parsedCount];
+		for(int i = 0, j = 0; i < edgeCount; i++){
+			if(!parsed[i]){
+				unordered[j++] = i;
+			}
+		}
+		
+		int vertexCount = vertexIds.size();
+		outgoingOffsets = new int[vertexCount + 1];
+		incomingOffsets = new int[vertexCount + 1];
+		for(int edgePosition : order){
+			outgoingOffsets[sourceIds[edgePosition] + 1]++;
+			incomingOffsets[destinationIds[edgePosition] + 1]++;
+		}
+		for(int i = 0; i < vertexCount; i++){
+			outgoingOffsets[i + 1] += outgoingOffsets[i];
+			incomingOffsets[i + 1] += incomingOffsets[i];
+		}
+		outgoing = new int[parsedCount];
+		incoming = new int[parsedCount];
+		int[] outgoingFill = Arrays.copyOf(outgoingOffsets, vertexCount);
+		int[] incomingFill = Arrays.copyOf(incomingOffsets, vertexCount);
+		for(int edgePosition : order){
+			outgoing[outgoingFill[sourceIds[edgePosition]]++] = edgePosition;
+			incoming[incomingFill[destinationIds[edgePosition]]++] = edgePosition;
+		}
+	}
+	
+	// vertices are usually shared by their edges so each one is stripped only once
+	private int getOrCreateVertexId(AbstractVertex vertex){
+		Integer id = graphVertexIds.get(vertex);
+		if(id == null){
+			AbstractVertex newVertex = AbstractTransformer.createNewWithoutAnnotations(vertex);
+			id = vertexIds.get(newVertex);
+			if(id == null){
+				id = strippedVertices.size();
+				vertexIds.put(newVertex, id);
+				strippedVertices.add(newVertex);
+			}
+			graphVertexIds.put(vertex, id);
+		}
+		return id;
+	}
+	
+	/**
+	 * @return The number of edges in the index, including those without a parsable value.
+	 */
+	public int size(){
+		return edges.length;
+	}
+	
+	/**
+	 * @return The id of the given stripped vertex, or -1 if no edge of the graph is incident on it.
+	 */
+	public int getVertexId(AbstractVertex vertex){
+		Integer id = vertexIds.get(vertex);
+		return (id == null) ? -1 : id;
+	}
+	
+	public int getVertexCount(){
+		return vertexIds.size();
+	}
+	
+	/**
+	 * @return The positions of the edges with a parsable value, in ascending order of value.
+	 */
+	public int[] getOrder(){
+		return order;
+	}
+	
+	/**
+	 * @return The positions of the edges without a parsable value, in graph order.
+	 */
+	public int[] getUnordered(){
+		return unordered;
+	}
+	
+	/**
+	 * @return The index into the order of the first edge whose value is greater than or equal to
+	 * the given value, or the number of ordered edges if there is none.
+	 */
+	public int lowerBound(double value){
+		int low = 0, high = order.length;
+		while(low < high){
+			int middle = (low + high) >>> 1;
+			if(values[order[middle]] < value){
+				low = middle + 1;
+			}else{
+				high = middle;
+			}
+		}
+		return low;
+	}
+	
+	/**
+	 * @return The index into the order of the first edge whose value is greater than the given
+	 * value, or the number of ordered edges if there is none.
+	 */
+	public int upperBound(double value){
+		int low = 0, high = order.length;
+		while(low < high){
+			int middle = (low + high) >>> 1;
+			if(values[order[middle]] <= value){
+				low = middle + 1;
+			}else{
+				high = middle;
+			}
+		}
+		return low;
+	}
+	
+	/**
+	 * @return The stripped vertex with the given id. Stripped edges share these vertices.
+	 */
+	public AbstractVertex getVertex(int vertexId){
+		return strippedVertices.get(vertexId);
+	}
+	
+	public AbstractEdge getEdge(int position){
+		return edges[position];
+	}
+	
+	public double getValue(int position){
+		return values[position];
+	}
+	
+	public int getSourceId(int position){
+		return sourceIds[position];
+	}
+	
+	public int getDestinationId(int position){
+		return destinationIds[position];
+	}
+	
+	/**
+	 * @return The outgoing edges of the vertex that have a parsable value, in ascending order of value.
+	 */
+	public List<AbstractEdge> getOutgoingEdges(int vertexId){
+		return edgeList(outgoing, outgoingOffsets[vertexId], outgoingOffsets[vertexId + 1]);
+	}
+	
+	/**
+	 * @return The incoming edges of the vertex that have a parsable value, in ascending order of value.
+	 */
+	public List<AbstractEdge> getIncomingEdges(int vertexId){
+		return edgeList(incoming, incomingOffsets[vertexId], incomingOffsets[vertexId + 1]);
+	}
+	
+	/**
+	 * @return The smallest value of the edges incident on the vertex, or null if there is none.
+	 */
+	public Double getMinimumIncidentValue(int vertexId){
+		Double minimum = null;
+		if(outgoingOffsets[vertexId] < outgoingOffsets[vertexId + 1]){
+			minimum = values[outgoing[outgoingOffsets[vertexId]]];
+		}
+		if(incomingOffsets[vertexId] < incomingOffsets[vertexId + 1]){
+			double value = values[incoming[incomingOffsets[vertexId]]];
+			if(minimum == null || value < minimum){
+				minimum = value;
+			}
+		}
+		return minimum;
+	}
+	
+	/**
+	 * @return The largest value of the edges incident on the vertex, or null if there is none.
+	 */
+	public Double getMaximumIncidentValue(int vertexId){
+		Double maximum = null;
+		if(outgoingOffsets[vertexId] < outgoingOffsets[vertexId + 1]){
+			maximum = values[outgoing[outgoingOffsets[vertexId + 1] - 1]];
+		}
+		if(incomingOffsets[vertexId] < incomingOffsets[vertexId + 1]){
+			double value = values[incoming[incomingOffsets[vertexId + 1] - 1]];
+			if(maximum == null || value > maximum){
+				maximum = value;
+			}
+		}
+		return maximum;
+	}
+	
+	private List<AbstractEdge> edgeList(final int[] positions, final int from, final int to){
+		return new AbstractList<AbstractEdge>(){
+			@Override
+			public AbstractEdge get(int index){
+				return edges[positions[from + index]];
+			}
+			@Override
+			public int size(){
+				return to - from;
+			}
+		};
+	}
+	
+}
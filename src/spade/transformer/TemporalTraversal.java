@@ -62,77 +62,52 @@ public class TemporalTraversal extends AbstractTransformer{
 			return graph;
 		}
 		
-		Graph resultGraph = new Graph();
-		AbstractVertex queriedVertex = createNewWithoutAnnotations(digQueryParams.getVertex());
-				
+		return traverse(graph, digQueryParams.getVertex(), direction);
+	}
+	
+	/**
+	 * Keeps the edges that happened no later (ancestors) or no earlier (descendants) than the
+	 * latest or earliest edge incident on the queried vertex. Edges whose annotation cannot be
+	 * parsed are always kept.
+	 */
+	public Graph traverse(Graph graph, AbstractVertex vertex, String direction){
+		TemporalEdgeIndex index = new TemporalEdgeIndex(graph, annotationName);
+		int queriedVertexId = index.getVertexId(createNewWithoutAnnotations(vertex));
+		int[] order = index.getOrder();
+		
+		// the kept edges with a value form a prefix (ancestors) or a suffix (descendants) of the order
+		int from, to;
 		if(DIRECTION_ANCESTORS.startsWith(direction)){
-			Double maxValue = Double.MIN_VALUE;
-			for(AbstractEdge edge : graph.edgeSet()){
-				AbstractEdge newEdge = createNewWithoutAnnotations(edge);
-				if(newEdge.getSourceVertex().equals(queriedVertex) || newEdge.getDestinationVertex().equals(queriedVertex)){
-					try{
-						Double value = Double.parseDouble(getAnnotationSafe(newEdge, annotationName));
-						if(value > maxValue){
-							maxValue = value;
-						}
-					}catch(Exception e){
-						logger.log(Level.SEVERE, "Failed to parse where "+annotationName+"='"+getAnnotationSafe(newEdge, annotationName)+"'");
-					}
-				}
-			} 
-			
-			for(AbstractEdge edge : graph.edgeSet()){
-				AbstractEdge newEdge = createNewWithoutAnnotations(edge);
-				boolean add = true;
-				try{
-					Double value = Double.parseDouble(getAnnotationSafe(newEdge, annotationName));
-					if(value > maxValue){
-						add = false;
-					}
-				}catch(Exception e){
-					logger.log(Level.SEVERE, "Failed to parse where "+annotationName+"='"+getAnnotationSafe(newEdge, annotationName)+"'");
-				}
-				if(add){
-					resultGraph.putVertex(newEdge.getSourceVertex());
-					resultGraph.putVertex(newEdge.getDestinationVertex());
-					resultGraph.putEdge(newEdge);
-				}
-			}
-		}else if(DIRECTION_DESCENDANTS.startsWith(direction)){
-			Double minValue = Double.MAX_VALUE;
-			for(AbstractEdge edge : graph.edgeSet()){
-				AbstractEdge newEdge = createNewWithoutAnnotations(edge);
-				if(newEdge.getSourceVertex().equals(queriedVertex) || newEdge.getDestinationVertex().equals(queriedVertex)){
-					try{
-						Double value = Double.parseDouble(getAnnotationSafe(newEdge, annotationName));
-						if(value < minValue){
-							minValue = value;
-						}
-					}catch(Exception e){
-						logger.log(Level.SEVERE, "Failed to parse where "+annotationName+"='"+getAnnotationSafe(newEdge, annotationName)+"'");
-					}
-				}
-			} 
-			
-			for(AbstractEdge edge : graph.edgeSet()){
-				AbstractEdge newEdge = createNewWithoutAnnotations(edge);
-				boolean add = true;
-				try{
-					Double value = Double.parseDouble(getAnnotationSafe(newEdge, annotationName));
-					if(value < minValue){
-						add = false;
-					}
-				}catch(Exception e){
-					logger.log(Level.SEVERE, "Failed to parse where "+annotationName+"='"+getAnnotationSafe(newEdge, annotationName)+"'");
-				}
-				if(add){
-					resultGraph.putVertex(newEdge.getSourceVertex());
-					resultGraph.putVertex(newEdge.getDestinationVertex());
-					resultGraph.putEdge(newEdge);
-				}
-			}
+			Double maxValue = (queriedVertexId == -1) ? null : index.getMaximumIncidentValue(queriedVertexId);
+			from = 0;
+			to = index.upperBound(maxValue == null ? Double.MIN_VALUE : Math.max(maxValue, Double.MIN_VALUE));
+		}else{
+			Double minValue = (queriedVertexId == -1) ? null : index.getMinimumIncidentValue(queriedVertexId);
+			from = index.lowerBound(minValue == null ? Double.MAX_VALUE : Math.min(minValue, Double.MAX_VALUE));
+			to = order.length;
 		}
 		
+		Graph resultGraph = new Graph();
+		boolean[] added = new boolean[index.getVertexCount()];
+		for(int i = from; i < to; i++){
+			putEdge(resultGraph, index, order[i], added);
+		}
+		for(int position : index.getUnordered()){
+			putEdge(resultGraph, index, position, added);
+		}
 		return resultGraph;
 	}
+	
+	private static void putEdge(Graph resultGraph, TemporalEdgeIndex index, int position, boolean[] added){
+		int sourceId = index.getSourceId(position), destinationId = index.getDestinationId(position);
+		if(!added[sourceId]){
+			resultGraph.putVertex(index.getVertex(sourceId));
+			added[sourceId] = true;
+		}
+		if(!added[destinationId]){
+			resultGraph.putVertex(index.getVertex(destinationId));
+			added[destinationId] = true;
+		}
+		resultGraph.putEdge(index.getEdge(position));
+	}
 }
@@ -0,0 +1,104 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility;
+
+import java.io.File;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Settings;
+import spade.edge.opm.Used;
+import spade.edge.opm.WasGeneratedBy;
+import spade.storage.Neo4j;
+import spade.vertex.opm.Artifact;
+import spade.vertex.opm.Process;
+
+/**
+ * Compares the legacy Lucene index with the schema index on the VERTEX label for the
+ * vertex hash lookups of the Neo4j storage during ingest. Each mode ingests the same
+ * synthetic audit stream into a new database. The node cache is kept small so that
+ * most endpoint lookups reach the index.
+ *
+ * Usage: Neo4jHashIndexBenchmark [directory] [vertices] [edges] [node cache size]
+ */
+public class Neo4jHashIndexBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String directory = args.length > 0 ? args[0] : "/tmp/spade-neo4j-benchmark";
+        int vertexCount = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int edgeCount = args.length > 2 ? Integer.parseInt(args[2]) : 500000;
+        String nodeCacheSize = args.length > 3 ? args[3] : "1000";
+
+        Settings.setProperty("neo4j_node_cache_size", nodeCacheSize);
+        for (String mode : new String[]{"legacy", "schema"}) {
+            File databaseDirectory = new File(directory, mode);
+            FileUtils.deleteDirectory(databaseDirectory);
+            Settings.setProperty("neo4j_hash_index", mode);
+            Neo4j storage = new Neo4j();
+            if (!storage.initialize(databaseDirectory.getAbsolutePath())) {
+                System.out.println("Failed to open " + databaseDirectory);
+                return;
+            }
+
+            Random random = new Random(42);
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < vertexCount; i++) {
+                storage.putVertex(createVertex(i, vertexCount));
+            }
+            storage.flushTransactions(true);
+            long vertexTime = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            for (int i = 0; i < edgeCount; i++) {
+                // new vertex objects, as reporters send them, so every endpoint is looked up by hash
+                int process = random.nextInt(vertexCount / 10);
+                int file = vertexCount / 10 + random.nextInt(vertexCount - vertexCount / 10);
+                Process processVertex = (Process) createVertex(process, vertexCount);
+                Artifact fileVertex = (Artifact) createVertex(file, vertexCount);
+                AbstractEdge edge = random.nextBoolean() ? new Used(processVertex, fileVertex) : new WasGeneratedBy(fileVertex, processVertex);
+                edge.addAnnotation("time", String.valueOf(i));
+                storage.putEdge(edge);
+            }
+            storage.flushTransactions(true);
+            long edgeTime = System.currentTimeMillis() - start;
+            storage.shutdown();
+
+            System.out.println(mode + ": " + vertexCount + " vertices in " + vertexTime + " ms, "
+                    + edgeCount + " edges in " + edgeTime + " ms ("
+                    + (edgeTime > 0 ? (1000L * edgeCount / edgeTime) : edgeCount) + " edges/s)");
+        }
+    }
+
+    // the first tenth are processes, the rest are files
+    private static AbstractVertex createVertex(int index, int vertexCount) {
+        if (index < vertexCount / 10) {
+            Process process = new Process();
+            process.addAnnotation("pid", String.valueOf(index));
+            process.addAnnotation("name", "process" + index);
+            return process;
+        }
+        Artifact file = new Artifact();
+        file.addAnnotation("path", "/tmp/file" + index);
+        return file;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility;
+
+import java.util.Random;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractTransformer;
+import spade.core.AbstractVertex;
+import spade.core.Graph;
+import spade.core.Settings;
+import spade.edge.opm.Used;
+import spade.edge.opm.WasGeneratedBy;
+import spade.transformer.TemporalTraversal;
+import spade.vertex.opm.Artifact;
+import spade.vertex.opm.Process;
+
+/**
+ * Measures the TemporalTraversal transformer on a synthetic audit graph in which
+ * processes read and write files at increasing times, against the per-pass
+ * re-parsing implementation that it replaced.
+ *
+ * Usage: TemporalTraversalBenchmark [edges] [processes] [files] [runs]
+ */
+public class TemporalTraversalBenchmark {
+
+    public static void main(String[] args) {
+        int edgeCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int processCount = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int fileCount = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        int runs = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        long start = System.currentTimeMillis();
+        Graph graph = new Graph();
+        Process[] processes = new Process[processCount];
+        for (int i = 0; i < processCount; i++) {
+            processes[i] = new Process();
+            processes[i].addAnnotation("pid", String.valueOf(i));
+            graph.putVertex(processes[i]);
+        }
+        Artifact[] files = new Artifact[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            files[i] = new Artifact();
+            files[i].addAnnotation("path", "/tmp/file" + i);
+            graph.putVertex(files[i]);
+        }
+        Random random = new Random(42);
+        long time = 1500000000000L;
+        for (int i = 0; i < edgeCount; i++) {
+            Process process = processes[random.nextInt(processCount)];
+            Artifact file = files[random.nextInt(fileCount)];
+            AbstractEdge edge = random.nextBoolean() ? new Used(process, file) : new WasGeneratedBy(file, process);
+            time += 1 + random.nextInt(5);
+            // records from different CPUs reach the reporter slightly out of order
+            edge.addAnnotation("time", String.valueOf((time + random.nextInt(50)) / 1000.0));
+            edge.addAnnotation("event id", String.valueOf(i));
+            graph.putEdge(edge);
+        }
+        System.out.println("Built graph with " + graph.vertexSet().size() + " vertices and "
+                + graph.edgeSet().size() + " edges in " + (System.currentTimeMillis() - start) + " ms");
+
+        TemporalTraversal transformer = new TemporalTraversal();
+        transformer.initialize("order=timestamp");
+        AbstractVertex queriedVertex = files[fileCount / 2];
+        String[] directions = {Settings.getProperty("direction_ancestors"), Settings.getProperty("direction_descendants")};
+        for (String direction : directions) {
+            for (int run = 0; run < runs; run++) {
+                start = System.currentTimeMillis();
+                int legacyEdges = legacyTraverse(graph, queriedVertex, direction);
+                long legacyTime = System.currentTimeMillis() - start;
+
+                start = System.currentTimeMillis();
+                int indexedEdges = transformer.traverse(graph, queriedVertex, direction).edgeSet().size();
+                long indexedTime = System.currentTimeMillis() - start;
+
+                System.out.println(direction + " run " + (run + 1) + ": legacy " + legacyTime + " ms (" + legacyEdges
+                        + " edges), indexed " + indexedTime + " ms (" + indexedEdges + " edges)");
+                if (legacyEdges != indexedEdges) {
+                    System.out.println("Mismatch in the number of edges kept");
+                }
+            }
+        }
+    }
+
+    // The previous implementation: one pass to find the bound of the queried vertex and
+    // another to filter, stripping and parsing every edge in both.
+    private static int legacyTraverse(Graph graph, AbstractVertex vertex, String direction) {
+        boolean ancestors = Settings.getProperty("direction_ancestors").startsWith(direction);
+        AbstractVertex queriedVertex = AbstractTransformer.createNewWithoutAnnotations(vertex);
+        double bound = ancestors ? Double.MIN_VALUE : Double.MAX_VALUE;
+        for (AbstractEdge edge : graph.edgeSet()) {
+            AbstractEdge newEdge = AbstractTransformer.createNewWithoutAnnotations(edge);
+            if (newEdge.getSourceVertex().equals(queriedVertex) || newEdge.getDestinationVertex().equals(queriedVertex)) {
+                try {
+                    double value = Double.parseDouble(AbstractTransformer.getAnnotationSafe(newEdge, "time"));
+                    bound = ancestors ? Math.max(bound, value) : Math.min(bound, value);
+                } catch (Exception e) {
+                    // kept below
+                }
+            }
+        }
+        Graph resultGraph = new Graph();
+        for (AbstractEdge edge : graph.edgeSet()) {
+            AbstractEdge newEdge = AbstractTransformer.createNewWithoutAnnotations(edge);
+            boolean add = true;
+            try {
+                double value = Double.parseDouble(AbstractTransformer.getAnnotationSafe(newEdge, "time"));
+                add = ancestors ? !(value > bound) : !(value < bound);
+            } catch (Exception e) {
+                // kept
+            }
+            if (add) {
+                resultGraph.putVertex(newEdge.getSourceVertex());
+                resultGraph.putVertex(newEdge.getDestinationVertex());
+                resultGraph.putEdge(newEdge);
+            }
+        }
+        return resultGraph.edgeSet().size();
+    }
+}